@@ -60,7 +60,7 @@ public class BoardBusCommand implements Command {
     public void execute() throws CityModelServiceException, LedgerException, ControllerServiceException {
 
         // Get Person
-        Person person = modelService.getPerson(personId);
+        PersonView person = modelService.getPersonView(personId);
 
         // Get reporting device
         IotDevice reportingDevice = modelService.getIotDevice(cityId, deviceId);
@@ -72,15 +72,14 @@ public class BoardBusCommand implements Command {
         modelService.createSensorOutput(announcement);
 
         // check if person is a resident
-        if (person instanceof Resident) {
-            Resident resident = (Resident) person;
+        if (person.isResident()) {
 
             // Get bus fee
             Integer busFee = ((Vehicle) reportingDevice).getFee();
 
             // Check if resident has a positive account balance with sufficient funds.
-            if (ledgerService.getAccountBalance(resident.getBlockchainAccountAddress()) < busFee+10) {
-                SensorOutput sensorOutput = new SensorOutput(reportingDevice.getCurrentCity(), reportingDevice.getUuid(), "Sorry " + resident.getUuid() + " you have insufficient funds to ride the bus.");
+            if (ledgerService.getAccountBalance(person.getBlockchainAccountAddress()) < busFee+10) {
+                SensorOutput sensorOutput = new SensorOutput(reportingDevice.getCurrentCity(), reportingDevice.getUuid(), "Sorry " + person.getUuid() + " you have insufficient funds to ride the bus.");
                 throw new ControllerServiceException("Board Bus", "Insufficient funds for resident to board bus");
             }
 
@@ -88,10 +87,10 @@ public class BoardBusCommand implements Command {
             String uniqueID = UUID.randomUUID().toString();
 
             // Get ledger account for city
-            String cityLedgerAccount = modelService.getCity(cityId).getBlockchainAccount();
+            String cityLedgerAccount = modelService.getCityView(cityId).getBlockchainAccount();
 
             // Otherwise person has enough of a balance so create a transaction
-            Transaction transaction = ledgerService.createTransaction(uniqueID, busFee, 10, "Bus ride fee", resident.getBlockchainAccountAddress(), cityLedgerAccount);
+            Transaction transaction = ledgerService.createTransaction(uniqueID, busFee, 10, "Bus ride fee", person.getBlockchainAccountAddress(), cityLedgerAccount);
 
             // Process the transaction
             ledgerService.processTransaction(transaction);
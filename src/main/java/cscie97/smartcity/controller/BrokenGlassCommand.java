@@ -43,13 +43,13 @@ public class BrokenGlassCommand implements Command {
     public void execute() throws CityModelServiceException {
 
         // Get reporting device
-        IotDevice reportingDevice = modelService.getIotDevice(cityId, deviceId);
+        DeviceView reportingDevice = modelService.getDeviceView(cityId, deviceId);
 
         // Get location of device
-        Location glassLocation = reportingDevice.getLocation();
+        Location glassLocation = new Location(reportingDevice.getLatitude(), reportingDevice.getLongitude());
 
         // Compile list of robots distance from location
-        List<Robot> sortedRobotDistanceList = ControllerUtils.locateRobots(glassLocation, modelService, cityId);
+        List<Robot> sortedRobotDistanceList = ControllerUtils.locateRobots(glassLocation, modelService, cityId, 1);
 
         // Get closest robot
         Robot closestRobot = sortedRobotDistanceList.get(0);
@@ -43,7 +43,7 @@ public class BusRouteCommand implements Command {
 
         String announcement = "Yes, this bus goes to Central Square.";
 
-        IotDevice device = modelService.getIotDevice(cityId, deviceId);
+        DeviceView device = modelService.getDeviceView(cityId, deviceId);
 
         // Generate sensor output at device
         SensorOutput sensorOutput = new SensorOutput(device.getCurrentCity(), device.getUuid(), announcement);
@@ -5,6 +5,7 @@ import cscie97.smartcity.ledger.LedgerService;
 import cscie97.smartcity.model.*;
 
 import java.util.logging.Level;
+import java.util.regex.Pattern;
 
 /**
  * Author: Stephen Sheldon
@@ -16,6 +17,11 @@ public class ControllerService implements Observer {
      */
     private static ControllerService controllerService;
 
+    /**
+     * Splits an event value into words, keeping quoted text together. Compiled once instead of for every event.
+     */
+    private static final Pattern EVENT_WORDS = Pattern.compile(" (?=([^\"]*\"[^\"]*\")*[^\"]*$)");
+
     /**
      * Reference to model service.
      */
@@ -46,7 +52,7 @@ public class ControllerService implements Observer {
      * Single Factory Method to instantiate a single instance of ControllerService.
      * @return  The ControllerService object that was created.
      */
-    public static ControllerService getInstance() {
+    public static synchronized ControllerService getInstance() {
         if (controllerService == null) {
             controllerService = new ControllerService();
         }
@@ -95,34 +101,36 @@ public class ControllerService implements Observer {
             case "person enters car" -> command = new PersonEntersCarCommand(event, cityModelService);
         }
 
-        // Determine if CO2 Event
+        // Determine if CO2 Event, the triggers are shared by every thread sending events
         if (event.getSensorType().equals(SensorType.CO2METER)) {
-            String cityId = event.getCityId();
-            String deviceId = event.getDeviceId();
-
-            // Check if event is above 1000
-            if (Integer.parseInt(event.getValue()) >= 1000) {
-                // Increment highCo2Level
-                highCo2Level++;
-                // Check if it's 3
-                if (highCo2Level >= 3) {
-                    command = new HighCo2Command(event, cityModelService);
-                    // reset the trigger
-                    highCo2Level = 0;
-                }
-            } else if (Integer.parseInt(event.getValue()) < 1000){
-                // Increment lowCo2Level
-                lowCo2Level++;
-                // Check if it's 3
-                if (lowCo2Level >= 3) {
-                    command = new LowCo2Command(event, cityModelService);
-                    // reset the trigger
-                    lowCo2Level = 0;
+            synchronized (this) {
+                String cityId = event.getCityId();
+                String deviceId = event.getDeviceId();
+
+                // Check if event is above 1000
+                if (Integer.parseInt(event.getValue()) >= 1000) {
+                    // Increment highCo2Level
+                    highCo2Level++;
+                    // Check if it's 3
+                    if (highCo2Level >= 3) {
+                        command = new HighCo2Command(event, cityModelService);
+                        // reset the trigger
+                        highCo2Level = 0;
+                    }
+                } else if (Integer.parseInt(event.getValue()) < 1000){
+                    // Increment lowCo2Level
+                    lowCo2Level++;
+                    // Check if it's 3
+                    if (lowCo2Level >= 3) {
+                        command = new LowCo2Command(event, cityModelService);
+                        // reset the trigger
+                        lowCo2Level = 0;
+                    }
                 }
             }
         }
 
-        splitCommand = event.getValue().split(" (?=([^\"]*\"[^\"]*\")*[^\"]*$)");
+        splitCommand = EVENT_WORDS.split(event.getValue());
 
         // Check if event is parking space event
         if (splitCommand[0].equalsIgnoreCase("vehicle")) {
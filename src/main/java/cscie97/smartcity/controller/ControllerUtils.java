@@ -20,21 +20,22 @@ public class ControllerUtils {
      * @throws CityModelServiceException
      */
     public static List<Robot> locateRobots(Location eventLocation, CityModelService modelService, String cityId) throws CityModelServiceException {
+        return locateRobots(eventLocation, modelService, cityId, Integer.MAX_VALUE);
+    }
 
-        // Get all devices in the city
-        List<IotDevice> deviceList = modelService.getIotDevice(cityId);
-        List<Robot> robotList = new ArrayList<>();
-        Map<Robot, Double> robotDistanceMap = new HashMap<>();
-
-        double distanceBetween;
+    /**
+     * Utility method to locate the robots within a city nearest to an event
+     * @param eventLocation  The location of the emergency
+     * @param modelService       A reference to the model service
+     * @param cityId             The city ID of the city in which the emergency is occurring
+     * @param count              The most robots to return
+     * @return                   The nearest robots in the city sorted by distance from emergency location
+     * @throws CityModelServiceException
+     */
+    public static List<Robot> locateRobots(Location eventLocation, CityModelService modelService, String cityId, int count) throws CityModelServiceException {
 
-        // Search for robots in the city
-        for (IotDevice device : deviceList) {
-            // If a robot is found, add it to our robot list
-            if (device instanceof Robot) {
-                robotList.add((Robot)device);
-            }
-        }
+        // Only the nearest robots are measured and sorted, by the model service's robot index
+        List<Robot> robotList = modelService.nearestRobots(cityId, eventLocation, count, null);
 
         // Check if no robots exists in the city
         if (robotList.isEmpty()) {
@@ -42,44 +43,6 @@ public class ControllerUtils {
             LoggerUtil.log(Level.WARNING, "There are no robots currently in the city", false);
         }
 
-        // Otherwise go through the robot list and calculate the distance the robots
-        // are from the location of the emergency.
-        for (Robot r : robotList) {
-            distanceBetween = CityModelService.distance(eventLocation.getLatitude(), r.getLocation().getLatitude(),
-                    eventLocation.getLongitude(), r.getLocation().getLongitude(), 0, 0);
-            // Put in robot distance map
-
-            robotDistanceMap.put(r, distanceBetween);
-        }
-
-        // Now sort the robot distance map based on values
-        return sortRobots(robotDistanceMap);
-    }
-
-    /**
-     * Sorts Robot IoT Devices by distance.
-     * Reference: https://www.geeksforgeeks.org/sorting-a-hashmap-according-to-values/
-     * @param robotDistanceMap A list of robots and their distance from emergency
-     * @return A sorted Map of Robots and their distance from the emergency
-     */
-    private static List<Robot> sortRobots(Map<Robot, Double> robotDistanceMap) {
-        // Create a list from the hashmap entries
-        List<Map.Entry<Robot, Double>> list = new LinkedList<>(robotDistanceMap.entrySet());
-
-        // Sort the list
-        Collections.sort(list, new Comparator<Map.Entry<Robot,Double> >() {
-            public int compare(Map.Entry<Robot, Double> r1,
-                               Map.Entry<Robot, Double> r2) {
-                return (r1.getValue().compareTo(r2.getValue()));
-            }
-        });
-
-        // Convert List of map entries into a normal list of robots
-        List<Robot> tempSortedRobotList = new ArrayList<>();
-        for (Map.Entry<Robot, Double> entry : list) {
-            tempSortedRobotList.add(entry.getKey());
-        }
-
-        return tempSortedRobotList;
+        return robotList;
     }
 }
@@ -63,17 +63,17 @@ public class LitterCommand implements Command {
 
         List<Robot> sortedRobotDistanceList;
 
-        // Get location of litter
-        Location litterLocation = modelService.getIotDevice(cityId, deviceId).getLocation();
-
         // Get reporting IoT Device
-        IotDevice device = modelService.getIotDevice(cityId, deviceId);
+        DeviceView device = modelService.getDeviceView(cityId, deviceId);
+
+        // Get location of litter
+        Location litterLocation = new Location(device.getLatitude(), device.getLongitude());
 
         // Create sensor output
         SensorOutput litterWarning = new SensorOutput(device.getCurrentCity(), device.getUuid(), "Please do not litter.");
 
         // Retrieve list of robots in city sorted by distance from event location
-        sortedRobotDistanceList = ControllerUtils.locateRobots(litterLocation, modelService, cityId);
+        sortedRobotDistanceList = ControllerUtils.locateRobots(litterLocation, modelService, cityId, 1);
 
         // Get closest robot
         Robot nearestRobot = sortedRobotDistanceList.get(0);
@@ -93,23 +93,21 @@ public class LitterCommand implements Command {
         String uniqueID = UUID.randomUUID().toString();
 
         // Get Person who littered
-        Person litterbug = modelService.getPerson(personId);
+        PersonView litterbug = modelService.getPersonView(personId);
 
         // Check if person is a visitor
-        if (litterbug instanceof Visitor) {
+        if (!litterbug.isResident()) {
             // Visitors don't have ledger accounts
             LoggerUtil.log(Level.INFO, "Visitor " + litterbug.getUuid() + " has been caught littering at lat " +
                     litterLocation.getLatitude() + " long " + litterLocation.getLongitude(), true);
             throw new CityModelServiceException("Litter event", "Unable to charge visitor littering fine. Visitor has no ledger account.");
         }
 
-        Resident residentLitterbug = (Resident) litterbug;
-
         // Get ledger account of the person who littered
-        String litterbugLedgerAccount = residentLitterbug.getBlockchainAccountAddress();
+        String litterbugLedgerAccount = litterbug.getBlockchainAccountAddress();
 
         // Get the ledger account of the city
-        String cityLedgerAccount = modelService.getCity(cityId).getBlockchainAccount();
+        String cityLedgerAccount = modelService.getCityView(cityId).getBlockchainAccount();
 
         // Charge the person's account 50 units for litter
         Transaction transaction = ledgerService.createTransaction(uniqueID, 50, 10, "Fee for littering", litterbugLedgerAccount, cityLedgerAccount);
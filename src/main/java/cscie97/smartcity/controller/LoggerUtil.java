@@ -35,7 +35,7 @@ public class LoggerUtil {
      * @return A new logger object if none exists, otherwise the logger
      *         object that does exist.
      */
-    private static Logger getLogger() {
+    private static synchronized Logger getLogger() {
         if (logger == null) {
             try {
                 new LoggerUtil();
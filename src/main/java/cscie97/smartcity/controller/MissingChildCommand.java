@@ -58,10 +58,10 @@ public class MissingChildCommand implements Command {
         Person person = modelService.getPerson(missingPersonId);
 
         // Retrieve reporting person
-        Person reportingPerson = modelService.getPerson(personId);
+        PersonView reportingPerson = modelService.getPersonView(personId);
 
         // Get reporting IoT Device
-        IotDevice reportingDevice = modelService.getIotDevice(cityId, deviceId);
+        DeviceView reportingDevice = modelService.getDeviceView(cityId, deviceId);
 
         // Retrieve person location
         Location personLocation = person.getLocation();
@@ -75,7 +75,7 @@ public class MissingChildCommand implements Command {
 
         // Find robot nearest to person
         // Get sorted list of robots
-        List<Robot> sortedRobotDistanceList = ControllerUtils.locateRobots(personLocation, modelService, cityId);
+        List<Robot> sortedRobotDistanceList = ControllerUtils.locateRobots(personLocation, modelService, cityId, 1);
 
         // Make sure there's a robot to help move person
         if (sortedRobotDistanceList.isEmpty()) {
@@ -86,7 +86,7 @@ public class MissingChildCommand implements Command {
         Robot robot = sortedRobotDistanceList.get(0);
 
         // Get reporting person location
-        Location reportingPersonLocation = reportingPerson.getLocation();
+        Location reportingPersonLocation = new Location(reportingPerson.getLatitude(), reportingPerson.getLongitude());
 
         LoggerUtil.log(Level.INFO, "Robot " + robot.getUuid() + " is retrieving " + person.getUuid(), true);
 
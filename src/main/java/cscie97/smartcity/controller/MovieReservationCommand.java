@@ -61,14 +61,13 @@ public class MovieReservationCommand implements Command {
     public void execute() throws CityModelServiceException, LedgerException, ControllerServiceException {
 
         // Get reporting device
-        IotDevice reportingDevice = modelService.getIotDevice(cityId, deviceId);
+        DeviceView reportingDevice = modelService.getDeviceView(cityId, deviceId);
 
         // Get the person
-        Person person = modelService.getPerson(personId);
+        PersonView resident = modelService.getPersonView(personId);
 
         // Check if person is a resident
-        if (person instanceof Resident) {
-            Resident resident = (Resident) person;
+        if (resident.isResident()) {
 
             // Create UUID
             String uniqueID = UUID.randomUUID().toString();
@@ -81,7 +80,7 @@ public class MovieReservationCommand implements Command {
             }
 
             // Get ledger account for city
-            String cityLedgerAccount = modelService.getCity(cityId).getBlockchainAccount();
+            String cityLedgerAccount = modelService.getCityView(cityId).getBlockchainAccount();
 
             // Create transaction
             Transaction transaction = ledgerService.createTransaction(uniqueID, 10, 10, "Movie reservation fee", resident.getBlockchainAccountAddress(), cityLedgerAccount);
@@ -51,12 +51,13 @@ public class NaturalDisasterCommand implements Command {
     @Override
     public void execute() throws CityModelServiceException {
 
-        Location emergencyLocation = modelService.getIotDevice(cityId, deviceId).getLocation();
+        DeviceView reportingDevice = modelService.getDeviceView(cityId, deviceId);
+        Location emergencyLocation = new Location(reportingDevice.getLatitude(), reportingDevice.getLongitude());
 
-        List<IotDevice> deviceList = modelService.getIotDevice(cityId);
+        List<DeviceView> deviceList = modelService.getDeviceViews(cityId);
 
         // Make announcement over all IoT Devices in the city using sensor output
-        for (IotDevice device : deviceList) {
+        for (DeviceView device : deviceList) {
             String announcement = "There is a " + emergencyType + " in " + device.getCurrentCity() + " please find shelter immediately";
             // Create sensor output and send it to IoT device
             SensorOutput announcementOutput = new SensorOutput(device.getCurrentCity(), device.getUuid(),
@@ -87,7 +87,7 @@ public class ParkingEventCommand implements Command {
         String uniqueID = UUID.randomUUID().toString();
 
         // Create transaction to charge account
-        Transaction transaction = ledgerService.createTransaction(uniqueID, parkingFee, 10, "Parking Space fee",  vehicleAccount, modelService.getCity(cityId).getBlockchainAccount());
+        Transaction transaction = ledgerService.createTransaction(uniqueID, parkingFee, 10, "Parking Space fee",  vehicleAccount, modelService.getCityView(cityId).getBlockchainAccount());
 
         // Process the transaction
         ledgerService.processTransaction(transaction);
@@ -43,7 +43,8 @@ public class PersonSeenCommand implements Command {
     public void execute() throws CityModelServiceException {
 
         // Get IoT device that reported event
-        Location eventLocation = modelService.getIotDevice(cityId, deviceId).getLocation();
+        DeviceView reportingDevice = modelService.getDeviceView(cityId, deviceId);
+        Location eventLocation = new Location(reportingDevice.getLatitude(), reportingDevice.getLongitude());
         Location updatedPersonLocation = new Location(eventLocation.getLatitude(), eventLocation.getLongitude());
 
         // Get person
@@ -50,15 +50,15 @@ public class TrafficAccidentCommand implements Command {
     @Override
     public void execute() throws CityModelServiceException {
 
-        Location emergencyLocation = modelService.getIotDevice(cityId, deviceId).getLocation();
+        DeviceView reportingDevice = modelService.getDeviceView(cityId, deviceId);
 
-        IotDevice reportingDevice = modelService.getIotDevice(cityId, deviceId);
+        Location emergencyLocation = new Location(reportingDevice.getLatitude(), reportingDevice.getLongitude());
         // Generate announcement at the reporting device
         SensorOutput announcementOutput = new SensorOutput(reportingDevice.getCurrentCity(), reportingDevice.getUuid(), "Stay calm, help is on its way.");
         modelService.createSensorOutput(announcementOutput);
 
         // Get sorted list of robots
-        List<Robot> sortedRobotDistanceList = ControllerUtils.locateRobots(emergencyLocation, modelService, cityId);
+        List<Robot> sortedRobotDistanceList = ControllerUtils.locateRobots(emergencyLocation, modelService, cityId, 2);
 
         // Get two closes robots to emergency
         Robot robot1 = sortedRobotDistanceList.get(0);
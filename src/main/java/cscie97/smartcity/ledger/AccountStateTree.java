@@ -0,0 +1,528 @@
+package cscie97.smartcity.ledger;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.*;
+
+/**
+ * Author: Stephen Sheldon
+ *
+ * Persistent, copy-on-write search tree of accounts keyed by address. Updating the tree returns a
+ * new tree that shares every node not on the path to the updated accounts, so each block can
+ * keep its own immutable account state while only copying the accounts its transactions touched.
+ *
+ * The shape of the tree only depends on the addresses in it, not on the order they were added
+ * in, so the digest of two trees holding the same accounts is the same. Each address has a level,
+ * the number of zero groups of LEVEL_BITS bits at the end of the first long of its SHA-256. A
+ * leaf ends after every address of level 1 or more, and a node of height h ends after the child
+ * whose last address has a level above h. The last address of the tree ends nothing, and the
+ * root is as high as the highest level of any other address. Nodes hold 2^LEVEL_BITS entries on
+ * average, but since the size of a node is left to the addresses it has no fixed limit.
+ *
+ * The tree keeps the address and balance of each account rather than the Account object, and
+ * every read returns a new Account. Changing an account that was put into the tree or read from
+ * it never changes the tree, so the trees shared by later blocks can't be corrupted by a caller.
+ * A changed account is put back with with() or withAll().
+ **/
+public class AccountStateTree extends AbstractMap<String, Account> {
+
+    /**
+     * Bits of the hash of an address per level, about one address in 2^LEVEL_BITS ends a node.
+     */
+    private static final int LEVEL_BITS = 4;
+
+    /**
+     * Digest each thread hashes addresses with to find their level, kept apart from the digests callers pass in.
+     */
+    private static final ThreadLocal<MessageDigest> LEVEL_DIGEST = ThreadLocal.withInitial(HashUtil::sha256);
+
+    /**
+     * The empty tree.
+     */
+    private static final AccountStateTree EMPTY = new AccountStateTree(new Leaf(new String[0], new int[0]), 0, 0);
+
+    /**
+     * The root node of the tree.
+     */
+    private final TreeNode root;
+
+    /**
+     * Height of the root node, 0 when the root is a leaf.
+     */
+    private final int height;
+
+    /**
+     * Number of accounts in the tree.
+     */
+    private final int size;
+
+    private AccountStateTree(TreeNode root, int height, int size) {
+        this.root = root;
+        this.height = height;
+        this.size = size;
+    }
+
+    /**
+     * Returns the empty account state.
+     * @return An account state with no accounts.
+     */
+    public static AccountStateTree empty() {
+        return EMPTY;
+    }
+
+    /**
+     * Returns a new tree with the given account added, replacing any account with the same address.
+     * @param account The account to add.
+     * @return        The updated tree, this tree is left unchanged.
+     */
+    public AccountStateTree with(Account account) {
+        String last = size == 0 ? null : root.lastKey();
+        Insert insert = new Insert(account.getAddress(), account.getBalance(),
+                last != null && account.getAddress().compareTo(last) > 0 ? last : null);
+
+        TreeNode[] result = root.put(insert, height);
+        int newSize = insert.added ? size + 1 : size;
+
+        if (result.length == 1) {
+            return new AccountStateTree(result[0], height, newSize);
+        }
+
+        // The root was split, so the tree grows to the level of the address it was split after.
+        // Each half gets a node of its own on the levels in between.
+        TreeNode left = result[0];
+        TreeNode right = result[1];
+        int newHeight = height + 1;
+        while (insert.splitLevel() > newHeight) {
+            left = new Internal(new String[0], new TreeNode[] {left});
+            right = new Internal(new String[0], new TreeNode[] {right});
+            newHeight++;
+        }
+        return new AccountStateTree(new Internal(new String[] {left.lastKey()}, new TreeNode[] {left, right}), newHeight, newSize);
+    }
+
+    /**
+     * Returns a new tree with all the given accounts added. The shape of the tree doesn't depend
+     * on the order of the collection.
+     * @param accounts The accounts to add.
+     * @return         The updated tree, this tree is left unchanged.
+     */
+    public AccountStateTree withAll(Collection<Account> accounts) {
+        AccountStateTree tree = this;
+        for (Account account : accounts) {
+            tree = tree.with(account);
+        }
+        return tree;
+    }
+
+    /**
+     * Digest of every account address and balance in the tree. Digests are cached on the
+     * immutable nodes, so only nodes created since the last digest are hashed again. Since the
+     * shape of the tree only depends on its addresses, trees holding the same accounts have the
+     * same digest however they were built.
+     * @param digest The digest to use.
+     * @return       The 32 byte account state digest.
+     */
+    public byte[] digest(MessageDigest digest) {
+        return root.digest(digest);
+    }
+
+    /**
+     * Sum of the balances of every account in the tree. Like the digest, totals are cached
+     * on the immutable nodes so only new nodes are summed again.
+     * @return The total balance.
+     */
+    public long totalBalance() {
+        return root.totalBalance();
+    }
+
+    @Override
+    public Account get(Object key) {
+        if (!(key instanceof String)) {
+            return null;
+        }
+        return root.get((String) key);
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return get(key) != null;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public Set<Entry<String, Account>> entrySet() {
+        return new AbstractSet<>() {
+            @Override
+            public Iterator<Entry<String, Account>> iterator() {
+                return new EntryIterator(root);
+            }
+
+            @Override
+            public int size() {
+                return size;
+            }
+        };
+    }
+
+    /**
+     * Returns the level of an address.
+     * @param address The account address.
+     * @return        The number of zero groups of LEVEL_BITS bits at the end of the first long of its hash.
+     */
+    static int level(String address) {
+        long bits = ByteBuffer.wrap(LEVEL_DIGEST.get().digest(address.getBytes(StandardCharsets.UTF_8))).getLong();
+        int level = 0;
+        while (level < Long.SIZE / LEVEL_BITS && (bits & ((1 << LEVEL_BITS) - 1)) == 0) {
+            bits >>>= LEVEL_BITS;
+            level++;
+        }
+        return level;
+    }
+
+    /**
+     * Returns the index of the child of an internal node that may contain the given key.
+     * @param keys The separator keys of the node.
+     * @param key  The key to find.
+     * @return     The child index.
+     */
+    private static int childIndex(String[] keys, String key) {
+        int index = Arrays.binarySearch(keys, key);
+        return index >= 0 ? index : -index - 1;
+    }
+
+    /**
+     * An account being put into the tree. A new address can only make the nodes holding one
+     * address end after it: the new address itself, or the last address of the tree when the
+     * new one is added after it and takes its place as the address that ends nothing.
+     */
+    private static final class Insert {
+
+        private final String key;
+
+        private final int balance;
+
+        /**
+         * The address the nodes may be split after, the new address or the old last address.
+         */
+        private final String splitKey;
+
+        /**
+         * True if the new address is added after the old last address of the tree.
+         */
+        private final boolean appended;
+
+        /**
+         * Level of splitKey, -1 until it is needed since replacing an account never splits a node.
+         */
+        private int splitLevel = -1;
+
+        /**
+         * Set to true if the address wasn't already in the tree.
+         */
+        private boolean added;
+
+        Insert(String key, int balance, String oldLast) {
+            this.key = key;
+            this.balance = balance;
+            this.appended = oldLast != null;
+            this.splitKey = appended ? oldLast : key;
+        }
+
+        int splitLevel() {
+            if (splitLevel < 0) {
+                splitLevel = level(splitKey);
+            }
+            return splitLevel;
+        }
+    }
+
+    /**
+     * Node of the tree. Nodes are never changed once they have been created.
+     */
+    private abstract static class TreeNode {
+
+        /**
+         * Cached digest of this node. Volatile since validation reads it from several threads.
+         */
+        private volatile byte[] digest;
+
+        /**
+         * Cached sum of the balances below this node, Long.MIN_VALUE until computed.
+         */
+        private volatile long totalBalance = Long.MIN_VALUE;
+
+        abstract Account get(String key);
+
+        /**
+         * Copy this node with the account inserted.
+         * @param insert The account.
+         * @param height The height of this node.
+         * @return       The new node, or the two halves if the node had to be split after the split key.
+         */
+        abstract TreeNode[] put(Insert insert, int height);
+
+        abstract String lastKey();
+
+        abstract void computeDigest(MessageDigest digest);
+
+        abstract long computeTotalBalance();
+
+        long totalBalance() {
+            if (totalBalance == Long.MIN_VALUE) {
+                totalBalance = computeTotalBalance();
+            }
+            return totalBalance;
+        }
+
+        byte[] digest(MessageDigest digest) {
+            byte[] cached = this.digest;
+            if (cached == null) {
+                computeDigest(digest);
+                cached = digest.digest();
+                this.digest = cached;
+            }
+            return cached;
+        }
+    }
+
+    private static final class Leaf extends TreeNode {
+
+        private final String[] keys;
+
+        /**
+         * Balance of the account at the same index in keys.
+         */
+        private final int[] balances;
+
+        Leaf(String[] keys, int[] balances) {
+            this.keys = keys;
+            this.balances = balances;
+        }
+
+        /**
+         * Returns a new account with the address and balance at the given index.
+         */
+        Account account(int index) {
+            Account account = new Account(keys[index]);
+            account.setBalance(balances[index]);
+            return account;
+        }
+
+        @Override
+        Account get(String key) {
+            int index = Arrays.binarySearch(keys, key);
+            return index >= 0 ? account(index) : null;
+        }
+
+        @Override
+        TreeNode[] put(Insert insert, int height) {
+            int index = Arrays.binarySearch(keys, insert.key);
+
+            // Replace the balance of an existing account
+            if (index >= 0) {
+                int[] newBalances = balances.clone();
+                newBalances[index] = insert.balance;
+                return new TreeNode[] {new Leaf(keys, newBalances)};
+            }
+
+            insert.added = true;
+            index = -index - 1;
+
+            String[] newKeys = new String[keys.length + 1];
+            int[] newBalances = new int[balances.length + 1];
+            System.arraycopy(keys, 0, newKeys, 0, index);
+            System.arraycopy(balances, 0, newBalances, 0, index);
+            newKeys[index] = insert.key;
+            newBalances[index] = insert.balance;
+            System.arraycopy(keys, index, newKeys, index + 1, keys.length - index);
+            System.arraycopy(balances, index, newBalances, index + 1, balances.length - index);
+
+            // An address of level 1 or more ends its leaf unless it is the last one
+            int split = insert.appended ? index - 1 : index;
+            if (split == newKeys.length - 1 || insert.splitLevel() == 0) {
+                return new TreeNode[] {new Leaf(newKeys, newBalances)};
+            }
+
+            return new TreeNode[] {
+                    new Leaf(Arrays.copyOfRange(newKeys, 0, split + 1), Arrays.copyOfRange(newBalances, 0, split + 1)),
+                    new Leaf(Arrays.copyOfRange(newKeys, split + 1, newKeys.length), Arrays.copyOfRange(newBalances, split + 1, newBalances.length))
+            };
+        }
+
+        @Override
+        String lastKey() {
+            return keys[keys.length - 1];
+        }
+
+        @Override
+        void computeDigest(MessageDigest digest) {
+            ByteBuffer lengthAndBalance = ByteBuffer.allocate(2 * Integer.BYTES);
+            byte[] address;
+
+            digest.reset();
+            for (int i = 0; i < keys.length; i++) {
+                address = keys[i].getBytes(StandardCharsets.UTF_8);
+                lengthAndBalance.clear();
+                lengthAndBalance.putInt(address.length);
+                lengthAndBalance.putInt(balances[i]);
+                digest.update(lengthAndBalance.array());
+                digest.update(address);
+            }
+        }
+
+        @Override
+        long computeTotalBalance() {
+            long total = 0;
+            for (int balance : balances) {
+                total += balance;
+            }
+            return total;
+        }
+    }
+
+    private static final class Internal extends TreeNode {
+
+        /**
+         * Separator keys, keys[i] is the last key of children[i].
+         */
+        private final String[] keys;
+
+        private final TreeNode[] children;
+
+        Internal(String[] keys, TreeNode[] children) {
+            this.keys = keys;
+            this.children = children;
+        }
+
+        @Override
+        Account get(String key) {
+            return children[childIndex(keys, key)].get(key);
+        }
+
+        @Override
+        TreeNode[] put(Insert insert, int height) {
+            int index = childIndex(keys, insert.key);
+            TreeNode[] result = children[index].put(insert, height - 1);
+
+            if (result.length == 1) {
+                TreeNode[] newChildren = children.clone();
+                newChildren[index] = result[0];
+                return new TreeNode[] {new Internal(keys, newChildren)};
+            }
+
+            // The child was split so add the new right half after it
+            String[] newKeys = new String[keys.length + 1];
+            TreeNode[] newChildren = new TreeNode[children.length + 1];
+            System.arraycopy(keys, 0, newKeys, 0, index);
+            newKeys[index] = result[0].lastKey();
+            System.arraycopy(keys, index, newKeys, index + 1, keys.length - index);
+            System.arraycopy(children, 0, newChildren, 0, index);
+            newChildren[index] = result[0];
+            newChildren[index + 1] = result[1];
+            System.arraycopy(children, index + 1, newChildren, index + 2, children.length - index - 1);
+
+            // The child was split after the split key, this node ends there too if its level is above this height
+            if (insert.splitLevel() <= height) {
+                return new TreeNode[] {new Internal(newKeys, newChildren)};
+            }
+
+            // newKeys[index] moves up to the parent as the last key of the left half
+            return new TreeNode[] {
+                    new Internal(Arrays.copyOfRange(newKeys, 0, index), Arrays.copyOfRange(newChildren, 0, index + 1)),
+                    new Internal(Arrays.copyOfRange(newKeys, index + 1, newKeys.length), Arrays.copyOfRange(newChildren, index + 1, newChildren.length))
+            };
+        }
+
+        @Override
+        String lastKey() {
+            return children[children.length - 1].lastKey();
+        }
+
+        @Override
+        void computeDigest(MessageDigest digest) {
+            byte[][] childDigests = new byte[children.length][];
+            for (int i = 0; i < children.length; i++) {
+                childDigests[i] = children[i].digest(digest);
+            }
+
+            digest.reset();
+            for (byte[] childDigest : childDigests) {
+                digest.update(childDigest);
+            }
+        }
+
+        @Override
+        long computeTotalBalance() {
+            long total = 0;
+            for (TreeNode child : children) {
+                total += child.totalBalance();
+            }
+            return total;
+        }
+    }
+
+    /**
+     * In order iterator over the leaves of the tree.
+     */
+    private static final class EntryIterator implements Iterator<Entry<String, Account>> {
+
+        private final Deque<Internal> parents = new ArrayDeque<>();
+
+        private final Deque<Integer> positions = new ArrayDeque<>();
+
+        private Leaf leaf;
+
+        private int index;
+
+        EntryIterator(TreeNode root) {
+            descend(root);
+        }
+
+        private void descend(TreeNode node) {
+            while (node instanceof Internal) {
+                parents.push((Internal) node);
+                positions.push(0);
+                node = ((Internal) node).children[0];
+            }
+            leaf = (Leaf) node;
+            index = 0;
+        }
+
+        private void advance() {
+            while (leaf != null && index >= leaf.keys.length) {
+                leaf = null;
+                while (!parents.isEmpty()) {
+                    Internal parent = parents.peek();
+                    int next = positions.pop() + 1;
+                    if (next < parent.children.length) {
+                        positions.push(next);
+                        descend(parent.children[next]);
+                        break;
+                    }
+                    parents.pop();
+                }
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            advance();
+            return leaf != null;
+        }
+
+        @Override
+        public Entry<String, Account> next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            Entry<String, Account> entry = new SimpleImmutableEntry<>(leaf.keys[index], leaf.account(index));
+            index++;
+            return entry;
+        }
+    }
+}
@@ -0,0 +1,66 @@
+package cscie97.smartcity.ledger;
+
+import java.util.List;
+
+/**
+ * Author: Stephen Sheldon
+ *
+ * One page of the committed transactions an account paid or received, returned by
+ * LedgerService.getAccountTransactions().
+ **/
+public class AccountStatement {
+
+    /**
+     * Address of the account.
+     */
+    private final String address;
+
+    /**
+     * The account's transactions in chain order.
+     */
+    private final List<Transaction> transactions;
+
+    /**
+     * Block the next page starts at, 0 if the account had no more committed transactions.
+     */
+    private final int nextBlock;
+
+    /**
+     * Constructor method.
+     * @param address      The address of the account.
+     * @param transactions The account's transactions in chain order.
+     * @param nextBlock    The block the next page starts at, 0 if there are no more transactions.
+     */
+    public AccountStatement(String address, List<Transaction> transactions, int nextBlock) {
+        this.address = address;
+        this.transactions = transactions;
+        this.nextBlock = nextBlock;
+    }
+
+    public String getAddress() {
+        return address;
+    }
+
+    public List<Transaction> getTransactions() {
+        return transactions;
+    }
+
+    public int getNextBlock() {
+        return nextBlock;
+    }
+
+    /**
+     * Returns true if there is another page of transactions.
+     * @return True if getNextBlock() is a block to continue from.
+     */
+    public boolean hasMore() {
+        return nextBlock != 0;
+    }
+
+    @Override
+    public String toString() {
+        return "address=" + address +
+                "\n transactions=" + transactions +
+                "\n nextBlock=" + (hasMore() ? nextBlock : "none");
+    }
+}
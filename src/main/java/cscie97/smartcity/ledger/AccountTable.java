@@ -0,0 +1,155 @@
+package cscie97.smartcity.ledger;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Author: Stephen Sheldon
+ *
+ * Table of the accounts of the open block. Each address is given a dense int ID when its
+ * account is created and the balances are kept in primitive arrays indexed by that ID, so
+ * processing a transaction neither boxes balances nor compares addresses. Account objects
+ * are only created when a block is committed and when accounts are handed out by the ledger.
+ *
+ * The arrays are split into fixed size pages that are never copied, so the table can grow
+ * while other threads update balances. Accounts are created one at a time and lookups don't
+ * lock. A balance is only read and written while holding the lock of its account.
+ **/
+class AccountTable {
+
+    /**
+     * ID returned for an address that doesn't have an account.
+     */
+    static final int NO_ACCOUNT = -1;
+
+    /**
+     * Each page holds 2^PAGE_BITS accounts.
+     */
+    private static final int PAGE_BITS = 12;
+
+    private static final int PAGE_SIZE = 1 << PAGE_BITS;
+
+    private static final int PAGE_MASK = PAGE_SIZE - 1;
+
+    /**
+     * ID of each address. An ID is only put here once its address and balance slots exist.
+     */
+    private final ConcurrentHashMap<String, Integer> ids;
+
+    /**
+     * Address of each account, indexed by ID.
+     */
+    private volatile String[][] addresses;
+
+    /**
+     * Balance of each account with every accepted transaction of the open block applied, indexed by ID.
+     */
+    private volatile long[][] balances;
+
+    /**
+     * Number of the last block that changed each account, indexed by ID.
+     */
+    private volatile int[][] changedIn;
+
+    /**
+     * Number of accounts, only changed while holding the table's lock.
+     */
+    private volatile int size;
+
+    /**
+     * Constructor method.
+     */
+    AccountTable() {
+        ids = new ConcurrentHashMap<>();
+        addresses = new String[0][];
+        balances = new long[0][];
+        changedIn = new int[0][];
+    }
+
+    /**
+     * Create an account with a balance of 0.
+     * @param address The address of the account.
+     * @return        The ID of the new account, or NO_ACCOUNT if an account with the address exists.
+     */
+    synchronized int create(String address) {
+        if (ids.containsKey(address)) {
+            return NO_ACCOUNT;
+        }
+
+        int id = size;
+        if ((id & PAGE_MASK) == 0) {
+            // Add a page, the pages already there are shared with the new arrays
+            int pages = addresses.length + 1;
+            String[][] newAddresses = Arrays.copyOf(addresses, pages);
+            long[][] newBalances = Arrays.copyOf(balances, pages);
+            int[][] newChangedIn = Arrays.copyOf(changedIn, pages);
+            newAddresses[pages - 1] = new String[PAGE_SIZE];
+            newBalances[pages - 1] = new long[PAGE_SIZE];
+            newChangedIn[pages - 1] = new int[PAGE_SIZE];
+            addresses = newAddresses;
+            balances = newBalances;
+            changedIn = newChangedIn;
+        }
+
+        addresses[id >>> PAGE_BITS][id & PAGE_MASK] = address;
+        size = id + 1;
+        ids.put(address, id);
+        return id;
+    }
+
+    /**
+     * Returns the ID of an account.
+     * @param address The address of the account.
+     * @return        The ID, or NO_ACCOUNT if there is no account with the address.
+     */
+    int getId(String address) {
+        Integer id = ids.get(address);
+        return id == null ? NO_ACCOUNT : id;
+    }
+
+    String getAddress(int id) {
+        return addresses[id >>> PAGE_BITS][id & PAGE_MASK];
+    }
+
+    long getBalance(int id) {
+        return balances[id >>> PAGE_BITS][id & PAGE_MASK];
+    }
+
+    void setBalance(int id, long balance) {
+        balances[id >>> PAGE_BITS][id & PAGE_MASK] = balance;
+    }
+
+    void addBalance(int id, long amount) {
+        balances[id >>> PAGE_BITS][id & PAGE_MASK] += amount;
+    }
+
+    /**
+     * Record that a block changed an account.
+     * @param id          The account ID.
+     * @param blockNumber The number of the block.
+     * @return            True if this is the first change of the account by the block.
+     */
+    boolean markChanged(int id, int blockNumber) {
+        int[] page = changedIn[id >>> PAGE_BITS];
+        if (page[id & PAGE_MASK] == blockNumber) {
+            return false;
+        }
+        page[id & PAGE_MASK] = blockNumber;
+        return true;
+    }
+
+    /**
+     * Returns a new Account object with the current balance of an account.
+     * @param id The account ID.
+     * @return   The account.
+     */
+    Account toAccount(int id) {
+        Account account = new Account(getAddress(id));
+        account.setBalance((int) getBalance(id));
+        return account;
+    }
+
+    int size() {
+        return size;
+    }
+}
@@ -0,0 +1,138 @@
+package cscie97.smartcity.ledger;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Author: Stephen Sheldon
+ *
+ * Index from account address to the positions of the committed transactions the account paid
+ * or received, in chain order. Positions are packed with TransactionIndex.pack(), so a statement
+ * for one account only reads the blocks holding its transactions.
+ *
+ * Blocks are added one at a time in block order, lookups don't lock.
+ **/
+class AccountTransactionIndex {
+
+    /**
+     * Transaction positions of each account, by address.
+     */
+    private final ConcurrentHashMap<String, Positions> accounts;
+
+    /**
+     * Constructor method.
+     */
+    AccountTransactionIndex() {
+        accounts = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * Add the positions of the transactions of a committed block. Called once per block, in block order.
+     * @param blockNumber  The number of the block.
+     * @param transactions The transactions of the block.
+     */
+    synchronized void add(int blockNumber, List<Transaction> transactions) {
+        for (int i = 0; i < transactions.size(); i++) {
+            Transaction transaction = transactions.get(i);
+            add(transaction.getPayerAddress(), transaction.getReceiverAddress(), blockNumber, i);
+        }
+    }
+
+    /**
+     * Add the position of one transaction. The caller adds transactions in chain order.
+     * @param payer       The address of the paying account.
+     * @param receiver    The address of the receiving account.
+     * @param blockNumber The number of the block.
+     * @param offset      The offset of the transaction in the block.
+     */
+    synchronized void add(String payer, String receiver, int blockNumber, int offset) {
+        long position = TransactionIndex.pack(blockNumber, offset);
+        accounts.computeIfAbsent(payer, address -> new Positions()).add(position);
+        if (!receiver.equals(payer)) {
+            accounts.computeIfAbsent(receiver, address -> new Positions()).add(position);
+        }
+    }
+
+    /**
+     * Returns a page of the positions of an account's transactions starting at the given block. The
+     * page holds at most limit positions and only whole blocks, so the next page starts at the block
+     * after the last one returned. A page holds more than limit positions only when the account has
+     * more than limit transactions in its first block.
+     * @param address   The account address.
+     * @param fromBlock The first block of the page.
+     * @param limit     The most positions to return, at least 1.
+     * @return          The positions in chain order, empty if the account has no transactions from the block on.
+     */
+    long[] getPage(String address, int fromBlock, int limit) {
+        Positions positions = accounts.get(address);
+        if (positions == null) {
+            return new long[0];
+        }
+
+        int n = positions.count;
+        long[] values = positions.values;
+
+        int start = Positions.indexOf(values, n, fromBlock);
+        // start + limit could overflow for a limit near Integer.MAX_VALUE
+        int end = start + Math.min(limit, n - start);
+
+        // Don't split a block between two pages
+        if (end < n && end > start && TransactionIndex.blockNumber(values[end]) == TransactionIndex.blockNumber(values[end - 1])) {
+            int lastBlock = TransactionIndex.blockNumber(values[end - 1]);
+            if (TransactionIndex.blockNumber(values[start]) == lastBlock) {
+                while (end < n && TransactionIndex.blockNumber(values[end]) == lastBlock) {
+                    end++;
+                }
+            } else {
+                while (TransactionIndex.blockNumber(values[end - 1]) == lastBlock) {
+                    end--;
+                }
+            }
+        }
+        return Arrays.copyOfRange(values, start, end);
+    }
+
+    /**
+     * Returns true if the account has a transaction in the given block or a later one.
+     * @param address   The account address.
+     * @param fromBlock The block number.
+     * @return          True if there are more transactions.
+     */
+    boolean hasTransactionsFrom(String address, int fromBlock) {
+        Positions positions = accounts.get(address);
+        if (positions == null) {
+            return false;
+        }
+        int n = positions.count;
+        return Positions.indexOf(positions.values, n, fromBlock) < n;
+    }
+
+    /**
+     * Positions of one account in increasing order. Only appended to by the thread adding blocks.
+     * The array may be replaced by a larger copy, but every entry below count is the same in both.
+     */
+    private static final class Positions {
+
+        private long[] values = new long[4];
+
+        private volatile int count;
+
+        void add(long position) {
+            int n = count;
+            if (n == values.length) {
+                values = Arrays.copyOf(values, n * 2);
+            }
+            values[n] = position;
+            count = n + 1;
+        }
+
+        /**
+         * Returns the index of the first position in the block or after it.
+         */
+        static int indexOf(long[] values, int n, int blockNumber) {
+            int index = Arrays.binarySearch(values, 0, n, TransactionIndex.pack(blockNumber, 0));
+            return index < 0 ? -index - 1 : index;
+        }
+    }
+}
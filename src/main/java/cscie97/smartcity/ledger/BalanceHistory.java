@@ -0,0 +1,103 @@
+package cscie97.smartcity.ledger;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Author: Stephen Sheldon
+ *
+ * Balance of every account as of any committed block. Each account keeps the numbers of the
+ * blocks that changed it with its balance after each of them, so the balance as of a block is
+ * found by a binary search over the account's changes, and the history grows with the number
+ * of account changes instead of with the number of blocks times the number of accounts.
+ *
+ * Blocks are recorded one at a time in block order, lookups don't lock.
+ **/
+class BalanceHistory {
+
+    /**
+     * Changes of each account, by address.
+     */
+    private final ConcurrentHashMap<String, Changes> accounts;
+
+    /**
+     * Number of changes recorded over all accounts.
+     */
+    private volatile long changeCount;
+
+    /**
+     * Constructor method.
+     */
+    BalanceHistory() {
+        accounts = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * Record the accounts a committed block changed. Called once per block, in block order.
+     * @param blockNumber     The number of the block.
+     * @param changedAccounts The accounts with their balances after the block.
+     */
+    synchronized void record(int blockNumber, Collection<Account> changedAccounts) {
+        for (Account account : changedAccounts) {
+            accounts.computeIfAbsent(account.getAddress(), address -> new Changes()).add(blockNumber, account.getBalance());
+        }
+        changeCount += changedAccounts.size();
+    }
+
+    /**
+     * Returns the balance of an account after the given block.
+     * @param address     The account address.
+     * @param blockNumber The block number.
+     * @return            The balance, or null if the account wasn't created by that block.
+     */
+    Integer getBalance(String address, int blockNumber) {
+        Changes changes = accounts.get(address);
+        return changes == null ? null : changes.getBalance(blockNumber);
+    }
+
+    /**
+     * Returns the number of bytes used by the recorded changes.
+     * @return The size of the change arrays in bytes.
+     */
+    long sizeInBytes() {
+        return changeCount * 2 * Integer.BYTES;
+    }
+
+    /**
+     * The blocks that changed one account, in increasing order, and its balance after each of them.
+     * Only appended to by the thread recording blocks. The arrays may be replaced by larger copies,
+     * but every entry below count is the same in the old and new arrays.
+     */
+    private static final class Changes {
+
+        private int[] blockNumbers = new int[4];
+
+        private int[] balances = new int[4];
+
+        private volatile int count;
+
+        void add(int blockNumber, int balance) {
+            int n = count;
+            if (n == blockNumbers.length) {
+                blockNumbers = Arrays.copyOf(blockNumbers, n * 2);
+                balances = Arrays.copyOf(balances, n * 2);
+            }
+            blockNumbers[n] = blockNumber;
+            balances[n] = balance;
+            count = n + 1;
+        }
+
+        Integer getBalance(int blockNumber) {
+            int n = count;
+            int[] numbers = blockNumbers;
+
+            // Find the last change at or before the block
+            int index = Arrays.binarySearch(numbers, 0, n, blockNumber);
+            if (index < 0) {
+                index = -index - 2;
+            }
+            return index < 0 ? null : balances[index];
+        }
+    }
+}
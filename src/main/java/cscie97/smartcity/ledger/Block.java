@@ -3,6 +3,7 @@ package cscie97.smartcity.ledger;
 import cscie97.smartcity.controller.LoggerUtil;
 
 import java.util.*;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.logging.Level;
 
 /**
@@ -21,13 +22,20 @@ public class Block implements Cloneable {
      * block, this is empty. SHA-256 algorithm and merkle tree are used to compute
      * this hash value.
      */
-    private String previousHash;
+    private byte[] previousHash;
 
     /**
      * The hash of the current block is computed based on all the properties and
-     * associations of the current block except for this attribute.
+     * associations of the current block except for this attribute. It is the
+     * SHA-256 hash of the block's canonical header.
      */
-    private String hash;
+    private byte[] hash;
+
+    /**
+     * The canonical header of the block that is hashed to produce the block hash.
+     * Only set once the block has been committed.
+     */
+    private BlockHeader header;
 
     /**
      * Reference to the preceding Block in the blockchain.
@@ -36,16 +44,53 @@ public class Block implements Cloneable {
 
     /**
      * An ordered list of transactions that are included in the current block.
-     * There should be exactly 10 transactions per block.
+     * A block is committed once it has the configured block size of transactions, or
+     * earlier when it gets older than the maximum block age. While the block is open
+     * the list is guarded by the block's monitor.
      */
     private List<Transaction> transactionList;
 
     /**
      * The full set of accounts managed by the LedgerService. The account balances
      * should reflect the account state after all transactions of the current block
-     * have been applied. Each block has it's own immutable copy of this property.
+     * have been applied. Each block has it's own immutable copy of this property,
+     * sharing every unchanged account with the previous block. Until the block is
+     * committed this is the account state of the previous block.
+     */
+    private AccountStateTree accountState;
+
+    /**
+     * The ledger's table of live account balances, which this block's transactions are applied to.
+     * Null once the block is committed.
+     */
+    private AccountTable accounts;
+
+    /**
+     * IDs of the accounts created or changed by this block's transactions. Their balances are
+     * merged into the account state when the block is committed. Guarded by the block's monitor.
+     */
+    private int[] changedIds;
+
+    /**
+     * Number of entries of changedIds in use.
+     */
+    private int changedCount;
+
+    /**
+     * Time in System.nanoTime() units the first transaction was added, 0 while the block is empty.
      */
-    private Map<String, Account> accountBalanceMap;
+    private volatile long firstTransactionNanos;
+
+    /**
+     * Fees of this block's transactions not yet credited to the master account. Striped so
+     * concurrent transactions don't all write the same counter.
+     */
+    private final LongAdder pendingFees = new LongAdder();
+
+    /**
+     * The accounts created or changed by this block's transactions, set once the block is committed.
+     */
+    private List<Account> changedAccounts;
 
     /**
      * The Merkle tree that contains the transaction hashes for this block.
@@ -57,36 +102,51 @@ public class Block implements Cloneable {
      * @param blockNumber The unique block number for the block.
      */
     public Block(Integer blockNumber) {
+        this(blockNumber, new AccountTable());
+    }
+
+    /**
+     * Constructor for Genesis block applying its transactions to the given account table.
+     * @param blockNumber The unique block number for the block.
+     * @param accounts    The empty account table of the ledger.
+     */
+    Block(Integer blockNumber, AccountTable accounts) {
 
         this.blockNumber = blockNumber;
 
         // Create a new transaction list when we create a new block
         transactionList = new ArrayList<>();
 
-        // Create new account balance map when we create a new block
-        accountBalanceMap = new TreeMap<>();
+        // Start with an empty account state
+        accountState = AccountStateTree.empty();
+        this.accounts = accounts;
+        this.changedIds = new int[16];
 
         this.previousBlock = null;
         this.previousHash = null;
     }
 
     /**
-     * This constructor is used when creating a new block and copying over the previous
-     * blocks accountBalanceMap and a reference to the previous block.
+     * This constructor is used when creating a new block and sharing the previous
+     * blocks account state and a reference to the previous block.
      * By doing it through the constructor versus a setter method
      * we have made it immutable once the block is created.
      * @param blockNumber        The unique block number for the block.
-     * @param accountBalanceMap  The account balance map from the previous block.
+     * @param accountState       The account state from the previous block.
      * @param previousBlock      Reference to the previous block in the blockchain.
+     * @param previousHash       The hash of the previous block in the blockchain.
+     * @param accounts           The account table of the ledger, holding the balances of the account state.
      */
-    public Block(Integer blockNumber, Map<String, Account> accountBalanceMap, Block previousBlock, String previousHash) {
+    Block(Integer blockNumber, AccountStateTree accountState, Block previousBlock, byte[] previousHash, AccountTable accounts) {
 
         this.blockNumber = blockNumber;
 
         // Create a new transaction list when we create a new block
         transactionList = new ArrayList<>();
 
-        this.accountBalanceMap = accountBalanceMap;
+        this.accountState = accountState;
+        this.accounts = accounts;
+        this.changedIds = new int[16];
 
         this.previousBlock = previousBlock;
 
@@ -94,11 +154,156 @@ public class Block implements Cloneable {
     }
 
     /**
-     * Method to add an account to our accountBalanceMap.
-     * @param account The account object we wish to add to our accountBalanceMap.
+     * Constructor for a committed block read back from the block store. The block only has
+     * the accounts its transactions changed, not the full account state.
+     * @param header          The block header.
+     * @param hash            The block hash.
+     * @param transactionList The transactions of the block.
+     * @param changedAccounts The accounts created or changed by the block.
+     */
+    Block(BlockHeader header, byte[] hash, List<Transaction> transactionList, List<Account> changedAccounts) {
+
+        this.blockNumber = header.getBlockNumber();
+        this.header = header;
+        this.hash = hash;
+
+        // The genesis block doesn't have a previous hash
+        this.previousHash = blockNumber == 1 ? null : header.getPreviousHash();
+
+        this.transactionList = transactionList;
+        this.changedAccounts = Collections.unmodifiableList(changedAccounts);
+
+        List<byte[]> hashList = new ArrayList<>(transactionList.size());
+        for (Transaction transaction : transactionList) {
+            hashList.add(transaction.getTransactionHashBytes());
+        }
+        this.merkleTree = new MerkleTree(hashList);
+    }
+
+    /**
+     * Method to add an account to the block, or set the balance of the account with the same address.
+     * @param account The account object we wish to add to the block.
      */
     public void addAccount(Account account) {
-        accountBalanceMap.put(account.getAddress(), account);
+        int id = accounts.getId(account.getAddress());
+        if (id == AccountTable.NO_ACCOUNT) {
+            id = accounts.create(account.getAddress());
+        }
+        accounts.setBalance(id, account.getBalance());
+        markChanged(id);
+    }
+
+    /**
+     * Add a new account to the block unless an account with the same address exists.
+     * @param address The address of the new account.
+     * @return        The ID of the new account, or AccountTable.NO_ACCOUNT if the address is taken.
+     */
+    int createAccount(String address) {
+        int id = accounts.create(address);
+        if (id != AccountTable.NO_ACCOUNT) {
+            markChanged(id);
+        }
+        return id;
+    }
+
+    /**
+     * Look up an account of this block. The returned account is a copy, changing it doesn't change the block.
+     * @param address The address of the account.
+     * @return        The account, or null if there is no account with the address.
+     */
+    public Account getAccount(String address) {
+        AccountTable table = accounts;
+        if (table == null) {
+            return accountState.get(address);
+        }
+        int id = table.getId(address);
+        return id == AccountTable.NO_ACCOUNT ? null : table.toAccount(id);
+    }
+
+    /**
+     * Record that a transaction of this block changes an account, so its balance is merged
+     * into the account state when the block is committed.
+     * @param id The account ID.
+     */
+    synchronized void markChanged(int id) {
+        if (accounts.markChanged(id, blockNumber)) {
+            if (changedCount == changedIds.length) {
+                changedIds = Arrays.copyOf(changedIds, changedCount * 2);
+            }
+            changedIds[changedCount++] = id;
+        }
+    }
+
+    /**
+     * Record that the first transaction was added to the open block. The caller holds the block's monitor.
+     */
+    void markFirstTransaction() {
+        if (firstTransactionNanos == 0) {
+            firstTransactionNanos = System.nanoTime();
+        }
+    }
+
+    /**
+     * Returns how long ago the first transaction was added.
+     * @return The age in nanoseconds, 0 while the block is empty.
+     */
+    long getAgeNanos() {
+        long first = firstTransactionNanos;
+        return first == 0 ? 0 : System.nanoTime() - first;
+    }
+
+    /**
+     * Add the fee of a transaction to the fees owed to the master account.
+     * @param fee The transaction fee.
+     */
+    void addFee(int fee) {
+        pendingFees.add(fee);
+    }
+
+    /**
+     * Returns the fees owed to the master account so far, without resetting them.
+     * @return The sum of the fees added since the last call to takeFees().
+     */
+    long getPendingFees() {
+        return pendingFees.sum();
+    }
+
+    /**
+     * Returns the fees owed to the master account and resets them. Called when the block is
+     * committed, after every transaction of the block has been applied.
+     * @return The sum of the fees added since the last call.
+     */
+    long takeFees() {
+        return pendingFees.sumThenReset();
+    }
+
+    public boolean containsAccount(String address) {
+        AccountTable table = accounts;
+        return table == null ? accountState.containsKey(address) : table.getId(address) != AccountTable.NO_ACCOUNT;
+    }
+
+    /**
+     * Merge the accounts changed by this block into its account state. Called once when the
+     * block is committed, while no transaction is being applied, and the only place account
+     * objects are created for the block.
+     */
+    synchronized void commitAccountState() {
+        List<Account> changed = changedAccountList();
+        accountState = accountState.withAll(changed);
+        changedAccounts = Collections.unmodifiableList(changed);
+        accounts = null;
+        changedIds = null;
+    }
+
+    /**
+     * Returns copies of the accounts changed by this block with their current balances.
+     */
+    private synchronized List<Account> changedAccountList() {
+        List<Account> changed = new ArrayList<>(changedCount);
+        for (int i = 0; i < changedCount; i++) {
+            changed.add(accounts.toAccount(changedIds[i]));
+        }
+        return changed;
     }
 
     // Private so it's immutable to third parties.
@@ -106,22 +311,27 @@ public class Block implements Cloneable {
         this.blockNumber = blockNumber;
     }
 
-    // Private so that previous hash is immutable to third parties.
-    private void setPreviousHash(String previousHash) {
+    // Package-private so that previous hash is immutable to third parties. Set when the block
+    // is committed since the previous block may still have been hashing when this block opened.
+    void setPreviousHash(byte[] previousHash) {
         this.previousHash = previousHash;
     }
 
-    public void setHash(String hash) {
+    public void setHash(byte[] hash) {
         this.hash = hash;
     }
 
+    public void setHeader(BlockHeader header) {
+        this.header = header;
+    }
+
     private void setTransactionList(List<Transaction> transactionList) {
         this.transactionList = transactionList;
     }
 
-    // Private so it's immutable to third parties.
-    private void setAccountBalanceMap(Map<String, Account> accountBalanceMap) {
-        this.accountBalanceMap = accountBalanceMap;
+    // Package private so only the ledger can restore the account state of a stored block.
+    void setAccountState(AccountStateTree accountState) {
+        this.accountState = accountState;
     }
 
     public void setMerkleTree(MerkleTree merkleRoot) {
@@ -132,14 +342,34 @@ public class Block implements Cloneable {
         return blockNumber;
     }
 
+    /**
+     * Returns the hash of the previous block as a hex string.
+     * @return The previous hash, or null for the genesis block.
+     */
     public String getPreviousHash() {
-        return previousHash;
+        return HashUtil.toHex(previousHash);
     }
 
+    /**
+     * Returns the hash of this block as a hex string.
+     * @return The block hash, or null if the block hasn't been committed.
+     */
     public String getHash() {
+        return HashUtil.toHex(hash);
+    }
+
+    public byte[] getPreviousHashBytes() {
+        return previousHash;
+    }
+
+    public byte[] getHashBytes() {
         return hash;
     }
 
+    public BlockHeader getHeader() {
+        return header;
+    }
+
     public Block getPreviousBlock() {
         return previousBlock;
     }
@@ -148,8 +378,37 @@ public class Block implements Cloneable {
         return transactionList;
     }
 
+    /**
+     * Returns the accounts of this block sorted by address. A block read back from the block
+     * store only has the accounts changed by its transactions.
+     * @return A read only map of addresses to accounts, each account read from it is a copy.
+     */
     public Map<String, Account> getAccountBalanceMap() {
-        return accountBalanceMap;
+        if (accountState == null) {
+            return AccountStateTree.empty().withAll(changedAccounts);
+        }
+        synchronized (this) {
+            if (accounts == null || changedCount == 0) {
+                return accountState;
+            }
+            return accountState.withAll(changedAccountList());
+        }
+    }
+
+    /**
+     * Returns the accounts created or changed by this block's transactions.
+     * @return The changed accounts, or null if the block hasn't been committed.
+     */
+    public List<Account> getChangedAccounts() {
+        return changedAccounts;
+    }
+
+    /**
+     * Returns the full account state of this block.
+     * @return The account state, or null for a block read back from the block store.
+     */
+    public AccountStateTree getAccountState() {
+        return accountState;
     }
 
     public MerkleTree getMerkleTree() {
@@ -173,26 +432,33 @@ public class Block implements Cloneable {
 
         if (this.getBlockNumber() != null)
             cloned.setBlockNumber(this.getBlockNumber());
-        if (this.getPreviousHash() != null)
-            cloned.setPreviousHash(this.getPreviousHash());
-        if (this.getHash() != null)
-            cloned.setHash(this.getHash());
+        if (this.getPreviousHashBytes() != null)
+            cloned.setPreviousHash(this.getPreviousHashBytes());
+        if (this.getHashBytes() != null)
+            cloned.setHash(this.getHashBytes());
+        if (this.getHeader() != null)
+            cloned.setHeader(this.getHeader());
         if (this.getTransactionList() != null)
             cloned.setTransactionList(this.getTransactionList());
-        if (this.getAccountBalanceMap() != null)
-            cloned.setAccountBalanceMap(this.getAccountBalanceMap());
+        if (this.getAccountState() != null)
+            cloned.setAccountState(this.getAccountState());
 
         return cloned;
     }
 
+    /**
+     * Only the number of the previous block is printed, printing the block itself would
+     * print the entire chain.
+     * @return String representation of the block.
+     */
     @Override
     public String toString() {
         return " blockNumber=" + blockNumber +
-               "\n previousHash=" + previousHash  +
-               "\n hash=" + hash +
-               "\n previousBlock=" + previousBlock +
+               "\n previousHash=" + getPreviousHash()  +
+               "\n hash=" + getHash() +
+               "\n previousBlock=" + (previousBlock == null ? null : previousBlock.getBlockNumber()) +
                "\n transactionList=" + transactionList +
-               "\n accountBalanceMap=" + accountBalanceMap +
+               "\n accountBalanceMap=" + getAccountBalanceMap() +
                "\n merkleTree=" + merkleTree;
     }
 }
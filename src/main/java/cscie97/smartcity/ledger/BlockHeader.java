@@ -0,0 +1,152 @@
+package cscie97.smartcity.ledger;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+
+/**
+ * Author: Stephen Sheldon
+ *
+ * Canonical, fixed-layout header of a block. The hash of a block is the SHA-256 hash of
+ * the encoded header, so sealing a block costs the same no matter how long the chain is.
+ *
+ * Layout (big endian, 136 bytes):
+ *   int      blockNumber
+ *   int      transactionCount
+ *   byte[32] previousHash        (all zeros for the genesis block)
+ *   byte[32] merkleRoot
+ *   byte[32] accountStateDigest
+ *   byte[32] seedDigest
+ **/
+public class BlockHeader {
+
+    /**
+     * Size in bytes of an encoded header.
+     */
+    public static final int SIZE = 2 * Integer.BYTES + 4 * HashUtil.HASH_LENGTH;
+
+    /**
+     * Previous hash used for the genesis block.
+     */
+    private static final byte[] EMPTY_HASH = new byte[HashUtil.HASH_LENGTH];
+
+    /**
+     * The block number of the block this header belongs to.
+     */
+    private final int blockNumber;
+
+    /**
+     * The number of transactions in the block.
+     */
+    private final int transactionCount;
+
+    /**
+     * The hash of the previous block.
+     */
+    private final byte[] previousHash;
+
+    /**
+     * The root hash of the block's Merkle tree.
+     */
+    private final byte[] merkleRoot;
+
+    /**
+     * Digest of the account balances after the block's transactions have been applied.
+     */
+    private final byte[] accountStateDigest;
+
+    /**
+     * Digest of the ledger seed.
+     */
+    private final byte[] seedDigest;
+
+    /**
+     * Constructor for a block header. All hashes must be 32 bytes long.
+     * @param blockNumber        The block number.
+     * @param transactionCount   The number of transactions in the block.
+     * @param previousHash       The hash of the previous block, null for the genesis block.
+     * @param merkleRoot         The Merkle root of the block's transactions.
+     * @param accountStateDigest The digest of the block's account balances.
+     * @param seedDigest         The digest of the ledger seed.
+     */
+    public BlockHeader(int blockNumber, int transactionCount, byte[] previousHash, byte[] merkleRoot,
+                       byte[] accountStateDigest, byte[] seedDigest) {
+        this.blockNumber = blockNumber;
+        this.transactionCount = transactionCount;
+        this.previousHash = previousHash == null ? EMPTY_HASH : previousHash;
+        this.merkleRoot = merkleRoot;
+        this.accountStateDigest = accountStateDigest;
+        this.seedDigest = seedDigest;
+    }
+
+    /**
+     * Write the canonical encoding of this header into the given buffer.
+     * @param buffer The buffer to write to, it must have at least SIZE bytes remaining.
+     * @return       The buffer.
+     */
+    public ByteBuffer encode(ByteBuffer buffer) {
+        buffer.putInt(blockNumber);
+        buffer.putInt(transactionCount);
+        buffer.put(previousHash);
+        buffer.put(merkleRoot);
+        buffer.put(accountStateDigest);
+        buffer.put(seedDigest);
+        return buffer;
+    }
+
+    /**
+     * Read a header written by encode().
+     * @param buffer The buffer to read from, it must have at least SIZE bytes remaining.
+     * @return       The decoded header.
+     */
+    public static BlockHeader decode(ByteBuffer buffer) {
+        int blockNumber = buffer.getInt();
+        int transactionCount = buffer.getInt();
+        byte[] previousHash = new byte[HashUtil.HASH_LENGTH];
+        byte[] merkleRoot = new byte[HashUtil.HASH_LENGTH];
+        byte[] accountStateDigest = new byte[HashUtil.HASH_LENGTH];
+        byte[] seedDigest = new byte[HashUtil.HASH_LENGTH];
+        buffer.get(previousHash);
+        buffer.get(merkleRoot);
+        buffer.get(accountStateDigest);
+        buffer.get(seedDigest);
+        return new BlockHeader(blockNumber, transactionCount, previousHash, merkleRoot, accountStateDigest, seedDigest);
+    }
+
+    /**
+     * Compute the SHA-256 hash of the encoded header.
+     * @param digest The digest to use, it is reset before use.
+     * @return       The 32 byte block hash.
+     */
+    public byte[] hash(MessageDigest digest) {
+        ByteBuffer buffer = encode(ByteBuffer.allocate(SIZE));
+        buffer.flip();
+
+        digest.reset();
+        digest.update(buffer);
+        return digest.digest();
+    }
+
+    public int getBlockNumber() {
+        return blockNumber;
+    }
+
+    public int getTransactionCount() {
+        return transactionCount;
+    }
+
+    public byte[] getPreviousHash() {
+        return previousHash;
+    }
+
+    public byte[] getMerkleRoot() {
+        return merkleRoot;
+    }
+
+    public byte[] getAccountStateDigest() {
+        return accountStateDigest;
+    }
+
+    public byte[] getSeedDigest() {
+        return seedDigest;
+    }
+}
@@ -0,0 +1,82 @@
+package cscie97.smartcity.ledger;
+
+import java.util.Spliterator;
+import java.util.function.Consumer;
+import java.util.function.IntFunction;
+
+/**
+ * Author: Stephen Sheldon
+ *
+ * Spliterator over a range of committed blocks. Blocks are only looked up as they are reached,
+ * so walking the chain holds one block per thread in memory no matter how long the range is.
+ * The range splits in half, so parallel streams spread the blocks over every core.
+ **/
+class BlockSpliterator implements Spliterator<Block> {
+
+    /**
+     * Looks up a committed block by number, reading it from the block store if needed.
+     */
+    private final IntFunction<Block> blocks;
+
+    /**
+     * Next block to return.
+     */
+    private int next;
+
+    /**
+     * Last block of the range.
+     */
+    private final int last;
+
+    /**
+     * Constructor method.
+     * @param blocks     Looks up a committed block by number.
+     * @param firstBlock The first block of the range.
+     * @param lastBlock  The last block of the range, every block in the range must be committed.
+     */
+    BlockSpliterator(IntFunction<Block> blocks, int firstBlock, int lastBlock) {
+        this.blocks = blocks;
+        this.next = firstBlock;
+        this.last = lastBlock;
+    }
+
+    @Override
+    public boolean tryAdvance(Consumer<? super Block> action) {
+        if (next > last) {
+            return false;
+        }
+        action.accept(blocks.apply(next++));
+        return true;
+    }
+
+    @Override
+    public void forEachRemaining(Consumer<? super Block> action) {
+        while (next <= last) {
+            action.accept(blocks.apply(next++));
+        }
+    }
+
+    @Override
+    public Spliterator<Block> trySplit() {
+        int remaining = last - next + 1;
+        if (remaining < 2) {
+            return null;
+        }
+
+        // Hand the first half to the new spliterator
+        int middle = next + remaining / 2;
+        Spliterator<Block> prefix = new BlockSpliterator(blocks, next, middle - 1);
+        next = middle;
+        return prefix;
+    }
+
+    @Override
+    public long estimateSize() {
+        return Math.max(last - next + 1, 0);
+    }
+
+    @Override
+    public int characteristics() {
+        return ORDERED | SIZED | SUBSIZED | NONNULL | IMMUTABLE;
+    }
+}
@@ -0,0 +1,429 @@
+package cscie97.smartcity.ledger;
+
+import cscie97.smartcity.controller.LoggerUtil;
+
+import java.io.IOException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.zip.CRC32;
+
+/**
+ * Author: Stephen Sheldon
+ *
+ * Append-only store of committed blocks. Blocks are written one after the other into fixed
+ * size segment files that are memory mapped, and read back lazily from the mapped segments.
+ * Only the position of each block is kept in memory.
+ *
+ * Each segment starts with the TransactionCodec file header and the segment size it was created
+ * with. A segment with another magic number, format version or size is refused rather than read
+ * with the wrong bounds. Each record is the length of the encoded block, its CRC32 and the
+ * encoded block. A record with a length of zero, a bad checksum or an unexpected block number ends the log, so a
+ * block that was only partly written when the process died is dropped on the next start.
+ *
+ * Encoded block:
+ *   byte[136] header
+ *   byte[32]  hash
+ *   varint    address count, then each address as a string
+ *   varint    transaction count, then for each transaction:
+ *               the TransactionCodec encoding with account indexes, byte[32] hash
+ *   varint    changed account count, then for each account:
+ *               varint account index, varint balance
+ * Strings and varints are written by TransactionCodec. Every address is written once per block
+ * and the transactions and accounts refer to it by its index.
+ **/
+public class BlockStore {
+
+    /**
+     * Size of the record length and checksum written before each block.
+     */
+    private static final int RECORD_HEADER_SIZE = 2 * Integer.BYTES;
+
+    /**
+     * Magic number at the start of every segment file, "SCBS".
+     */
+    private static final int MAGIC = 0x53434253;
+
+    /**
+     * Size of the file header and the segment size written at the start of each segment.
+     */
+    private static final int SEGMENT_HEADER_SIZE = TransactionCodec.FILE_HEADER_SIZE + Integer.BYTES;
+
+    /**
+     * Directory the segment files are kept in.
+     */
+    private final Path directory;
+
+    /**
+     * Size in bytes of each segment file.
+     */
+    private final int segmentSize;
+
+    /**
+     * The mapped segment files, in order.
+     */
+    private final List<MappedByteBuffer> segments;
+
+    /**
+     * Position of each block, indexed by block number - 1. The segment is in the high
+     * 32 bits and the offset of the record within the segment in the low 32 bits.
+     */
+    private long[] positions;
+
+    /**
+     * Number of blocks in the store.
+     */
+    private int blockCount;
+
+    /**
+     * Offset in the last segment where the next record is written.
+     */
+    private int writeOffset;
+
+    /**
+     * Buffer blocks are encoded into before they are copied to a segment.
+     */
+    private ByteBuffer scratch;
+
+    /**
+     * Open the block store in the given directory, creating it if needed, and find the
+     * position of every block already in it.
+     * @param directory   The directory of the segment files.
+     * @param segmentSize The size in bytes of each segment file.
+     * @throws LedgerException Throw an exception if the segment files can't be opened.
+     */
+    public BlockStore(Path directory, int segmentSize) throws LedgerException {
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.segments = new ArrayList<>();
+        this.positions = new long[1024];
+        this.scratch = ByteBuffer.allocate(64 * 1024);
+
+        try {
+            Files.createDirectories(directory);
+
+            // Map existing segments until one doesn't exist
+            for (int segment = 0; Files.exists(segmentPath(segment)); segment++) {
+                Path path = segmentPath(segment);
+
+                // Mapping a segment with another size would extend it, or cut off its last records as damaged
+                long length = Files.size(path);
+                if (length != 0 && length != segmentSize) {
+                    throw new LedgerException("open-block-store", path + " is " + length + " bytes but the segment size is "
+                            + segmentSize + ", the block store must be opened with the segment size it was created with.");
+                }
+
+                MappedByteBuffer buffer = map(segment);
+                TransactionCodec.checkFileHeader(buffer, MAGIC, "block store segment", path, "open-block-store");
+                if (buffer.getInt(TransactionCodec.FILE_HEADER_SIZE) != segmentSize) {
+                    throw new LedgerException("open-block-store", path + " was created with a segment size of "
+                            + buffer.getInt(TransactionCodec.FILE_HEADER_SIZE) + " but the segment size is " + segmentSize + ".");
+                }
+                segments.add(buffer);
+            }
+        } catch (IOException e) {
+            throw new LedgerException("open-block-store", "Unable to open block store " + directory + ": " + e.getMessage());
+        }
+
+        scan();
+    }
+
+    /**
+     * Find every complete record, stopping at the first missing or damaged one.
+     */
+    private void scan() {
+        CRC32 crc = new CRC32();
+
+        for (int segment = 0; segment < segments.size(); segment++) {
+            ByteBuffer buffer = segments.get(segment).duplicate();
+            int offset = SEGMENT_HEADER_SIZE;
+
+            while (offset + RECORD_HEADER_SIZE <= segmentSize) {
+                int length = buffer.getInt(offset);
+
+                // A segment is full when the next record doesn't fit, move on to the next one
+                if (length == 0 && segment + 1 < segments.size() && blockCount > 0 && isFullAt(segment, offset)) {
+                    break;
+                }
+                if (length <= BlockHeader.SIZE || offset + RECORD_HEADER_SIZE + length > segmentSize) {
+                    truncate(segment, offset);
+                    return;
+                }
+
+                ByteBuffer payload = buffer.duplicate();
+                payload.position(offset + RECORD_HEADER_SIZE).limit(offset + RECORD_HEADER_SIZE + length);
+                crc.reset();
+                crc.update(payload.duplicate());
+
+                if ((int) crc.getValue() != buffer.getInt(offset + Integer.BYTES) || payload.getInt() != blockCount + 1) {
+                    LoggerUtil.log(Level.WARNING, "Block store record after block " + blockCount + " is damaged and was dropped.", false);
+                    truncate(segment, offset);
+                    return;
+                }
+
+                addPosition(segment, offset);
+                offset += RECORD_HEADER_SIZE + length;
+            }
+        }
+
+        // Every segment was full
+        writeOffset = segments.isEmpty() ? 0 : segmentSize;
+    }
+
+    /**
+     * A zero length at this offset only ends a segment if the first record of the next
+     * segment continues from the last block found.
+     */
+    private boolean isFullAt(int segment, int offset) {
+        ByteBuffer next = segments.get(segment + 1);
+        int first = SEGMENT_HEADER_SIZE;
+        return next.getInt(first) > BlockHeader.SIZE && next.getInt(first + RECORD_HEADER_SIZE) == blockCount + 1;
+    }
+
+    /**
+     * End the log at the given offset, dropping any later segments.
+     */
+    private void truncate(int segment, int offset) {
+        while (segments.size() > segment + 1) {
+            int last = segments.size() - 1;
+            segments.remove(last);
+            try {
+                Files.deleteIfExists(segmentPath(last));
+            } catch (IOException e) {
+                LoggerUtil.log(Level.SEVERE, "Unable to delete block store segment " + segmentPath(last) + ".", false);
+            }
+        }
+        writeOffset = offset;
+        if (offset + Integer.BYTES <= segmentSize) {
+            segments.get(segment).putInt(offset, 0);
+        }
+    }
+
+    /**
+     * Append a committed block to the end of the store and force it to disk.
+     * @param block The committed block, its number must follow the last block in the store.
+     * @throws LedgerException Throw an exception if the block is out of order, too large or can't be written.
+     */
+    public synchronized void append(Block block) throws LedgerException {
+
+        if (block.getBlockNumber() != blockCount + 1) {
+            throw new LedgerException("append-block", "Block " + block.getBlockNumber() + " doesn't follow block " + blockCount + ".");
+        }
+
+        ByteBuffer payload = encode(block);
+        int recordSize = RECORD_HEADER_SIZE + payload.remaining();
+
+        if (recordSize > segmentSize - SEGMENT_HEADER_SIZE) {
+            throw new LedgerException("append-block", "Block " + block.getBlockNumber() + " is larger than a block store segment.");
+        }
+
+        // Start a new segment when the record doesn't fit in the current one
+        if (segments.isEmpty() || writeOffset + recordSize > segmentSize) {
+            try {
+                segments.add(map(segments.size()));
+            } catch (IOException e) {
+                throw new LedgerException("append-block", "Unable to create block store segment: " + e.getMessage());
+            }
+            writeOffset = SEGMENT_HEADER_SIZE;
+        }
+
+        int segment = segments.size() - 1;
+        MappedByteBuffer buffer = segments.get(segment);
+        CRC32 crc = new CRC32();
+        crc.update(payload.duplicate());
+
+        // Write the payload before the length so a partial record is never seen as complete
+        buffer.put(writeOffset + RECORD_HEADER_SIZE, payload, payload.position(), payload.remaining());
+        buffer.putInt(writeOffset + Integer.BYTES, (int) crc.getValue());
+        buffer.putInt(writeOffset, payload.remaining());
+
+        // Mark the end of the log after the record
+        if (writeOffset + recordSize + Integer.BYTES <= segmentSize) {
+            buffer.putInt(writeOffset + recordSize, 0);
+        }
+        buffer.force(writeOffset, Math.min(recordSize + Integer.BYTES, segmentSize - writeOffset));
+
+        addPosition(segment, writeOffset);
+        writeOffset += recordSize;
+    }
+
+    /**
+     * Read a block from the store. The block has its header, hash, transactions and the
+     * accounts changed by its transactions, but not the full account state.
+     * @param blockNumber The block number.
+     * @return            The block, or null if the store doesn't contain the block.
+     */
+    public Block read(int blockNumber) {
+        ByteBuffer buffer = record(blockNumber);
+        return buffer == null ? null : decode(buffer);
+    }
+
+    /**
+     * Read only what is needed to rebuild the ledger's indexes from a stored block, skipping
+     * everything else in the record.
+     * @param blockNumber          The block number.
+     * @param transactionIds       The list the IDs of the block's transactions are added to.
+     * @param transactionAccounts  The list the payer and receiver address of each of the block's transactions are added to.
+     * @param changedAccounts      The list the accounts changed by the block are added to.
+     * @return                     The header of the block, or null if the store doesn't contain the block.
+     */
+    BlockHeader readIndexEntries(int blockNumber, List<String> transactionIds, List<String> transactionAccounts,
+                                 List<Account> changedAccounts) {
+        ByteBuffer buffer = record(blockNumber);
+        if (buffer == null) {
+            return null;
+        }
+
+        BlockHeader header = BlockHeader.decode(buffer);
+        buffer.position(buffer.position() + HashUtil.HASH_LENGTH);
+
+        TransactionCodec.AddressTable accounts = TransactionCodec.AddressTable.decode(buffer);
+
+        int transactionCount = TransactionCodec.getVarint(buffer);
+        for (int i = 0; i < transactionCount; i++) {
+            transactionIds.add(TransactionCodec.decodeIndexEntry(buffer, accounts, transactionAccounts));
+        }
+
+        int accountCount = TransactionCodec.getVarint(buffer);
+        for (int i = 0; i < accountCount; i++) {
+            Account account = new Account(accounts.getAddress(TransactionCodec.getVarint(buffer)));
+            account.setBalance(TransactionCodec.getVarint(buffer));
+            changedAccounts.add(account);
+        }
+        return header;
+    }
+
+    /**
+     * Returns the encoded block of a record.
+     * @param blockNumber The block number.
+     * @return            A buffer positioned at the start of the encoded block, or null if the store doesn't contain the block.
+     */
+    private ByteBuffer record(int blockNumber) {
+        long position;
+        MappedByteBuffer segment;
+
+        synchronized (this) {
+            if (blockNumber < 1 || blockNumber > blockCount) {
+                return null;
+            }
+            position = positions[blockNumber - 1];
+            segment = segments.get((int) (position >>> 32));
+        }
+
+        int offset = (int) position;
+        ByteBuffer buffer = segment.duplicate();
+        buffer.position(offset + RECORD_HEADER_SIZE).limit(offset + RECORD_HEADER_SIZE + segment.getInt(offset));
+        return buffer;
+    }
+
+    /**
+     * Returns the number of blocks in the store.
+     * @return The number of the last block, 0 if the store is empty.
+     */
+    public synchronized int size() {
+        return blockCount;
+    }
+
+    public Path getDirectory() {
+        return directory;
+    }
+
+    private ByteBuffer encode(Block block) {
+        while (true) {
+            try {
+                scratch.clear();
+                block.getHeader().encode(scratch);
+                scratch.put(block.getHashBytes());
+
+                // The address table goes first so the reader has it before the transactions
+                TransactionCodec.AddressTable accounts = new TransactionCodec.AddressTable();
+                for (Transaction transaction : block.getTransactionList()) {
+                    accounts.intern(transaction.getPayerAddress());
+                    accounts.intern(transaction.getReceiverAddress());
+                }
+                for (Account account : block.getChangedAccounts()) {
+                    accounts.intern(account.getAddress());
+                }
+                accounts.encode(scratch);
+
+                TransactionCodec.putVarint(scratch, block.getTransactionList().size());
+                for (Transaction transaction : block.getTransactionList()) {
+                    TransactionCodec.encode(scratch, transaction, accounts);
+                }
+
+                TransactionCodec.putVarint(scratch, block.getChangedAccounts().size());
+                for (Account account : block.getChangedAccounts()) {
+                    TransactionCodec.putVarint(scratch, accounts.intern(account.getAddress()));
+                    TransactionCodec.putVarint(scratch, account.getBalance());
+                }
+
+                scratch.flip();
+                return scratch;
+            } catch (BufferOverflowException e) {
+                // Grow the buffer and try again
+                scratch = ByteBuffer.allocate(scratch.capacity() * 2);
+            }
+        }
+    }
+
+    private static Block decode(ByteBuffer buffer) {
+        BlockHeader header = BlockHeader.decode(buffer);
+        byte[] hash = new byte[HashUtil.HASH_LENGTH];
+        buffer.get(hash);
+
+        TransactionCodec.AddressTable accounts = TransactionCodec.AddressTable.decode(buffer);
+
+        int transactionCount = TransactionCodec.getVarint(buffer);
+        List<Transaction> transactionList = new ArrayList<>(transactionCount);
+        for (int i = 0; i < transactionCount; i++) {
+            transactionList.add(TransactionCodec.decode(buffer, accounts));
+        }
+
+        int accountCount = TransactionCodec.getVarint(buffer);
+        List<Account> changedAccounts = new ArrayList<>(accountCount);
+        for (int i = 0; i < accountCount; i++) {
+            Account account = new Account(accounts.getAddress(TransactionCodec.getVarint(buffer)));
+            account.setBalance(TransactionCodec.getVarint(buffer));
+            changedAccounts.add(account);
+        }
+
+        return new Block(header, hash, transactionList, changedAccounts);
+    }
+
+    private void addPosition(int segment, int offset) {
+        if (blockCount == positions.length) {
+            positions = Arrays.copyOf(positions, positions.length * 2);
+        }
+        positions[blockCount++] = ((long) segment << 32) | offset;
+    }
+
+    private Path segmentPath(int segment) {
+        return directory.resolve(String.format("segment-%08d.log", segment));
+    }
+
+    /**
+     * Map a segment file, creating it at the full segment size if it doesn't exist. A new
+     * segment, or one created just before a crash, still reads as zeros and gets its file
+     * header and size here. The channel can be closed once the file is mapped.
+     */
+    private MappedByteBuffer map(int segment) throws IOException {
+        try (FileChannel channel = FileChannel.open(segmentPath(segment),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+            if (buffer.getLong(0) == 0) {
+                TransactionCodec.putFileHeader(buffer, MAGIC);
+                buffer.putInt(TransactionCodec.FILE_HEADER_SIZE, segmentSize);
+                buffer.force(0, SEGMENT_HEADER_SIZE);
+            }
+            return buffer;
+        }
+    }
+}
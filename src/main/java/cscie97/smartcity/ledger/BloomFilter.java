@@ -0,0 +1,190 @@
+package cscie97.smartcity.ledger;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Author: Stephen Sheldon
+ *
+ * Scalable Bloom filter of strings. The filter is a series of stages, each one four times the
+ * capacity of the one before it with half its false positive rate, so the filter keeps growing
+ * with the chain while the overall false positive rate stays under twice the rate of the first
+ * stage. A negative answer is always right, a positive answer has to be checked against an
+ * exact index.
+ *
+ * No stage's bits take more than a configured number of bytes. Once a stage would grow past
+ * that budget it is shrunk to fit at its false positive rate, and every later stage has the
+ * same size and rate as that capped stage. From then on each full stage adds the rate of the
+ * capped stage to the overall false positive rate. The overall rate grows linearly with the
+ * number of capped stages instead of staying under twice the first rate. Duplicates are still
+ * found, but more new IDs are checked against the exact index.
+ *
+ * Lookups don't lock and may run while a string is added, strings are added one at a time.
+ **/
+class BloomFilter {
+
+    /**
+     * Each stage holds this many times the strings of the stage before it.
+     */
+    private static final int GROWTH = 4;
+
+    /**
+     * Each stage has this fraction of the false positive rate of the stage before it.
+     */
+    private static final double TIGHTENING = 0.5;
+
+    /**
+     * Most 64 bit words the bits of a single stage may take.
+     */
+    private final long maxStageWords;
+
+    /**
+     * Stages from oldest to newest, strings are added to the newest. Replaced as a whole when a stage is added.
+     */
+    private volatile Stage[] stages;
+
+    /**
+     * Constructor method.
+     * @param initialCapacity   Number of strings the first stage holds.
+     * @param falsePositiveRate False positive rate of the first stage.
+     * @param maxStageBytes     Most bytes the bits of a single stage may take, at least one word.
+     */
+    BloomFilter(int initialCapacity, double falsePositiveRate, long maxStageBytes) {
+        maxStageWords = Math.min(Math.max(maxStageBytes / Long.BYTES, 1), Integer.MAX_VALUE);
+        stages = new Stage[] {new Stage(initialCapacity, falsePositiveRate, maxStageWords)};
+    }
+
+    /**
+     * Returns false if the string was never added, true if it may have been.
+     * @param value The string.
+     * @return      True if the string may have been added.
+     */
+    boolean mightContain(String value) {
+        long hash = hash(value);
+        for (Stage stage : stages) {
+            if (stage.mightContain(hash)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Add a string to the filter, starting a new stage once the newest one is full. After a stage
+     * was capped at the byte budget new stages copy its size and rate.
+     * @param value The string.
+     */
+    synchronized void put(String value) {
+        Stage[] current = stages;
+        Stage newest = current[current.length - 1];
+
+        if (newest.count >= newest.capacity) {
+            Stage[] grown = new Stage[current.length + 1];
+            System.arraycopy(current, 0, grown, 0, current.length);
+            if (newest.capped) {
+                newest = new Stage(newest.capacity, newest.falsePositiveRate, maxStageWords);
+            } else {
+                newest = new Stage(newest.capacity * GROWTH, newest.falsePositiveRate * TIGHTENING, maxStageWords);
+            }
+            grown[current.length] = newest;
+            stages = grown;
+        }
+        newest.put(hash(value));
+    }
+
+    /**
+     * Returns the number of bytes used by the bits of every stage.
+     * @return The size of the filter in bytes.
+     */
+    long sizeInBytes() {
+        long bytes = 0;
+        for (Stage stage : stages) {
+            bytes += (long) stage.bits.length() * Long.BYTES;
+        }
+        return bytes;
+    }
+
+    /**
+     * 64 bit FNV-1a hash of the characters of the string, mixed so both halves can be used as hashes.
+     * The transaction index keys its table on the same hash.
+     */
+    static long hash(String value) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < value.length(); i++) {
+            hash ^= value.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+
+    /**
+     * Fixed size Bloom filter. The bit positions of a string are derived from the two halves of its hash.
+     */
+    private static final class Stage {
+
+        private final long capacity;
+
+        private final double falsePositiveRate;
+
+        private final AtomicLongArray bits;
+
+        private final long bitCount;
+
+        private final int hashCount;
+
+        /**
+         * True if the stage takes the whole byte budget, so the next stage can't be bigger.
+         */
+        private final boolean capped;
+
+        /**
+         * Number of strings added, only changed while holding the filter's lock.
+         */
+        private long count;
+
+        Stage(long capacity, double falsePositiveRate, long maxWords) {
+            this.falsePositiveRate = falsePositiveRate;
+            this.hashCount = Math.max(1, (int) Math.ceil(-Math.log(falsePositiveRate) / Math.log(2)));
+
+            long words = (long) Math.ceil((double) capacity * hashCount / Math.log(2) / Long.SIZE);
+            if (words > maxWords) {
+                // Hold as many strings as fit in the budget at the same false positive rate
+                words = maxWords;
+                capacity = Math.max(1, (long) (words * Long.SIZE * Math.log(2) / hashCount));
+            }
+            this.capped = words >= maxWords;
+            this.capacity = capacity;
+            this.bits = new AtomicLongArray((int) Math.max(words, 1));
+            this.bitCount = (long) bits.length() * Long.SIZE;
+        }
+
+        boolean mightContain(long hash) {
+            int first = (int) hash;
+            int second = (int) (hash >>> 32) | 1;
+
+            for (int i = 0; i < hashCount; i++) {
+                long bit = Math.floorMod(first + (long) i * second, bitCount);
+                if ((bits.get((int) (bit >>> 6)) & (1L << bit)) == 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        void put(long hash) {
+            int first = (int) hash;
+            int second = (int) (hash >>> 32) | 1;
+
+            for (int i = 0; i < hashCount; i++) {
+                long bit = Math.floorMod(first + (long) i * second, bitCount);
+                int word = (int) (bit >>> 6);
+                bits.set(word, bits.get(word) | (1L << bit));
+            }
+            count++;
+        }
+    }
+}
@@ -0,0 +1,73 @@
+package cscie97.smartcity.ledger;
+
+import cscie97.smartcity.controller.LoggerUtil;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.logging.Level;
+
+/**
+ * Author: Stephen Sheldon
+ **/
+final class HashUtil {
+
+    /**
+     * Length in bytes of a SHA-256 hash.
+     */
+    static final int HASH_LENGTH = 32;
+
+    /**
+     * Hex digits used when converting hash bytes to a printable string.
+     */
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    /**
+     * SHA-256 digest reused by each thread so hashing doesn't look up a new digest every time.
+     */
+    private static final ThreadLocal<MessageDigest> THREAD_DIGEST = ThreadLocal.withInitial(HashUtil::sha256);
+
+    private HashUtil() {
+    }
+
+    /**
+     * Create a new SHA-256 message digest.
+     * @return A SHA-256 MessageDigest, or null if the algorithm isn't available.
+     */
+    static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            LoggerUtil.log(Level.SEVERE, "SHA-256 algorithm not found.", false);
+        }
+        return null;
+    }
+
+    /**
+     * Returns the SHA-256 digest of the calling thread. The digest is reset before it is returned
+     * but must not be held on to or handed to another thread.
+     * @return The thread's SHA-256 MessageDigest.
+     */
+    static MessageDigest threadDigest() {
+        MessageDigest digest = THREAD_DIGEST.get();
+        digest.reset();
+        return digest;
+    }
+
+    /**
+     * Convert a hash to its lower case hex representation.
+     * @param hash The raw hash bytes.
+     * @return     The hex string, or null if the hash is null.
+     */
+    static String toHex(byte[] hash) {
+        if (hash == null) {
+            return null;
+        }
+
+        char[] chars = new char[hash.length * 2];
+        for (int i = 0; i < hash.length; i++) {
+            chars[i * 2] = HEX[(hash[i] >> 4) & 0xf];
+            chars[i * 2 + 1] = HEX[hash[i] & 0xf];
+        }
+        return new String(chars);
+    }
+}
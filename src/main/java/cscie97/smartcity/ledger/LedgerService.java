@@ -6,10 +6,22 @@ import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
 import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.util.logging.Level;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 /**
  * Author: Stephen Sheldon
@@ -32,10 +44,72 @@ public class LedgerService {
     private String seed;
 
     /**
-     * A map of block numbers and the associated block.
+     * SHA-256 digest of the seed, included in every block header.
+     */
+    private byte[] seedDigest;
+
+    /**
+     * A map of block numbers and the associated block. When the ledger has a block store
+     * only the last committed block is kept here, older blocks are read from the store.
      */
     private final Map<Integer, Block> blockMap;
 
+    /**
+     * Number of the last committed block, 0 if no block has been committed. Only set once the
+     * block is hashed and, with a block store, stored.
+     */
+    private volatile int lastBlockNumber;
+
+    /**
+     * Blocks closed to new transactions that the block sealer hasn't committed yet, oldest first.
+     */
+    private final Queue<Block> sealingBlocks;
+
+    /**
+     * Hash of the last block the block sealer committed. Only used on the sealer thread.
+     */
+    private byte[] sealedHash;
+
+    /**
+     * Set if the block sealer failed to commit or store a block, later blocks can't be linked to it
+     * and new accounts and transactions are refused.
+     */
+    private volatile RuntimeException sealFailure;
+
+    /**
+     * Set once the ledger has been closed, new accounts and transactions are refused and no more
+     * blocks are closed. Only set while holding the write lock of sealLock.
+     */
+    private volatile boolean closed;
+
+    /**
+     * Number of closed blocks that may wait for the block sealer before the transaction filling
+     * the next block has to wait for it as well.
+     */
+    private static final int MAX_SEALING_BLOCKS = 16;
+
+    /**
+     * Monitor threads wait on until the block sealer has committed the blocks they are waiting for.
+     */
+    private final Object sealedMonitor = new Object();
+
+    /**
+     * Single thread that hashes, stores and publishes closed blocks in order, and closes blocks
+     * that got too old.
+     */
+    private final ScheduledExecutorService blockSealer;
+
+    /**
+     * Durable store of committed blocks, null if the ledger is kept in memory only.
+     */
+    private final BlockStore blockStore;
+
+    /**
+     * Log of the accepted accounts and transactions, kept in segments that are deleted once the block
+     * store holds every block they cover. Null if the ledger doesn't use a write-ahead log.
+     */
+    private final WriteAheadLog writeAheadLog;
+
     /**
      * The initial block of the blockchain.
       */
@@ -43,15 +117,99 @@ public class LedgerService {
 
     /**
      * The current block of the blockchain that HAS NOT been committed to
-     * our blockMap yet.
+     * our blockMap yet. Only replaced while holding the write lock of sealLock.
      */
-    private Block currentBlock;
+    private volatile Block currentBlock;
 
     /**
-     * The Merkle tree that will be used for computing the transaction hashes of
-     * our current block once our current block reaches 10 transactions.
+     * IDs and live balances of every account, with the transactions of the current block applied.
      */
-    private MerkleTree merkleTree;
+    private final AccountTable accounts;
+
+    /**
+     * ID of the master account in the account table.
+     */
+    private int masterId;
+
+    /**
+     * Balance of each account after every committed block, recorded when each block is closed.
+     */
+    private final BalanceHistory balanceHistory;
+
+    /**
+     * Account state of the last committed block, replaced as a whole by the block sealer once the block
+     * is stored so balance reads never lock and never see a block that failed to commit. Null until the
+     * first block is committed.
+     */
+    private volatile AccountStateTree committedState;
+
+    /**
+     * Positions of the committed transactions of each account, added when each block is committed.
+     */
+    private final AccountTransactionIndex accountTransactions;
+
+    /**
+     * Transactions and account creation hold the read lock so they run in parallel, committing
+     * the current block holds the write lock so it never sees a transaction half applied.
+     */
+    private final ReentrantReadWriteLock sealLock;
+
+    /**
+     * Locks of the accounts a transaction touches, so only transactions sharing an account are serialized.
+     */
+    private final StripedLocks accountLocks;
+
+    /**
+     * Number of transactions that fill a block.
+     */
+    private final int blockSize;
+
+    /**
+     * Age in nanoseconds after which a block is committed even if it isn't full, 0 to only commit full blocks.
+     */
+    private final long maxBlockAgeNanos;
+
+    /**
+     * Pool that orders transactions passed to processTransaction() by fee before they are added to a block,
+     * null if transactions are added right away.
+     */
+    private final Mempool mempool;
+
+    /**
+     * Thread adding the transactions of the mempool to blocks, null if there is no mempool.
+     */
+    private final Thread mempoolDrainer;
+
+    /**
+     * Index from transaction ID to the block and offset of the transaction, covering committed blocks.
+     */
+    private final TransactionIndex transactionIndex;
+
+    /**
+     * Bloom filter of every accepted transaction ID, so a new ID is only looked up in the
+     * transaction index and the uncommitted blocks when it may be a duplicate.
+     */
+    private final BloomFilter transactionIds;
+
+    /**
+     * Validator that checks committed blocks in parallel.
+     */
+    private final LedgerValidator validator;
+
+    /**
+     * File the validation checkpoint is saved to.
+     */
+    private final Path checkpointFile;
+
+    /**
+     * Last block known to be valid, 0 if no block has been validated yet.
+     */
+    private int validatedBlock;
+
+    /**
+     * Hash of the last block known to be valid, used to detect a checkpoint from a different chain.
+     */
+    private String validatedHash;
 
     private static LedgerService ledgerService;
 
@@ -85,27 +243,112 @@ public class LedgerService {
             this.seed = prop.getProperty("ledger_seed");
         else
             this.seed = "harvard";
+        if (prop != null && prop.containsKey("ledger_checkpoint_file"))
+            this.checkpointFile = Paths.get(prop.getProperty("ledger_checkpoint_file"));
+        else
+            this.checkpointFile = Paths.get("ledger.checkpoint");
+        if (prop != null && prop.containsKey("ledger_block_size"))
+            this.blockSize = Integer.parseInt(prop.getProperty("ledger_block_size"));
+        else
+            this.blockSize = 10;
+        if (prop != null && prop.containsKey("ledger_block_max_age_ms"))
+            this.maxBlockAgeNanos = Long.parseLong(prop.getProperty("ledger_block_max_age_ms")) * 1000000L;
+        else
+            this.maxBlockAgeNanos = 0;
 
-        // Create genesis block with default blocker number of 1
-        genesisBlock = new Block(1);
-
-        // Set currentBlock reference to genesis block
-        currentBlock = genesisBlock;
+        // A block that can never fill up would have transactions seal empty blocks forever
+        if (blockSize < 1) {
+            throw new LedgerException("load-config", "ledger_block_size must be at least 1 but is " + blockSize + ".");
+        }
+        if (maxBlockAgeNanos < 0) {
+            throw new LedgerException("load-config", "ledger_block_max_age_ms can't be negative but is " + maxBlockAgeNanos / 1000000L + ".");
+        }
+        long bloomStageBytes = Long.parseLong(prop != null ? prop.getProperty("ledger_bloom_max_stage_bytes", "67108864") : "67108864");
+        if (bloomStageBytes < Long.BYTES) {
+            throw new LedgerException("load-config", "ledger_bloom_max_stage_bytes must be at least " + Long.BYTES + " but is " + bloomStageBytes + ".");
+        }
+        if (prop != null && prop.containsKey("ledger_store_dir"))
+            this.blockStore = new BlockStore(Paths.get(prop.getProperty("ledger_store_dir")),
+                    Integer.parseInt(prop.getProperty("ledger_segment_size", "67108864")));
+        else
+            this.blockStore = null;
 
-        // Create master account
-        Account account = createAccount("master");
+        this.seedDigest = HashUtil.threadDigest().digest(seed.getBytes(StandardCharsets.UTF_8));
 
-        // Assign master account max currency of 2147483647
-        account.setBalance(Integer.MAX_VALUE);
+        // Create our block map
+        blockMap = new ConcurrentSkipListMap<>();
+
+        sealLock = new ReentrantReadWriteLock();
+        accountLocks = new StripedLocks(256);
+        sealingBlocks = new ConcurrentLinkedQueue<>();
+
+        // Closed blocks are committed in order on a single background thread
+        blockSealer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "ledger-block-sealer");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        // Create our transaction index
+        transactionIndex = new TransactionIndex();
+        transactionIds = new BloomFilter(1 << 16, 0.01, bloomStageBytes);
+        accounts = new AccountTable();
+        balanceHistory = new BalanceHistory();
+        accountTransactions = new AccountTransactionIndex();
+
+        if (blockStore != null && blockStore.size() > 0) {
+            // Pick up the chain where the block store left off
+            recover();
+        } else {
+            // Create genesis block with default blocker number of 1
+            genesisBlock = new Block(1, accounts);
+
+            // Set currentBlock reference to genesis block
+            currentBlock = genesisBlock;
+
+            // Create master account
+            Account account = createAccount("master");
+
+            // Assign master account max currency of 2147483647
+            account.setBalance(Integer.MAX_VALUE);
+
+            // Add master account to block
+            genesisBlock.addAccount(account);
+            masterId = accounts.getId("master");
+        }
 
-        // Add master account to block
-        genesisBlock.addAccount(account);
+        // Validation runs on the common pool, picking up from the last saved checkpoint
+        validator = new LedgerValidator(ForkJoinPool.commonPool(), seedDigest);
+        loadCheckpoint();
+
+        // Replay the accounts and transactions that weren't committed before the last shutdown
+        if (prop != null && prop.containsKey("ledger_wal_file")) {
+            WriteAheadLog log = new WriteAheadLog(Paths.get(prop.getProperty("ledger_wal_file")),
+                    currentBlock.getBlockNumber(), Long.parseLong(prop.getProperty("ledger_wal_window_ms", "0")));
+            replay(log);
+            this.writeAheadLog = log;
+        } else {
+            this.writeAheadLog = null;
+        }
 
-        // Create our block map
-        blockMap = new TreeMap<>();
+        // Have the block sealer close blocks that got too old
+        if (maxBlockAgeNanos > 0) {
+            long period = Math.max(maxBlockAgeNanos / 4, 1000000L);
+            blockSealer.scheduleWithFixedDelay(this::sealIfOld, period, period, TimeUnit.NANOSECONDS);
+        }
 
-        // Create our merkle tree
-        merkleTree = new MerkleTree();
+        // Queue transactions by fee in a mempool that fills each block with the highest fees first
+        if (prop != null && prop.containsKey("ledger_mempool_capacity")) {
+            int capacity = Integer.parseInt(prop.getProperty("ledger_mempool_capacity"));
+            this.mempool = new Mempool(capacity, Integer.parseInt(prop.getProperty("ledger_mempool_max_per_payer", Integer.toString(capacity))));
+
+            this.mempoolDrainer = new Thread(this::drainMempool, "ledger-mempool-drainer");
+            mempoolDrainer.setDaemon(true);
+            mempoolDrainer.start();
+        } else {
+            this.mempool = null;
+            this.mempoolDrainer = null;
+        }
     }
 
     /**
@@ -113,7 +356,7 @@ public class LedgerService {
      * @return An instance of the LedgerService.
      * @throws LedgerException
      */
-    public static LedgerService getInstance() throws LedgerException {
+    public static synchronized LedgerService getInstance() throws LedgerException {
         if (ledgerService == null) {
             ledgerService = new LedgerService();
         }
@@ -128,15 +371,33 @@ public class LedgerService {
      */
     public Account createAccount(String address) throws LedgerException {
 
-        // Check to see if the given account ID is already present in our accountBalanceMap
-        if (currentBlock != null && currentBlock.getAccountBalanceMap().containsKey(address)) {
-            // If it does already contain this account then throw an exception
-            throw new LedgerException("create-account.", "The account you are trying to create already exist.");
+        long logSequence = 0;
+
+        checkSealer("create-account");
+
+        sealLock.readLock().lock();
+        try {
+            // The ledger may have been closed since the check above
+            checkOpen("create-account");
+
+            // Check to see if the given account ID is already present in our accountBalanceMap
+            if (currentBlock.createAccount(address) == AccountTable.NO_ACCOUNT) {
+                // If it does already contain this account then throw an exception
+                throw new LedgerException("create-account.", "The account you are trying to create already exist.");
+            }
+            if (writeAheadLog != null) {
+                logSequence = writeAheadLog.appendAccount(address);
+            }
+        } finally {
+            sealLock.readLock().unlock();
         }
 
-        currentBlock.getAccountBalanceMap().put(address, new Account(address));
+        // Don't return until the new account is in the write-ahead log
+        if (writeAheadLog != null) {
+            writeAheadLog.awaitDurable(logSequence);
+        }
 
-        return currentBlock.getAccountBalanceMap().get(address);
+        return new Account(address);
     }
 
     /**
@@ -149,16 +410,24 @@ public class LedgerService {
      * @param payer         The account issuing the transaction.
      * @param receiver      The account receiving the amount from the transaction.
      * @return              The newly creation transaction object
-     * @throws LedgerException  Throw an exception if either the payer or receiver accounts don't exist in the ledgerService.
+     * @throws LedgerException  Throw an exception if the transaction ID is already used or if either the payer or receiver
+     *                          accounts don't exist in the ledgerService.
      *                          Throw an exception if the fee is below 10 units, if the amount isn't in the unsigned int range
      *                          or if the note's character limit exceed 1024 characters.
      */
     public Transaction createTransaction(String transactionId, Integer amount, Integer fee, String note, String payer, String receiver) throws LedgerException {
 
-        // Verify that both the receiver and payer accounts are in our account balance map
-        if (!currentBlock.getAccountBalanceMap().containsKey(receiver)) {
+        // Transaction IDs must be unique across the whole chain
+        if (containsTransaction(transactionId)) {
+            throw new LedgerException("create-transaction", "A transaction with the specified transaction ID already exists in the ledgerService.");
+        }
+
+        // Verify that both the receiver and payer accounts are in our account table
+        int receiverId = accounts.getId(receiver);
+        int payerId = accounts.getId(payer);
+        if (receiverId == AccountTable.NO_ACCOUNT) {
             throw new LedgerException("create-transaction", "The specified receiver does not have an account in the ledgerService.");
-        } else if (!currentBlock.getAccountBalanceMap().containsKey(payer)) {
+        } else if (payerId == AccountTable.NO_ACCOUNT) {
             throw new LedgerException("create-transaction", "The specified payer does not have an account in the ledgerService.");
         }
 
@@ -172,139 +441,553 @@ public class LedgerService {
             throw new LedgerException("create-transaction", "The transaction note is over 1024 characters in length.");
         }
 
-        return new Transaction(transactionId, amount, fee, note, currentBlock.getAccountBalanceMap().get(receiver), currentBlock.getAccountBalanceMap().get(payer));
+        // Use the interned addresses so transactions don't keep their own copies
+        return new Transaction(transactionId, amount, fee, note, accounts.getAddress(receiverId), accounts.getAddress(payerId),
+                receiverId, payerId);
     }
 
     /**
      * Process a transaction.  Finish validating the transaction and if valid, add it to our current block.
+     * Safe to call from several threads, transactions only wait on each other when they share an account.
+     * With a mempool the transaction first waits behind any pending transactions paying a higher fee.
      * @param transaction      The transaction object for the given transaction.
      * @return                 Return the assigned transaction ID.
-     * @throws LedgerException Throw an exception if the payer doesn't have sufficient funds.
+     * @throws LedgerException Throw an exception if the payer doesn't have sufficient funds or the mempool
+     *                         turns the transaction away.
      */
     public String processTransaction(Transaction transaction) throws LedgerException {
 
-        Integer payerBalance, receiverBalance, masterBalance;
-        Account payerAccount, receiverAccount, masterAccount;
+        checkSealer("process-transaction");
 
-        payerBalance = currentBlock.getAccountBalanceMap().get(transaction.getPayer().getAddress()).getBalance();
-        receiverBalance = currentBlock.getAccountBalanceMap().get(transaction.getReceiver().getAddress()).getBalance();
-        masterBalance = currentBlock.getAccountBalanceMap().get("master").getBalance();
+        if (mempool != null) {
+            Mempool.Entry entry = mempool.admit(transaction);
+            TransactionResult result = entry.getResult().join();
+            if (!result.isAccepted()) {
+                throw new LedgerException("process-transaction", result.getReason());
+            }
 
-        // Transactions should only be accepted if the paying account has a sufficient
-        // balance to cover the amount and the associated transaction fee.
-        if (payerBalance < (transaction.getFee() + transaction.getAmount())) {
-            throw new LedgerException("process-transaction", "The payer has insufficient funds for the transaction.");
+            // The drainer doesn't wait for the log, so submitters waiting at the same time still share one sync
+            if (writeAheadLog != null) {
+                writeAheadLog.awaitDurable(entry.getLogSequence());
+            }
+            return transaction.getTransactionId();
         }
 
-        payerAccount = currentBlock.getAccountBalanceMap().get(transaction.getPayer().getAddress());
-        receiverAccount = currentBlock.getAccountBalanceMap().get(transaction.getReceiver().getAddress());
-        masterAccount = currentBlock.getAccountBalanceMap().get("master");
+        String payerAddress = transaction.getPayerAddress();
+        String receiverAddress = transaction.getReceiverAddress();
+        long logSequence = 0;
+        Block block;
+        boolean added;
+
+        // Retry in the next block if the current block fills up first
+        do {
+            sealLock.readLock().lock();
+            try {
+                checkOpen("process-transaction");
+                block = currentBlock;
+
+                // Only transactions touching the same accounts wait on each other
+                int[] stripes = accountLocks.lock(payerAddress, receiverAddress);
+                try {
+                    synchronized (block) {
+                        added = block.getTransactionList().size() < blockSize;
+                        if (added) {
+                            // Check the ID and funds before the slot is taken so a rejected transaction leaves no gap
+                            checkDuplicate(transaction);
+                            checkFunds(block, transaction);
+
+                            // add this transaction to the list, logging it in the same order before any balance is changed
+                            block.getTransactionList().add(transaction);
+                            transactionIds.put(transaction.getTransactionId());
+                            block.markChanged(transaction.getPayerId());
+                            block.markChanged(transaction.getReceiverId());
+                            block.markFirstTransaction();
+                            if (writeAheadLog != null) {
+                                logSequence = writeAheadLog.appendTransaction(transaction);
+                            }
+                        }
+                    }
+                    if (added) {
+                        applyTransaction(block, transaction);
+                    }
+                } finally {
+                    accountLocks.unlock(stripes);
+                }
+            } finally {
+                sealLock.readLock().unlock();
+            }
 
-        // add this transaction to the list and commit this block
-        currentBlock.getTransactionList().add(transaction);
+            // Commit the block once it has blockSize transactions
+            sealIfFull(block);
+        } while (!added);
 
-        // Special case where payer account is same as master account
-        if (transaction.getPayer().getAddress().equals("master") &&
-            transaction.getPayer() != transaction.getReceiver()) {
+        // Don't return until the transaction is on disk. Submitters waiting at the same time share one sync.
+        if (writeAheadLog != null) {
+            writeAheadLog.awaitDurable(logSequence);
+        }
 
-            // Deduct transaction amount from master account
-            masterBalance -= transaction.getAmount();
+        return transaction.getTransactionId();
+    }
+
+    /**
+     * Process a batch of transactions in order, as if processTransaction() was called for each of them.
+     * Each block's share of the batch is checked and applied under one lock of its accounts, and the
+     * batch waits for the write-ahead log once. A batch larger than the room left in the current block
+     * carries on in the following blocks.
+     * @param transactions The transactions, usually from createTransaction().
+     * @return             The result of each transaction, in the order of the batch.
+     * @throws LedgerException Throw an exception if the accepted transactions couldn't be logged.
+     */
+    public List<TransactionResult> processTransactions(List<Transaction> transactions) throws LedgerException {
 
-            // Add transaction amount to receiver account
-            receiverBalance += transaction.getAmount();
+        checkSealer("process-transactions");
 
-            // Write new balances to accounts
-            receiverAccount.setBalance(receiverBalance);
-            masterAccount.setBalance(masterBalance);
+        List<TransactionResult> results = new ArrayList<>(transactions.size());
+        long logSequence = addTransactions(transactions, results);
 
+        // The whole batch shares the wait for the write-ahead log
+        if (writeAheadLog != null && logSequence > 0) {
+            writeAheadLog.awaitDurable(logSequence);
         }
-        // Case where receiver is master account
-        else if (transaction.getReceiver().getAddress().equals("master") &&
-            transaction.getPayer() != transaction.getReceiver()) {
 
-            // Deduct fee from payer account.
-            payerBalance -= transaction.getFee();
+        return results;
+    }
+
+    /**
+     * Add a batch of transactions to the current block and the blocks after it without waiting for the
+     * write-ahead log.
+     * @param transactions The transactions.
+     * @param results      The result of each transaction is added to this list, in the order of the batch.
+     * @return             The write-ahead log sequence number of the last accepted transaction, 0 if none.
+     */
+    private long addTransactions(List<Transaction> transactions, List<TransactionResult> results) {
+
+        long logSequence = 0;
+        int next = 0;
+
+        while (next < transactions.size()) {
+            Block block;
+
+            sealLock.readLock().lock();
+            try {
+                // The rest of the batch is turned away once the ledger has been closed
+                if (closed) {
+                    while (next < transactions.size()) {
+                        results.add(new TransactionResult(transactions.get(next++).getTransactionId(), 0, "The ledger has been closed."));
+                    }
+                    return logSequence;
+                }
+                block = currentBlock;
+
+                // Lock the accounts of as many transactions as the block can take
+                int end = Math.min(transactions.size(), next + blockSize);
+                String[] addresses = new String[2 * (end - next)];
+                for (int i = next; i < end; i++) {
+                    addresses[2 * (i - next)] = transactions.get(i).getPayerAddress();
+                    addresses[2 * (i - next) + 1] = transactions.get(i).getReceiverAddress();
+                }
+
+                int[] stripes = accountLocks.lock(addresses);
+                try {
+                    synchronized (block) {
+                        while (next < end && block.getTransactionList().size() < blockSize) {
+                            Transaction transaction = transactions.get(next++);
+
+                            try {
+                                checkDuplicate(transaction);
+                                checkFunds(block, transaction);
+                            } catch (LedgerException e) {
+                                results.add(new TransactionResult(transaction.getTransactionId(), 0, e.getAction()));
+                                continue;
+                            }
+
+                            block.getTransactionList().add(transaction);
+                            transactionIds.put(transaction.getTransactionId());
+                            block.markChanged(transaction.getPayerId());
+                            block.markChanged(transaction.getReceiverId());
+                            block.markFirstTransaction();
+                            if (writeAheadLog != null) {
+                                logSequence = writeAheadLog.appendTransaction(transaction);
+                            }
+
+                            // Applied right away since later transactions of the batch may spend the same funds
+                            applyTransaction(block, transaction);
+                            results.add(new TransactionResult(transaction.getTransactionId(), block.getBlockNumber(), null));
+                        }
+                    }
+                } finally {
+                    accountLocks.unlock(stripes);
+                }
+            } finally {
+                sealLock.readLock().unlock();
+            }
 
-            // Deduct transaction amount from payer account.
-            payerBalance -= transaction.getAmount();
+            // Commit the block once it has blockSize transactions
+            sealIfFull(block);
+        }
 
-            // Add fee to master account
-            masterBalance += transaction.getFee();
+        return logSequence;
+    }
 
-            // Add transaction amount to master account
-            masterBalance += transaction.getAmount();
+    /**
+     * Run by the mempool drainer thread. Takes a block's worth of the highest fee pending transactions
+     * at a time and adds them as a batch, so each block is filled from the mempool and sealed once full.
+     * Submitters wait for the write-ahead log themselves so the drainer can move on to the next block.
+     */
+    private void drainMempool() {
+        while (true) {
+            List<Mempool.Entry> entries;
+            try {
+                entries = mempool.take(blockSize);
+            } catch (InterruptedException e) {
+                return;
+            }
 
-            // Write new balances to accounts
-            payerAccount.setBalance(payerBalance);
-            masterAccount.setBalance(masterBalance);
+            // The mempool has been closed and everything in it added
+            if (entries.isEmpty()) {
+                return;
+            }
 
+            List<Transaction> batch = new ArrayList<>(entries.size());
+            for (Mempool.Entry entry : entries) {
+                batch.add(entry.getTransaction());
+            }
+
+            List<TransactionResult> results = new ArrayList<>(entries.size());
+            try {
+                long logSequence = addTransactions(batch, results);
+                for (int i = 0; i < entries.size(); i++) {
+                    entries.get(i).setLogSequence(logSequence);
+                    entries.get(i).getResult().complete(results.get(i));
+                }
+            } catch (RuntimeException e) {
+                for (Mempool.Entry entry : entries) {
+                    entry.getResult().complete(new TransactionResult(entry.getTransaction().getTransactionId(), 0, e.toString()));
+                }
+            }
         }
-        // Case where neither payer or receiver are master account and accounts are not equal
-        else if (transaction.getReceiver() != transaction.getPayer()) {
+    }
 
-            // Deduct fee from payer account.
-            payerBalance -= transaction.getFee();
+    /**
+     * Returns how often a transaction had to wait for the lock of an account that another transaction held.
+     * @return The number of waits since the ledger was created.
+     */
+    public long getAccountLockWaits() {
+        return accountLocks.getWaitCount();
+    }
 
-            // Deduct transaction amount from payer account.
-            payerBalance -= transaction.getAmount();
+    /**
+     * Returns the queue depth and wait times of the mempool.
+     * @return The mempool metrics.
+     * @throws LedgerException Throw an exception if the ledger doesn't have a mempool.
+     */
+    public MempoolMetrics getMempoolMetrics() throws LedgerException {
+        if (mempool == null) {
+            throw new LedgerException("get-mempool-metrics", "The ledger doesn't have a mempool.");
+        }
+        return mempool.getMetrics();
+    }
+
+    /**
+     * Commit every closed block, stop the block sealer and close the write-ahead log, so no block
+     * accepted before the call is lost when the process exits. The mempool stops admitting transactions
+     * and the ones already in it are added first. The current block stays open and its transactions are
+     * replayed from the write-ahead log on the next start.
+     * @throws LedgerException Throw an exception if the block sealer failed to commit a block.
+     */
+    public void close() throws LedgerException {
+
+        if (mempool != null) {
+            mempool.close();
+            try {
+                mempoolDrainer.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        sealLock.writeLock().lock();
+        try {
+            if (closed) {
+                return;
+            }
+            closed = true;
+        } finally {
+            sealLock.writeLock().unlock();
+        }
+
+        try {
+            awaitSealed();
+        } finally {
+            blockSealer.shutdown();
+            try {
+                if (!blockSealer.awaitTermination(1, TimeUnit.MINUTES)) {
+                    LoggerUtil.log(Level.SEVERE, "The block sealer didn't stop in time.", false);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            if (writeAheadLog != null) {
+                writeAheadLog.close();
+            }
+        }
+    }
+
+    /**
+     * Blocks that can't be committed would be lost, so nothing more is accepted once the block sealer has failed.
+     * @param action The action refused.
+     * @throws LedgerException Throw an exception if the block sealer failed to commit or store a block.
+     */
+    private void checkSealer(String action) throws LedgerException {
+        checkOpen(action);
+        RuntimeException failure = sealFailure;
+        if (failure != null) {
+            throw new LedgerException(action, "The ledger can't commit blocks anymore: " + failure.getMessage());
+        }
+    }
+
+    /**
+     * Nothing more is accepted once the ledger has been closed. Checked again while holding the read lock of
+     * sealLock, since close() sets closed under the write lock and then closes the write-ahead log.
+     * @param action The action refused.
+     * @throws LedgerException Throw an exception if the ledger has been closed.
+     */
+    private void checkOpen(String action) throws LedgerException {
+        if (closed) {
+            throw new LedgerException(action, "The ledger has been closed.");
+        }
+    }
+
+    /**
+     * Transactions are only accepted once per transaction ID. createTransaction() checks this as well, but
+     * two transactions with the same ID may have been created before either was processed. The caller
+     * holds the monitor of the current block, which every accepted ID is added under.
+     * @throws LedgerException Throw an exception if a transaction with the same ID was already accepted.
+     */
+    private void checkDuplicate(Transaction transaction) throws LedgerException {
+        if (containsTransaction(transaction.getTransactionId())) {
+            throw new LedgerException("process-transaction", "A transaction with the specified transaction ID has already been processed.");
+        }
+    }
+
+    /**
+     * Returns true if a transaction with the given ID has been accepted. The Bloom filter answers for
+     * almost every new ID, only possible duplicates are looked up.
+     * @param transactionId The transaction ID.
+     * @return              True if the ID is already used.
+     */
+    private boolean containsTransaction(String transactionId) {
+        if (!transactionIds.mightContain(transactionId)) {
+            return false;
+        }
+
+        // Check again after the uncommitted blocks since their transactions are indexed before they are dropped
+        return transactionIndex.contains(transactionId, this::readCommittedTransaction)
+                || findUncommittedTransaction(transactionId) != null
+                || transactionIndex.contains(transactionId, this::readCommittedTransaction);
+    }
+
+    /**
+     * Transactions should only be accepted if the paying account has a sufficient
+     * balance to cover the amount and the associated transaction fee. The caller holds the lock of the payer account.
+     * @throws LedgerException Throw an exception if either account doesn't exist or the payer doesn't have sufficient funds.
+     */
+    private void checkFunds(Block block, Transaction transaction) throws LedgerException {
+        if (!transaction.resolveAccounts(accounts)) {
+            throw new LedgerException("process-transaction", "The payer or receiver does not have an account in the ledgerService.");
+        }
+
+        long payerBalance = accounts.getBalance(transaction.getPayerId());
+
+        if (payerBalance < ((long) transaction.getFee() + transaction.getAmount())) {
+            throw new LedgerException("process-transaction", "The payer has insufficient funds for the transaction.");
+        }
+    }
+
+    /**
+     * Move the amount and fee of an accepted transaction between the accounts of the block.
+     * The caller holds the locks of the payer and receiver accounts. Fees are added to the
+     * block's fee accumulator and only credited to the master account when the block is
+     * committed, so transactions that don't involve the master account never lock it.
+     */
+    private void applyTransaction(Block block, Transaction transaction) {
+
+        int payerId = transaction.getPayerId();
+        int receiverId = transaction.getReceiverId();
+        int amount = transaction.getAmount();
+        int fee = transaction.getFee();
+
+        // A payment to the same account changes nothing
+        if (payerId == receiverId) {
+            return;
+        }
+
+        // Special case where payer account is same as master account, the fee stays with the master account
+        if (payerId == masterId) {
+
+            // Deduct transaction amount from master account and add it to receiver account
+            accounts.addBalance(payerId, -amount);
+            accounts.addBalance(receiverId, amount);
+        }
+        // Case where the payer isn't the master account, including payments to the master account
+        else {
+
+            // Deduct fee and transaction amount from payer account.
+            accounts.addBalance(payerId, -(long) fee - amount);
 
             // Add fee to master account.
-            masterBalance += transaction.getFee();
+            block.addFee(fee);
 
             // Add transaction amount to receiver account.
-            receiverBalance += transaction.getAmount();
+            accounts.addBalance(receiverId, amount);
+        }
+    }
 
-            // Write the new balances to payer account.
-            payerAccount.setBalance(payerBalance);
-            receiverAccount.setBalance(receiverBalance);
-            masterAccount.setBalance(masterBalance);
+    /**
+     * Close the block if it is still the current block and has blockSize transactions.
+     * @param block The block a transaction was just added to.
+     */
+    private void sealIfFull(Block block) {
+        if (currentBlock != block) {
+            return;
         }
 
-        if (currentBlock.getTransactionList().size() == 10) {
-            currentBlock = incrementCurrentBlock(currentBlock);
+        // Don't let the blocks waiting for the block sealer pile up
+        try {
+            awaitSealed(block.getBlockNumber() - MAX_SEALING_BLOCKS);
+        } catch (LedgerException e) {
+            LoggerUtil.log(Level.SEVERE, e.getAction(), false);
         }
 
-        return transaction.getTransactionId();
+        sealLock.writeLock().lock();
+        try {
+            if (!closed && currentBlock == block && block.getTransactionList().size() >= blockSize) {
+                currentBlock = closeBlock(block);
+            }
+        } finally {
+            sealLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Run by the block sealer. Close the current block, even if it isn't full, once its
+     * first transaction is older than the maximum block age so balances don't stay stale.
+     */
+    private void sealIfOld() {
+        Block block = currentBlock;
+        if (block.getAgeNanos() < maxBlockAgeNanos) {
+            return;
+        }
+        sealLock.writeLock().lock();
+        try {
+            if (!closed && currentBlock == block && !block.getTransactionList().isEmpty()) {
+                currentBlock = closeBlock(block);
+            }
+        } catch (RuntimeException e) {
+            LoggerUtil.log(Level.SEVERE, "Unable to seal block " + block.getBlockNumber() + ": " + e.getMessage(), false);
+        } finally {
+            sealLock.writeLock().unlock();
+        }
     }
 
     /**
      * Return the account balance for the account with a given address based on the most recently completed block.
+     * The balance is read from the published snapshot of the account state without locking. It only waits for
+     * blocks that were already closed to be committed, never for transactions.
      * @param address The address of the account number we wish to retrieve the balance of.
      * @return        The balance of the account with the given address.
-     * @throws LedgerException  Throw an exception if our blockmap hasn't been initialized, is empty or doesn't contain
-     *                          the account with the specified address.
+     * @throws LedgerException  Throw an exception if no block has been completed, it doesn't contain
+     *                          the account with the specified address or a closed block failed to commit.
      */
     public Integer getAccountBalance(String address) throws LedgerException {
 
-        // Check if blockMap is null or empty or doesn't contain the account
-        if (blockMap == null ||
-                blockMap.isEmpty() ||
-                !blockMap.get(blockMap.size()).getAccountBalanceMap().containsKey(address)) {
+        awaitSealed();
+        AccountStateTree state = committedState;
+        Account account = state == null ? null : state.get(address);
+
+        // Check if there is no committed block or it doesn't contain the account
+        if (account == null) {
             throw new LedgerException("get-account-balance", "The specified account has not been committed to a block.");
         }
 
         // Return balance from account
-        return blockMap.get(blockMap.size()).getAccountBalanceMap().get(address).getBalance();
+        return account.getBalance();
     }
 
     /**
-     * Return the account balance map for the most recently completed block.
+     * Return the account balance for the account with a given address including the transactions of the current
+     * block that haven't been committed yet. The balance is read without locking, except for the master account
+     * whose balance is read together with the fees of the current block.
+     * @param address The address of the account.
+     * @return        The balance of the account with every accepted transaction applied.
+     * @throws LedgerException Throw an exception if the account doesn't exist.
+     */
+    public Integer getPendingAccountBalance(String address) throws LedgerException {
+
+        int id = accounts.getId(address);
+        if (id == AccountTable.NO_ACCOUNT) {
+            throw new LedgerException("get-account-balance", "The specified account does not exist in the ledgerService.");
+        }
+
+        if (id != masterId) {
+            return (int) accounts.getBalance(id);
+        }
+
+        // Closing a block moves its fees into the master balance, so both are read while no block can be closed
+        sealLock.readLock().lock();
+        try {
+            return (int) (accounts.getBalance(id) + currentBlock.getPendingFees());
+        } finally {
+            sealLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Return the account balance for the account with a given address as of the given committed block.
+     * @param address     The address of the account.
+     * @param blockNumber The number of the block.
+     * @return            The balance of the account after the transactions of the block.
+     * @throws LedgerException  Throw an exception if the ledger doesn't have a committed block with the given number
+     *                          or the account wasn't created by that block.
+     */
+    public Integer getAccountBalance(String address, Integer blockNumber) throws LedgerException {
+
+        awaitSealed();
+
+        if (blockNumber < 1 || blockNumber > lastBlockNumber) {
+            throw new LedgerException("get-account-balance", "The ledgerService doesn't contain a block with the specified block number.");
+        }
+
+        // Found by a binary search over the blocks that changed the account
+        Integer balance = balanceHistory.getBalance(address, blockNumber);
+        if (balance == null) {
+            throw new LedgerException("get-account-balance", "The specified account had not been committed to a block by the specified block.");
+        }
+        return balance;
+    }
+
+    /**
+     * Return the account balance map for the most recently completed block. The map can't be changed and
+     * each account read from it is a copy, so changing one doesn't change the ledger.
      * @return account balance map for most recently completed block.
-     * @throws LedgerException Throw an exception if the block map is currently empty.
+     * @throws LedgerException Throw an exception if the block map is currently empty or a closed block failed to commit.
      */
     public Map<String, Account> getAccountBalances() throws LedgerException {
 
-        // If block map is empty throw an exception
-        if (blockMap.isEmpty()) {
+        awaitSealed();
+        AccountStateTree state = committedState;
+
+        // If no block has been completed throw an exception
+        if (state == null) {
             throw new LedgerException("get-account-balances", "There are no accounts in our blockchain.");
         }
 
-        // Return the account balance map of the last block written to block map
-        return blockMap.get(blockMap.size()).getAccountBalanceMap();
+        // Return the published account state of the last completed block
+        return state;
     }
 
     /**
-     * Returns the block for the given block number.
+     * Returns the block for the given block number. Blocks are only returned once they are fully committed.
      * @param blockNumber   Block number of the block we wish to retrieve.
      * @return              Block object with corresponding block number.
      * @throws LedgerException Throw an exception if the block number is a negative value or if our block map
@@ -316,150 +999,546 @@ public class LedgerService {
         if (blockNumber < 0) {
             throw new LedgerException("get-block", "The block number you entered isn't positive.");
         }
+
+        // Wait for the blocks that are still being committed
+        awaitSealed();
+
         // Verify that our block map contains the block number specified
-        else if (!blockMap.containsKey(blockNumber)) {
+        if (blockNumber < 1 || blockNumber > lastBlockNumber) {
             throw new LedgerException("get-block", "The ledgerService doesn't contain a block with the specified block number.");
         }
         else {
-            return blockMap.get(blockNumber);
+            return getCommittedBlock(blockNumber);
         }
     }
 
     /**
-     * Look up a transaction with a given transaction ID and return it to the user.
+     * Returns a lazy stream of the committed blocks in the given range. Blocks are read one at a time as
+     * the stream reaches them, so walking the whole chain runs in constant memory, and the range splits
+     * in half for parallel streams. Blocks committed after the call aren't included.
+     * @param fromBlock The first block of the range.
+     * @param toBlock   The last block of the range, limited to the last committed block.
+     * @return          The blocks in chain order.
+     * @throws LedgerException Throw an exception if the first block isn't positive.
+     */
+    public Stream<Block> streamBlocks(Integer fromBlock, Integer toBlock) throws LedgerException {
+
+        if (fromBlock < 1) {
+            throw new LedgerException("stream-blocks", "The block number you entered isn't positive.");
+        }
+
+        // Wait for the blocks that are still being committed
+        awaitSealed();
+
+        return StreamSupport.stream(new BlockSpliterator(this::getCommittedBlock, fromBlock, Math.min(toBlock, lastBlockNumber)), false);
+    }
+
+    /**
+     * Returns a lazy stream of the transactions of the committed blocks in the given range, in chain order.
+     * Each block's transactions are streamed as the block is reached, and parallel streams split the range
+     * of blocks.
+     * @param fromBlock The first block of the range.
+     * @param toBlock   The last block of the range, limited to the last committed block.
+     * @return          The transactions in chain order.
+     * @throws LedgerException Throw an exception if the first block isn't positive.
+     */
+    public Stream<Transaction> streamTransactions(Integer fromBlock, Integer toBlock) throws LedgerException {
+        return streamBlocks(fromBlock, toBlock).flatMap(block -> block.getTransactionList().stream());
+    }
+
+    /**
+     * Look up a transaction with a given transaction ID and return it to the user. Transactions
+     * in blocks that haven't been committed yet are found as well.
      * @param transactionId     The transaction ID of the transaction we wish to find.
      * @return                  The transaction object with the specified transaction ID.
-     * @throws LedgerException  If the current block doesn't contain the transaction ID then throw an exception.
+     * @throws LedgerException  If the ledger doesn't contain the transaction ID then throw an exception.
      */
     public Transaction getTransaction(String transactionId) throws LedgerException {
 
-        ArrayList<Transaction> transactionList = compileTransactionList(blockMap);
+        // Find the committed transaction
+        Transaction transaction = transactionIndex.get(transactionId, this::readCommittedTransaction);
 
-        // Check our transactionList to see if we have a transaction with the specified ID
-        if (transactionList.stream().filter(t -> t.getTransactionId().equals(transactionId)).findFirst().isEmpty()) {
+        if (transaction == null) {
+            // Otherwise look through the blocks that haven't been committed
+            transaction = findUncommittedTransaction(transactionId);
+        }
+        if (transaction == null) {
+            // The block may have been committed since the first look
+            transaction = transactionIndex.get(transactionId, this::readCommittedTransaction);
+        }
+        if (transaction == null) {
             throw new LedgerException("get-transaction", "No transaction found with the given transaction ID.");
         }
+        return transaction;
+    }
 
-        return transactionList.stream().filter(t -> t.getTransactionId().equals(transactionId)).findFirst().get();
+    /**
+     * Returns the committed transaction at a position of the transaction index.
+     * @param position The packed block number and offset.
+     * @return         The transaction, or null if the block can't be read.
+     */
+    private Transaction readCommittedTransaction(long position) {
+        Block block = getCommittedBlock(TransactionIndex.blockNumber(position));
+        return block == null ? null : block.getTransactionList().get(TransactionIndex.offset(position));
     }
 
     /**
-     * Validate the current state of the blockchain. For each block, check
-     * the hash of the previous hash, make sure that the account balances total to the max value.
-     * Verify that each completed block has exactly 10 transactions.
-     * @throws LedgerException Throw an exception for hash mismatches, total account balance greater than
-     *                         Integer.MAX_VALUE or blocks with transaction list sizes that aren't equal to 10.
+     * Return a page of the committed transactions an account paid or received, in chain order. Only the
+     * blocks holding the account's transactions are read. A page holds whole blocks, so a page may end before
+     * limit transactions and continues at AccountStatement.getNextBlock().
+     * @param address   The address of the account.
+     * @param fromBlock The first block of the page.
+     * @param limit     The most transactions to return, unless the first block alone has more.
+     * @return          The page of transactions and the block the next page starts at.
+     * @throws LedgerException Throw an exception if the account doesn't exist or the block or limit isn't positive.
      */
-    public void validate() throws LedgerException {
+    public AccountStatement getAccountTransactions(String address, Integer fromBlock, Integer limit) throws LedgerException {
 
-        // Compare the stored previous hash block with the actual hash of the previous block.
-        // Start at a value of 2 because the genesis block doesn't have a previous hash to compare to.
-        for (int i = 2; i <= blockMap.size(); i++) {
+        if (fromBlock < 1 || limit < 1) {
+            throw new LedgerException("get-account-transactions", "The block number and limit must be positive.");
+        }
+        if (accounts.getId(address) == AccountTable.NO_ACCOUNT) {
+            throw new LedgerException("get-account-transactions", "The specified account does not exist in the ledgerService.");
+        }
+
+        // Wait for the blocks that are still being committed
+        awaitSealed();
 
-            // Compare hashes
-            if (!blockMap.get(i).getPreviousHash().equals(blockMap.get(i - 1).getHash())) {
-                throw new LedgerException("validate", "Hash mismatch.");
+        long[] positions = accountTransactions.getPage(address, fromBlock, limit);
+        List<Transaction> transactions = new ArrayList<>(positions.length);
+        Block block = null;
+
+        for (long position : positions) {
+            // Positions are in chain order, each block is read once
+            if (block == null || block.getBlockNumber() != TransactionIndex.blockNumber(position)) {
+                block = getCommittedBlock(TransactionIndex.blockNumber(position));
             }
+            transactions.add(block.getTransactionList().get(TransactionIndex.offset(position)));
         }
 
-        Integer accountsTotal = 0;
+        int nextBlock = 0;
+        if (positions.length > 0) {
+            int following = TransactionIndex.blockNumber(positions[positions.length - 1]) + 1;
+            if (accountTransactions.hasTransactionsFrom(address, following)) {
+                nextBlock = following;
+            }
+        }
+        return new AccountStatement(address, transactions, nextBlock);
+    }
+
+    /**
+     * Look through the few transactions of the current block and the blocks still being committed, which
+     * are only removed once they are indexed.
+     * @param transactionId The transaction ID.
+     * @return              The transaction, or null if it isn't in a block that hasn't been committed.
+     */
+    private Transaction findUncommittedTransaction(String transactionId) {
+        sealLock.readLock().lock();
+        try {
+            Block block = currentBlock;
+            synchronized (block) {
+                for (Transaction transaction : block.getTransactionList()) {
+                    if (transaction.getTransactionId().equals(transactionId)) {
+                        return transaction;
+                    }
+                }
+            }
 
-        // Sum all account balances
-        for (Map.Entry<String, Account> entry : getAccountBalances().entrySet()) {
-            accountsTotal += entry.getValue().getBalance();
+            for (Block sealing : sealingBlocks) {
+                for (Transaction transaction : sealing.getTransactionList()) {
+                    if (transaction.getTransactionId().equals(transactionId)) {
+                        return transaction;
+                    }
+                }
+            }
+        } finally {
+            sealLock.readLock().unlock();
         }
+        return null;
+    }
 
-        // Verify that it's equal to Integer.MAX_VALUE
-        if (accountsTotal != Integer.MAX_VALUE) {
-            throw new LedgerException("validate", "The sum of all account balances does not equal Integer.MAX_VALUE.");
+    /**
+     * Validate the current state of the blockchain. Blocks are checked in parallel, verifying that each
+     * header hashes to the block hash and links to the previous block, that each block has the
+     * transactions its header counts matching its merkle root and that the account balances total to the max value.
+     * Blocks may have any number of transactions, since the block size can change and old blocks are sealed early.
+     * Only blocks after the last validation checkpoint are checked.
+     * @return The range of blocks checked and the time spent in each phase.
+     * @throws LedgerException Throw an exception for hash mismatches, total account balance greater than
+     *                         Integer.MAX_VALUE or blocks that are empty or don't match their header.
+     */
+    public synchronized ValidationResult validate() throws LedgerException {
+
+        // Take the last committed block and its account state together
+        awaitSealed();
+        Block lastCommitted = getLastCommittedBlock();
+        int lastBlock = lastCommitted == null ? 0 : lastCommitted.getBlockNumber();
+        AccountStateTree accountState = lastCommitted == null ? currentBlock.getAccountState() : lastCommitted.getAccountState();
+
+        // Start over if the checkpoint doesn't match this chain
+        Block checkpointBlock = getCommittedBlock(validatedBlock);
+        if (validatedBlock > lastBlock || (validatedBlock > 0 &&
+                (checkpointBlock == null || !checkpointBlock.getHash().equals(validatedHash)))) {
+            validatedBlock = 0;
+            validatedHash = null;
         }
 
-        for (Map.Entry<Integer, Block> entry : blockMap.entrySet()) {
-            if (entry.getValue().getTransactionList().size() != 10) {
-                throw new LedgerException("validate", "There exists a block that does not have exactly 10 transactions.");
-            }
+        ValidationResult result = validator.validate(this::getCommittedBlock, validatedBlock + 1, lastBlock, accountState);
+
+        if (lastBlock > validatedBlock) {
+            validatedBlock = lastBlock;
+            validatedHash = getCommittedBlock(lastBlock).getHash();
+            saveCheckpoint();
         }
 
+        LoggerUtil.log(Level.INFO, result.toString(), false);
         LoggerUtil.log(Level.INFO, "The blockchain is valid", true);
+
+        return result;
     }
 
     /**
-     * Helper method to commit our current block to the ledgerService once it fills up with transactions and
-     * create a new block. Merkle tree creation and necessary hashing takes place here.
-     * @param currentBlock The current block that now has 10 transactions.
+     * Load the last validated block number and hash from the checkpoint file, if there is one.
+     */
+    private void loadCheckpoint() {
+        try {
+            String[] checkpoint = new String(Files.readAllBytes(checkpointFile), StandardCharsets.UTF_8).trim().split("\\s+");
+            validatedBlock = Integer.parseInt(checkpoint[0]);
+            validatedHash = checkpoint[1];
+        } catch (NoSuchFileException ex) {
+            validatedBlock = 0;
+        } catch (IOException | RuntimeException ex) {
+            LoggerUtil.log(Level.WARNING, "Unable to read validation checkpoint " + checkpointFile + ", validating from the first block.", false);
+            validatedBlock = 0;
+            validatedHash = null;
+        }
+    }
+
+    /**
+     * Save the last validated block number and hash to the checkpoint file.
+     */
+    private void saveCheckpoint() {
+        try {
+            Files.write(checkpointFile, (validatedBlock + " " + validatedHash + "\n").getBytes(StandardCharsets.UTF_8));
+        } catch (IOException ex) {
+            LoggerUtil.log(Level.SEVERE, "Unable to save validation checkpoint " + checkpointFile + ".", false);
+        }
+    }
+
+    /**
+     * Helper method to close our current block once it fills up with transactions and create a new block.
+     * Only the fees and the account state are settled here, while holding the write lock, so the new block
+     * takes transactions right away. The merkle tree, hashing and storing of the closed block are left to
+     * the block sealer.
+     * @param currentBlock The current block that is full or too old.
      * @return             A new block containing our account balance map.
      */
-    private Block incrementCurrentBlock(Block currentBlock) {
+    private Block closeBlock(Block currentBlock) {
 
-        List<Node> hashList = new ArrayList<>();
+        // Credit the fees of the block's transactions to the master account
+        long fees = currentBlock.takeFees();
+        if (fees > 0) {
+            accounts.addBalance(masterId, fees);
+            currentBlock.markChanged(masterId);
+        }
 
-        String blockHashString;
+        // Merge the accounts changed by this block into its account state
+        currentBlock.commitAccountState();
+        balanceHistory.record(currentBlock.getBlockNumber(), currentBlock.getChangedAccounts());
 
-        // Create a list of all hashes in our block.
-        for (int i = 0; i < currentBlock.getTransactionList().size(); i++) {
-            hashList.add(i, new Node(currentBlock.getTransactionList().get(i).getTransactionHash()));
+        // Create new block that shares the account state of the closed block. With a block store the
+        // previous block isn't referenced so the chain doesn't stay in memory. The previous hash is
+        // set when the new block is committed.
+        Block nextBlock = new Block(currentBlock.getBlockNumber()+1, currentBlock.getAccountState(),
+                blockStore == null ? currentBlock : null, null, accounts);
+
+        // No transaction is being logged, so the log can move to a new segment at the new block
+        if (writeAheadLog != null) {
+            writeAheadLog.rotate(nextBlock.getBlockNumber());
         }
 
-        // Set the merkle root node for this block by creating the tree.
-        currentBlock.setMerkleTree(merkleTree.createTree(hashList));
+        sealingBlocks.add(currentBlock);
+        blockSealer.execute(() -> commitBlock(currentBlock));
+
+        return nextBlock;
+    }
 
-        MessageDigest digest = null;
+    /**
+     * Run by the block sealer for each closed block in order. Builds the merkle tree, hashes the block,
+     * writes it to the block store and only then makes it visible to readers.
+     * @param currentBlock The closed block.
+     */
+    private void commitBlock(Block currentBlock) {
+
+        // Blocks after a failed block can't be linked to it
+        if (sealFailure != null) {
+            return;
+        }
 
         try {
-            digest = MessageDigest.getInstance("SHA-256");
-        } catch (NoSuchAlgorithmException e) {
-            LoggerUtil.log(Level.SEVERE, "SHA-256 algorithm not found.", false);
+            List<byte[]> hashList = new ArrayList<>(currentBlock.getTransactionList().size());
+
+            // Create a list of all hashes in our block.
+            for (Transaction transaction : currentBlock.getTransactionList()) {
+                hashList.add(transaction.getTransactionHashBytes());
+            }
+
+            // Set the merkle tree for this block by creating the tree.
+            currentBlock.setMerkleTree(new MerkleTree(hashList));
+            currentBlock.setPreviousHash(sealedHash);
+
+            MessageDigest digest = HashUtil.threadDigest();
+
+            // Generate the hash for the block from its fixed size header. The previous block is
+            // only referenced through its hash so the cost doesn't grow with the chain.
+            BlockHeader header = new BlockHeader(currentBlock.getBlockNumber(), currentBlock.getTransactionList().size(),
+                    currentBlock.getPreviousHashBytes(), currentBlock.getMerkleTree().getRoot(), currentBlock.getAccountState().digest(digest), seedDigest);
+
+            currentBlock.setHeader(header);
+            currentBlock.setHash(header.hash(digest));
+            sealedHash = currentBlock.getHashBytes();
+
+            // Clone current block to new block
+            Block block = (Block)currentBlock.clone();
+
+            // A block missing from the store can't be followed by later blocks, so the sealer stops here
+            boolean stored = blockStore != null;
+            if (stored) {
+                try {
+                    blockStore.append(block);
+                } catch (LedgerException e) {
+                    throw new IllegalStateException("Unable to write block " + block.getBlockNumber() + " to the block store: " + e.getAction(), e);
+                }
+            }
+
+            // Add it to our block map, and only now serve balances from it
+            blockMap.put(block.getBlockNumber(), block);
+            committedState = currentBlock.getAccountState();
+            lastBlockNumber = block.getBlockNumber();
+
+            // The previous block can now be read back from the store
+            if (stored) {
+                blockMap.remove(block.getBlockNumber() - 1);
+            }
+
+            // Index the block's transactions before it stops being searched as a block being committed
+            for (int i = 0; i < block.getTransactionList().size(); i++) {
+                transactionIndex.put(block.getTransactionList().get(i).getTransactionId(), block.getBlockNumber(), i);
+            }
+            accountTransactions.add(block.getBlockNumber(), block.getTransactionList());
+            sealingBlocks.remove(currentBlock);
+
+            // The write-ahead log segments holding only this block and older ones aren't needed anymore
+            if (stored && writeAheadLog != null) {
+                writeAheadLog.release(block.getBlockNumber());
+            }
+        } catch (RuntimeException e) {
+            sealFailure = e;
+            LoggerUtil.log(Level.SEVERE, "Unable to commit block " + currentBlock.getBlockNumber() + ": " + e.getMessage(), false);
+        } finally {
+            synchronized (sealedMonitor) {
+                sealedMonitor.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Wait until every block closed before the call has been committed, so a caller sees the
+     * blocks filled by its own transactions. Transactions never wait for this.
+     * @throws LedgerException Throw an exception if the block sealer failed to commit a block.
+     */
+    private void awaitSealed() throws LedgerException {
+        awaitSealed(currentBlock.getBlockNumber() - 1);
+    }
+
+    /**
+     * Wait until the given block has been committed.
+     * @param closedBlock The block number.
+     * @throws LedgerException Throw an exception if the block sealer failed to commit a block.
+     */
+    private void awaitSealed(int closedBlock) throws LedgerException {
+
+        boolean interrupted = false;
+
+        synchronized (sealedMonitor) {
+            while (lastBlockNumber < closedBlock && sealFailure == null) {
+                try {
+                    sealedMonitor.wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
         }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        if (lastBlockNumber < closedBlock) {
+            throw new LedgerException("commit-block", "Unable to commit block " + (lastBlockNumber + 1) + ": " + sealFailure.getMessage());
+        }
+    }
+
+    /**
+     * Returns the last committed block, which is always kept in memory with its account state.
+     * @return The last committed block, or null if no block has been committed.
+     */
+    private Block getLastCommittedBlock() {
+        int blockNumber;
+        Block block;
+
+        // The block before the last one may be dropped from memory between the two reads, so read again
+        do {
+            blockNumber = lastBlockNumber;
+            block = blockMap.get(blockNumber);
+        } while (block == null && blockNumber != lastBlockNumber);
+
+        return block;
+    }
 
-        // Generate hash for block
-        // Case - Genesis block thus no previous hash or previous block.
-        if (currentBlock.getPreviousHash() == null) {
-            blockHashString = currentBlock.getMerkleTree().getRoot().getHash() + currentBlock.getBlockNumber().toString() +
-                    currentBlock.getTransactionList().toString() + currentBlock.getAccountBalanceMap().toString() + seed;
+    /**
+     * Returns a committed block, reading it from the block store if it isn't in memory.
+     * @param blockNumber The block number.
+     * @return            The block, or null if no block with that number has been committed.
+     */
+    private Block getCommittedBlock(int blockNumber) {
+        Block block = blockMap.get(blockNumber);
+        if (block == null && blockStore != null && blockNumber <= lastBlockNumber) {
+            block = blockStore.read(blockNumber);
         }
-        // Case - We have a previous hash and previous block so include it in our hash string.
-        else {
-            blockHashString = currentBlock.getMerkleTree().getRoot().getHash() + currentBlock.getBlockNumber().toString() +
-                    currentBlock.getPreviousHash() + currentBlock.getTransactionList().toString() + currentBlock.getAccountBalanceMap().toString() +
-                    currentBlock.getPreviousBlock().toString() + seed;
+        return block;
+    }
+
+    /**
+     * Apply the records of the write-ahead log that aren't in a committed block yet. Records of
+     * blocks that made it to the block store before their log segment was deleted are skipped.
+     * @param log The write-ahead log, not yet used for logging.
+     * @throws LedgerException Throw an exception if the log doesn't continue the recovered chain.
+     */
+    private void replay(WriteAheadLog log) throws LedgerException {
+
+        List<WriteAheadLog.Record> records = log.getRecords();
+
+        if (log.getStartBlock() > lastBlockNumber + 1) {
+            throw new LedgerException("recover", "The write-ahead log starts at block " + log.getStartBlock()
+                    + " but the ledger only has " + lastBlockNumber + " blocks.");
         }
 
-        byte[] hash = digest.digest(blockHashString.getBytes(StandardCharsets.UTF_8));
+        // Count the transactions already committed since the log was started
+        int skip = 0;
+        for (int blockNumber = log.getStartBlock(); blockNumber <= lastBlockNumber && !records.isEmpty(); blockNumber++) {
+            skip += getCommittedBlock(blockNumber).getTransactionList().size();
+        }
 
-        currentBlock.setHash(new String(hash, StandardCharsets.UTF_8));
+        int replayed = 0;
+        List<Transaction> batch = new ArrayList<>();
 
-        // Clone current block to new block
-        Block block = (Block)currentBlock.clone();
+        for (WriteAheadLog.Record record : records) {
 
-        // Add it to our block map
-        blockMap.put(block.getBlockNumber(), block);
+            if (skip > 0) {
+                if (record.getType() == WriteAheadLog.TRANSACTION) {
+                    skip--;
+                }
+                continue;
+            }
+
+            if (record.getType() == WriteAheadLog.ACCOUNT) {
+                replayed += replayBatch(batch);
+
+                // Accounts logged after the last transaction of a committed block are already there
+                if (!currentBlock.containsAccount(record.getAddress())) {
+                    createAccount(record.getAddress());
+                    replayed++;
+                }
+            } else {
+                batch.add(record.getTransaction());
+            }
+        }
+        replayed += replayBatch(batch);
 
-        // Do a deep copy of our account balance map
-        Map<String, Account> abMap = new TreeMap<>();
-        for (Map.Entry<String, Account> entry : currentBlock.getAccountBalanceMap().entrySet()) {
-            abMap.put(entry.getKey(), (Account)entry.getValue().clone());
+        // Segments of replayed blocks that made it to the block store aren't needed anymore
+        awaitSealed();
+        if (blockStore != null) {
+            log.release(lastBlockNumber);
         }
 
-        // Create new block
-        return new Block(currentBlock.getBlockNumber()+1, abMap, currentBlock, currentBlock.getHash());
+        if (replayed > 0) {
+            LoggerUtil.log(Level.INFO, "Replayed " + replayed + " records from the write-ahead log", false);
+        }
+    }
+
+    /**
+     * Process the transactions read from the write-ahead log since the last account record.
+     * @param batch The transactions, cleared once processed.
+     * @return      The number of transactions replayed.
+     * @throws LedgerException Throw an exception if a logged transaction is rejected.
+     */
+    private int replayBatch(List<Transaction> batch) throws LedgerException {
+        int replayed = batch.size();
+
+        for (TransactionResult result : processTransactions(batch)) {
+            if (!result.isAccepted()) {
+                throw new LedgerException("recover", "Transaction " + result.getTransactionId()
+                        + " from the write-ahead log was rejected: " + result.getReason());
+            }
+        }
+        batch.clear();
+        return replayed;
     }
 
     /**
-     * Helper method for getTransaction method. This method takes all blocks that have been
-     * committed to our ledgerService's blockmap and concatenates them. This will make it easier to
-     * search through our transaction by using the transaction ID.
-     * @param bMap The blockMap of our ledgerService.
-     * @return     An ArrayList of all transactions in our blockMap.
+     * Rebuild the transaction index and the latest account state from the block store. Blocks
+     * are read one at a time and only the last one is kept in memory.
+     * @throws LedgerException Throw an exception if the stored chain doesn't belong to this ledger.
      */
-    private ArrayList<Transaction> compileTransactionList(Map<Integer, Block> bMap) {
+    private void recover() throws LedgerException {
+
+        AccountStateTree accountState = AccountStateTree.empty();
+        List<String> transactionIds = new ArrayList<>();
+        List<String> transactionAccounts = new ArrayList<>();
+        List<Account> changedAccounts = new ArrayList<>();
+        long start = System.nanoTime();
+
+        for (int blockNumber = 1; blockNumber <= blockStore.size(); blockNumber++) {
+            transactionIds.clear();
+            transactionAccounts.clear();
+            changedAccounts.clear();
+            blockStore.readIndexEntries(blockNumber, transactionIds, transactionAccounts, changedAccounts);
+
+            for (int i = 0; i < transactionIds.size(); i++) {
+                transactionIndex.put(transactionIds.get(i), blockNumber, i);
+                this.transactionIds.put(transactionIds.get(i));
+                accountTransactions.add(transactionAccounts.get(2 * i), transactionAccounts.get(2 * i + 1), blockNumber, i);
+            }
 
-        ArrayList<Transaction> transactionList = new ArrayList<>();
+            accountState = accountState.withAll(changedAccounts);
+            balanceHistory.record(blockNumber, changedAccounts);
+        }
+
+        // Only the last block is read in full
+        Block block = blockStore.read(blockStore.size());
 
-        // Concatenate all transaction in our block map
-        for (Map.Entry<Integer, Block> entry : bMap.entrySet()) {
-            transactionList.addAll(entry.getValue().getTransactionList());
+        if (!Arrays.equals(block.getHeader().getSeedDigest(), seedDigest)) {
+            throw new LedgerException("recover", "The block store " + blockStore.getDirectory() + " belongs to a ledger with a different seed.");
+        }
+        if (!Arrays.equals(block.getHeader().getAccountStateDigest(), accountState.digest(HashUtil.threadDigest()))) {
+            throw new LedgerException("recover", "The account state rebuilt from the block store doesn't match block " + block.getBlockNumber() + ".");
         }
 
-        return transactionList;
+        block.setAccountState(accountState);
+        committedState = accountState;
+        blockMap.put(block.getBlockNumber(), block);
+        lastBlockNumber = block.getBlockNumber();
+
+        // Load the committed balances into the account table
+        for (Account account : accountState.values()) {
+            accounts.setBalance(accounts.create(account.getAddress()), account.getBalance());
+        }
+        masterId = accounts.getId("master");
+
+        genesisBlock = blockStore.read(1);
+        currentBlock = new Block(lastBlockNumber + 1, accountState, null, null, accounts);
+        sealedHash = block.getHashBytes();
+
+        LoggerUtil.log(Level.INFO, "Recovered " + lastBlockNumber + " blocks from the block store in "
+                + (System.nanoTime() - start) / 1000000 + " ms", false);
     }
 }
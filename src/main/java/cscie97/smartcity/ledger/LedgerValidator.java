@@ -0,0 +1,210 @@
+package cscie97.smartcity.ledger;
+
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.IntFunction;
+
+/**
+ * Author: Stephen Sheldon
+ *
+ * Validates a range of committed blocks. Each phase splits the range into chunks that are
+ * checked in parallel on a fork join pool.
+ **/
+public class LedgerValidator {
+
+    /**
+     * Number of blocks a single task checks before the range is split.
+     */
+    private static final int CHUNK_SIZE = 256;
+
+    /**
+     * The pool the validation tasks run on.
+     */
+    private final ForkJoinPool pool;
+
+    /**
+     * The digest of the ledger seed every block header must contain.
+     */
+    private final byte[] seedDigest;
+
+    /**
+     * Constructor method.
+     * @param pool       The fork join pool to validate on.
+     * @param seedDigest The digest of the ledger seed.
+     */
+    public LedgerValidator(ForkJoinPool pool, byte[] seedDigest) {
+        this.pool = pool;
+        this.seedDigest = seedDigest;
+    }
+
+    /**
+     * Validate the blocks in the given range. The previous hash of the first block is checked
+     * against the block before it, so a range can continue from an earlier validation.
+     * @param blocks       Look up of committed blocks by block number.
+     * @param firstBlock   The first block to check.
+     * @param lastBlock    The last committed block.
+     * @param accountState The account state of the last committed block.
+     * @return             The result with the time spent in each phase.
+     * @throws LedgerException Throw an exception for the first problem found.
+     */
+    public ValidationResult validate(IntFunction<Block> blocks, int firstBlock, int lastBlock,
+                                     AccountStateTree accountState) throws LedgerException {
+
+        ValidationResult result = new ValidationResult(firstBlock, lastBlock);
+        long start;
+
+        // Phase 1 - every header hashes to the block hash and links to the previous block
+        start = System.nanoTime();
+        fail(check(blocks, firstBlock, lastBlock, (block, blockNumber) -> checkHashLinks(blocks, block, blockNumber)));
+        result.addPhase("hash links", System.nanoTime() - start);
+
+        // Phase 2 - every block has the transactions its header counts and its merkle root matches them
+        start = System.nanoTime();
+        fail(check(blocks, firstBlock, lastBlock, this::checkMerkleRoot));
+        result.addPhase("merkle roots", System.nanoTime() - start);
+
+        // Phase 3 - the account balances total Integer.MAX_VALUE
+        start = System.nanoTime();
+        if (accountState.totalBalance() != Integer.MAX_VALUE) {
+            fail("The sum of all account balances does not equal Integer.MAX_VALUE.");
+        }
+        result.addPhase("balances", System.nanoTime() - start);
+
+        return result;
+    }
+
+    private String checkHashLinks(IntFunction<Block> blocks, Block block, int blockNumber) {
+
+        BlockHeader header = block.getHeader();
+        MessageDigest digest = HashUtil.threadDigest();
+
+        if (header == null || header.getBlockNumber() != blockNumber) {
+            return "Block " + blockNumber + " has no valid header.";
+        }
+        if (!Arrays.equals(header.hash(digest), block.getHashBytes())) {
+            return "Hash mismatch in block " + blockNumber + ".";
+        }
+        if (!Arrays.equals(header.getSeedDigest(), seedDigest)) {
+            return "Block " + blockNumber + " was not created with this ledger's seed.";
+        }
+        // Blocks read back from the block store don't keep their account state
+        if (block.getAccountState() != null &&
+                !Arrays.equals(header.getAccountStateDigest(), block.getAccountState().digest(digest))) {
+            return "Account state mismatch in block " + blockNumber + ".";
+        }
+
+        // The genesis block doesn't have a previous hash to compare to.
+        if (blockNumber > 1) {
+            Block previousBlock = blocks.apply(blockNumber - 1);
+
+            if (previousBlock == null || !Arrays.equals(header.getPreviousHash(), previousBlock.getHashBytes())) {
+                return "Hash mismatch between block " + (blockNumber - 1) + " and block " + blockNumber + ".";
+            }
+        }
+        return null;
+    }
+
+    private String checkMerkleRoot(Block block, int blockNumber) {
+
+        List<Transaction> transactionList = block.getTransactionList();
+
+        // Blocks can be sealed before they are full, but never without transactions
+        if (transactionList.isEmpty()) {
+            return "Block " + blockNumber + " has no transactions.";
+        }
+        if (block.getHeader().getTransactionCount() != transactionList.size()) {
+            return "Block " + blockNumber + " does not have the " + block.getHeader().getTransactionCount() + " transactions its header counts.";
+        }
+
+        List<byte[]> hashList = new ArrayList<>(transactionList.size());
+        for (Transaction transaction : transactionList) {
+            hashList.add(transaction.getTransactionHashBytes());
+        }
+
+        if (!Arrays.equals(new MerkleTree(hashList).getRoot(), block.getHeader().getMerkleRoot())) {
+            return "Merkle root mismatch in block " + blockNumber + ".";
+        }
+        return null;
+    }
+
+    /**
+     * Run a check over a range of blocks in parallel.
+     * @return The problem found in the lowest numbered block, or null if every block passed.
+     */
+    private String check(IntFunction<Block> blocks, int firstBlock, int lastBlock, BlockCheck check) {
+        if (firstBlock > lastBlock) {
+            return null;
+        }
+        return pool.invoke(new ChunkTask(blocks, firstBlock, lastBlock, check));
+    }
+
+    private static void fail(String problem) throws LedgerException {
+        if (problem != null) {
+            throw new LedgerException("validate", problem);
+        }
+    }
+
+    /**
+     * A check of a single block.
+     */
+    private interface BlockCheck {
+
+        /**
+         * @return A description of the problem, or null if the block is valid.
+         */
+        String check(Block block, int blockNumber);
+    }
+
+    /**
+     * Checks a range of blocks, splitting it in half until it is small enough.
+     */
+    private static final class ChunkTask extends RecursiveTask<String> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final IntFunction<Block> blocks;
+
+        private final int firstBlock;
+
+        private final int lastBlock;
+
+        private final BlockCheck check;
+
+        ChunkTask(IntFunction<Block> blocks, int firstBlock, int lastBlock, BlockCheck check) {
+            this.blocks = blocks;
+            this.firstBlock = firstBlock;
+            this.lastBlock = lastBlock;
+            this.check = check;
+        }
+
+        @Override
+        protected String compute() {
+
+            // Small enough so check the blocks on this thread
+            if (lastBlock - firstBlock < CHUNK_SIZE) {
+                for (int blockNumber = firstBlock; blockNumber <= lastBlock; blockNumber++) {
+                    Block block = blocks.apply(blockNumber);
+                    String problem = block == null ? "Block " + blockNumber + " is missing." : check.check(block, blockNumber);
+                    if (problem != null) {
+                        return problem;
+                    }
+                }
+                return null;
+            }
+
+            int middle = (firstBlock + lastBlock) >>> 1;
+            ChunkTask right = new ChunkTask(blocks, middle + 1, lastBlock, check);
+            right.fork();
+
+            String problem = new ChunkTask(blocks, firstBlock, middle, check).compute();
+            String rightProblem = right.join();
+
+            // Report the problem in the lowest numbered block
+            return problem != null ? problem : rightProblem;
+        }
+    }
+}
@@ -0,0 +1,229 @@
+package cscie97.smartcity.ledger;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Author: Stephen Sheldon
+ *
+ * Bounded pool of transactions waiting to be added to a block. Pending transactions are taken
+ * highest fee first, and in arrival order for equal fees, so a burst of cheap transactions
+ * doesn't hold up the ones paying more. The pool admits at most capacity transactions and at
+ * most maxPerPayer from any one payer. When it is full a transaction paying a higher fee than
+ * the cheapest pending one takes its place and the cheapest one is rejected.
+ **/
+class Mempool {
+
+    /**
+     * Most transactions the pool holds.
+     */
+    private final int capacity;
+
+    /**
+     * Most transactions the pool holds for any one payer.
+     */
+    private final int maxPerPayer;
+
+    /**
+     * Pending transactions, highest fee first.
+     */
+    private final TreeSet<Entry> pending;
+
+    /**
+     * Number of pending transactions of each payer.
+     */
+    private final Map<String, Integer> pendingPerPayer;
+
+    /**
+     * Arrival order of the next admitted transaction.
+     */
+    private long nextSequence;
+
+    /**
+     * Number of transactions admitted to the pool.
+     */
+    private long admitted;
+
+    /**
+     * Number of transactions turned away by the admission limits.
+     */
+    private long rejected;
+
+    /**
+     * Number of pending transactions dropped for a transaction paying a higher fee.
+     */
+    private long evicted;
+
+    /**
+     * Number of transactions taken from the pool to be added to a block.
+     */
+    private long taken;
+
+    /**
+     * Total time in nanoseconds the taken transactions spent in the pool.
+     */
+    private long totalWaitNanos;
+
+    /**
+     * Longest time in nanoseconds a taken transaction spent in the pool.
+     */
+    private long maxWaitNanos;
+
+    /**
+     * Set once the pool stops admitting transactions, take() returns an empty list once the pool is empty.
+     */
+    private boolean closed;
+
+    /**
+     * Constructor method.
+     * @param capacity    The most transactions the pool holds.
+     * @param maxPerPayer The most transactions the pool holds for one payer.
+     */
+    Mempool(int capacity, int maxPerPayer) {
+        this.capacity = capacity;
+        this.maxPerPayer = maxPerPayer;
+        this.pending = new TreeSet<>(Comparator.comparingInt((Entry entry) -> -entry.transaction.getFee())
+                .thenComparingLong(entry -> entry.sequence));
+        this.pendingPerPayer = new HashMap<>();
+    }
+
+    /**
+     * Admit a transaction to the pool.
+     * @param transaction The transaction.
+     * @return            The pool entry, its result is completed once the transaction has been added to a block or rejected.
+     * @throws LedgerException Throw an exception if the payer already has maxPerPayer pending transactions,
+     *                         the pool is full of transactions paying at least the same fee or it has been closed.
+     */
+    synchronized Entry admit(Transaction transaction) throws LedgerException {
+
+        if (closed) {
+            throw new LedgerException("process-transaction", "The ledger has been closed.");
+        }
+
+        String payer = transaction.getPayerAddress();
+
+        if (pendingPerPayer.getOrDefault(payer, 0) >= maxPerPayer) {
+            rejected++;
+            throw new LedgerException("process-transaction", "The payer has too many transactions waiting in the mempool.");
+        }
+
+        if (pending.size() >= capacity) {
+            Entry cheapest = pending.last();
+            if (cheapest.transaction.getFee() >= transaction.getFee()) {
+                rejected++;
+                throw new LedgerException("process-transaction", "The mempool is full of transactions paying at least the same fee.");
+            }
+
+            // Make room by dropping the cheapest pending transaction
+            remove(cheapest);
+            evicted++;
+            cheapest.result.complete(new TransactionResult(cheapest.transaction.getTransactionId(), 0,
+                    "The transaction was dropped from the mempool for a transaction paying a higher fee."));
+        }
+
+        Entry entry = new Entry(transaction, nextSequence++, System.nanoTime());
+        pending.add(entry);
+        pendingPerPayer.merge(payer, 1, Integer::sum);
+        admitted++;
+        notifyAll();
+
+        return entry;
+    }
+
+    /**
+     * Take the highest fee transactions, waiting until there is at least one.
+     * @param max The most transactions to take.
+     * @return    The taken transactions, highest fee first, or an empty list once the pool is closed and empty.
+     * @throws InterruptedException If interrupted while waiting.
+     */
+    synchronized List<Entry> take(int max) throws InterruptedException {
+
+        while (pending.isEmpty() && !closed) {
+            wait();
+        }
+
+        long now = System.nanoTime();
+        List<Entry> entries = new ArrayList<>(Math.min(max, pending.size()));
+
+        while (entries.size() < max && !pending.isEmpty()) {
+            Entry entry = pending.first();
+            remove(entry);
+            entries.add(entry);
+
+            long wait = now - entry.admittedNanos;
+            totalWaitNanos += wait;
+            maxWaitNanos = Math.max(maxWaitNanos, wait);
+            taken++;
+        }
+        return entries;
+    }
+
+    /**
+     * Stop admitting transactions. The pending ones can still be taken.
+     */
+    synchronized void close() {
+        closed = true;
+        notifyAll();
+    }
+
+    private void remove(Entry entry) {
+        pending.remove(entry);
+        pendingPerPayer.computeIfPresent(entry.transaction.getPayerAddress(), (payer, count) -> count > 1 ? count - 1 : null);
+    }
+
+    /**
+     * Returns a snapshot of the pool's queue depth and wait times.
+     * @return The mempool metrics.
+     */
+    synchronized MempoolMetrics getMetrics() {
+        return new MempoolMetrics(pending.size(), capacity, admitted, rejected, evicted, taken,
+                taken == 0 ? 0 : totalWaitNanos / taken, maxWaitNanos);
+    }
+
+    /**
+     * A pending transaction and the future its submitter waits on.
+     */
+    static class Entry {
+
+        private final Transaction transaction;
+
+        private final long sequence;
+
+        private final long admittedNanos;
+
+        private final CompletableFuture<TransactionResult> result;
+
+        /**
+         * Write-ahead log sequence number to wait for, set before the result is completed.
+         */
+        private long logSequence;
+
+        Entry(Transaction transaction, long sequence, long admittedNanos) {
+            this.transaction = transaction;
+            this.sequence = sequence;
+            this.admittedNanos = admittedNanos;
+            this.result = new CompletableFuture<>();
+        }
+
+        Transaction getTransaction() {
+            return transaction;
+        }
+
+        CompletableFuture<TransactionResult> getResult() {
+            return result;
+        }
+
+        long getLogSequence() {
+            return logSequence;
+        }
+
+        void setLogSequence(long logSequence) {
+            this.logSequence = logSequence;
+        }
+    }
+}
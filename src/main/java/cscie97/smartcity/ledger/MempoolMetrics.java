@@ -0,0 +1,110 @@
+package cscie97.smartcity.ledger;
+
+/**
+ * Author: Stephen Sheldon
+ *
+ * Snapshot of the queue depth and wait times of the ledger's mempool.
+ **/
+public class MempoolMetrics {
+
+    /**
+     * Number of transactions waiting in the mempool.
+     */
+    private final int depth;
+
+    /**
+     * Most transactions the mempool holds.
+     */
+    private final int capacity;
+
+    /**
+     * Number of transactions admitted to the mempool.
+     */
+    private final long admitted;
+
+    /**
+     * Number of transactions turned away by the admission limits.
+     */
+    private final long rejected;
+
+    /**
+     * Number of pending transactions dropped for a transaction paying a higher fee.
+     */
+    private final long evicted;
+
+    /**
+     * Number of transactions taken from the mempool to be added to a block.
+     */
+    private final long drained;
+
+    /**
+     * Average time in nanoseconds the drained transactions spent in the mempool.
+     */
+    private final long averageWaitNanos;
+
+    /**
+     * Longest time in nanoseconds a drained transaction spent in the mempool.
+     */
+    private final long maxWaitNanos;
+
+    /**
+     * Constructor method.
+     * @param depth            The number of waiting transactions.
+     * @param capacity         The most transactions the mempool holds.
+     * @param admitted         The number of admitted transactions.
+     * @param rejected         The number of transactions turned away.
+     * @param evicted          The number of transactions dropped for a higher fee.
+     * @param drained          The number of transactions taken to be added to a block.
+     * @param averageWaitNanos The average wait of the drained transactions.
+     * @param maxWaitNanos     The longest wait of a drained transaction.
+     */
+    public MempoolMetrics(int depth, int capacity, long admitted, long rejected, long evicted, long drained,
+                          long averageWaitNanos, long maxWaitNanos) {
+        this.depth = depth;
+        this.capacity = capacity;
+        this.admitted = admitted;
+        this.rejected = rejected;
+        this.evicted = evicted;
+        this.drained = drained;
+        this.averageWaitNanos = averageWaitNanos;
+        this.maxWaitNanos = maxWaitNanos;
+    }
+
+    public int getDepth() {
+        return depth;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public long getAdmitted() {
+        return admitted;
+    }
+
+    public long getRejected() {
+        return rejected;
+    }
+
+    public long getEvicted() {
+        return evicted;
+    }
+
+    public long getDrained() {
+        return drained;
+    }
+
+    public long getAverageWaitNanos() {
+        return averageWaitNanos;
+    }
+
+    public long getMaxWaitNanos() {
+        return maxWaitNanos;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("Mempool depth %d of %d, admitted %d, rejected %d, evicted %d, drained %d, wait avg %.3f ms max %.3f ms",
+                depth, capacity, admitted, rejected, evicted, drained, averageWaitNanos / 1e6, maxWaitNanos / 1e6);
+    }
+}
@@ -2,126 +2,167 @@ package cscie97.smartcity.ledger;
 
 import cscie97.smartcity.controller.LoggerUtil;
 
-import java.nio.charset.StandardCharsets;
+import java.security.DigestException;
 import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
-import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.logging.Level;
 
 /**
  * Author: Stephen Sheldon
+ *
+ * Merkle tree of 32 byte hashes stored level by level in a single flat array. Level 0 holds
+ * the leaves and the last level holds the root. When a level has an odd number of nodes the
+ * last node is promoted unchanged to the next level.
  **/
 public class MerkleTree {
 
     /**
-     * The root node of the Merkle tree
+     * Root hash used for a tree without leaves.
      */
-    private Node root;
+    private static final byte[] EMPTY_ROOT = new byte[HashUtil.HASH_LENGTH];
 
     /**
-     * Method to create a merkle tree from a transaction hash list.
-     * @param hashList the hash list containing the transactions within a block.
-     * @return
+     * The hashes of all nodes of the tree, 32 bytes per node, level after level.
+     */
+    private final byte[] nodes;
+
+    /**
+     * Index of the first node of each level.
      */
-    public MerkleTree createTree(List<Node> hashList) {
+    private final int[] levelStart;
 
-        List<Node> tempList;
+    /**
+     * Number of nodes in each level.
+     */
+    private final int[] levelSize;
 
-        Node tempNode;
+    /**
+     * Method to create a merkle tree from a transaction hash list.
+     * @param hashList The 32 byte hashes of the transactions within a block.
+     */
+    public MerkleTree(List<byte[]> hashList) {
 
-        // Case - More than 2 nodes in list and size if even
-        if (hashList.size() > 2 && hashList.size() % 2 == 0) {
+        int levels = 1;
+        int totalNodes = hashList.size();
+        for (int size = hashList.size(); size > 1; size = (size + 1) / 2) {
+            levels++;
+            totalNodes += (size + 1) / 2;
+        }
 
-            tempList = new ArrayList<>();
+        levelStart = new int[levels];
+        levelSize = new int[levels];
+        nodes = new byte[totalNodes * HashUtil.HASH_LENGTH];
 
-            for (int i = 0; i < hashList.size(); i += 2) {
-                tempNode = new Node(createHash(hashList.get(i), hashList.get(i+1)));
-                tempNode.setLeft(hashList.get(i));
-                tempNode.setRight(hashList.get(i+1));
-                tempList.add(tempNode);
-            }
-            createTree(tempList);
+        // Copy the leaves into the first level
+        levelSize[0] = hashList.size();
+        for (int i = 0; i < hashList.size(); i++) {
+            System.arraycopy(hashList.get(i), 0, nodes, i * HashUtil.HASH_LENGTH, HashUtil.HASH_LENGTH);
         }
-        // Case - More than 2 nodes in list and size is odd
-        else if (hashList.size() > 2 && hashList.size() % 2 == 1) {
 
-            tempList = new ArrayList<>();
+        MessageDigest digest = HashUtil.threadDigest();
 
-            for (int i = 0; i < hashList.size()-1; i += 2) {
-                tempNode = new Node(createHash(hashList.get(i), hashList.get(i+1)));
-                tempNode.setLeft(hashList.get(i));
-                tempNode.setRight(hashList.get(i+1));
-                tempList.add(tempNode);
-            }
+        // Hash each level into the next one until only the root is left
+        for (int level = 1; level < levels; level++) {
+            int child = levelStart[level - 1];
+            int childCount = levelSize[level - 1];
 
-            // Add the last node to list before recursive call
-            tempList.add(hashList.get(hashList.size()-1));
-            createTree(tempList);
-        } else {
+            levelStart[level] = child + childCount;
+            levelSize[level] = (childCount + 1) / 2;
 
-            // Case - Base case when we reach 2 nodes in list
-            tempNode = new Node(createHash(hashList.get(0), hashList.get(1)));
-            tempNode.setLeft(hashList.get(0));
-            tempNode.setRight(hashList.get(1));
-            root = tempNode;
+            int parent = levelStart[level];
+            for (int i = 0; i + 1 < childCount; i += 2) {
+                hashPair(digest, child + i, child + i + 1, parent++);
+            }
+
+            // Promote the last node of an odd level
+            if (childCount % 2 == 1) {
+                System.arraycopy(nodes, (child + childCount - 1) * HashUtil.HASH_LENGTH, nodes,
+                        parent * HashUtil.HASH_LENGTH, HashUtil.HASH_LENGTH);
+            }
         }
-        return this;
     }
 
     /**
-     * Method to create a hash by taking the hash of two nodes and hashing it.
-     * @param left    The left node.
-     * @param right   The right node.
-     * @return        The string hash value.
+     * Method to create a hash by hashing the hashes of two nodes, writing it straight into the parent node.
+     * @param digest  The digest to use.
+     * @param left    Index of the left node.
+     * @param right   Index of the right node.
+     * @param parent  Index of the parent node.
      */
-    private String createHash(Node left, Node right) {
-        String hashString = left.getHash() + right.getHash();
-
-        MessageDigest digest = null;
-
+    private void hashPair(MessageDigest digest, int left, int right, int parent) {
+        digest.update(nodes, left * HashUtil.HASH_LENGTH, HashUtil.HASH_LENGTH);
+        digest.update(nodes, right * HashUtil.HASH_LENGTH, HashUtil.HASH_LENGTH);
         try {
-            digest = MessageDigest.getInstance("SHA-256");
-        } catch (NoSuchAlgorithmException e) {
-            LoggerUtil.log(Level.SEVERE, "SHA-256 algorithm not found.", false);
+            digest.digest(nodes, parent * HashUtil.HASH_LENGTH, HashUtil.HASH_LENGTH);
+        } catch (DigestException e) {
+            LoggerUtil.log(Level.SEVERE, "Unable to compute merkle tree hash.", false);
         }
-        byte[] hash = digest.digest(hashString.getBytes(StandardCharsets.UTF_8));
-
-        // Convert our byte array to a string
-        return new String(hash, StandardCharsets.UTF_8);
     }
 
     /**
      * Public facing method to traverse the tree in order and print node hashes.
      */
     public void inOrder() {
-        inOrder(root);
+        if (levelSize[0] > 0) {
+            inOrder(levelSize.length - 1, 0);
+        }
     }
 
     /**
-     * Private helper method to traverse the Merkle tree in order.
-     * @param x    The root node.
+     * Private helper method to traverse the Merkle tree in order. A promoted node is the
+     * same node as its only child so it's printed once.
+     * @param level  The level of the node.
+     * @param index  The index of the node within its level.
      */
-    private void inOrder(Node x) {
-        if (x == null)
+    private void inOrder(int level, int index) {
+        if (level == 0) {
+            printNode(0, index);
+            return;
+        }
+
+        int left = index * 2;
+        int right = left + 1;
+
+        if (right >= levelSize[level - 1]) {
+            inOrder(level - 1, left);
             return;
-        inOrder(x.getLeft());
-        LoggerUtil.log(Level.INFO, "Hash Value is " + x.getHash(), false);
-        inOrder(x.getRight());
+        }
+
+        inOrder(level - 1, left);
+        printNode(level, index);
+        inOrder(level - 1, right);
+    }
+
+    private void printNode(int level, int index) {
+        int offset = (levelStart[level] + index) * HashUtil.HASH_LENGTH;
+        LoggerUtil.log(Level.INFO, "Hash Value is " + HashUtil.toHex(Arrays.copyOfRange(nodes, offset, offset + HashUtil.HASH_LENGTH)), false);
+    }
+
+    /**
+     * Returns the root hash of a Merkle tree.
+     * @return    The 32 byte root hash of the Merkle tree.
+     */
+    public byte[] getRoot() {
+        if (levelSize[0] == 0) {
+            return EMPTY_ROOT.clone();
+        }
+        int offset = levelStart[levelStart.length - 1] * HashUtil.HASH_LENGTH;
+        return Arrays.copyOfRange(nodes, offset, offset + HashUtil.HASH_LENGTH);
     }
 
     /**
-     * Returns the root node of a Merkle tree.
-     * @return    The root node of the Merkle tree.
+     * Returns the number of leaves of the tree.
+     * @return The number of transaction hashes in the tree.
      */
-    public Node getRoot() {
-        return root;
+    public int getLeafCount() {
+        return levelSize[0];
     }
 
     @Override
     public String toString() {
         return "MerkleTree{" +
-                "root=" + root +
+                "root=" + HashUtil.toHex(getRoot()) +
                 '}';
     }
 }
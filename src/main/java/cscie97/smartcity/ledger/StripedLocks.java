@@ -0,0 +1,97 @@
+package cscie97.smartcity.ledger;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Author: Stephen Sheldon
+ *
+ * Fixed set of locks that account addresses are hashed onto. Transactions lock the stripes
+ * of every account they touch, always in stripe order, so transactions on different accounts
+ * run in parallel and transactions sharing an account can't deadlock.
+ **/
+public class StripedLocks {
+
+    /**
+     * The locks, the number of locks is a power of two.
+     */
+    private final ReentrantLock[] locks;
+
+    /**
+     * Number of times a stripe was held by another thread when it was locked.
+     */
+    private final LongAdder waits;
+
+    /**
+     * Constructor method.
+     * @param stripes The minimum number of locks, rounded up to a power of two.
+     */
+    public StripedLocks(int stripes) {
+        int size = Integer.highestOneBit(Math.max(stripes - 1, 1)) << 1;
+        locks = new ReentrantLock[size];
+        for (int i = 0; i < size; i++) {
+            locks[i] = new ReentrantLock();
+        }
+        waits = new LongAdder();
+    }
+
+    /**
+     * Returns the stripe of an address.
+     * @param address The account address.
+     * @return        The index of the lock guarding the address.
+     */
+    public int stripe(String address) {
+        int hash = address.hashCode();
+        return (hash ^ (hash >>> 16)) & (locks.length - 1);
+    }
+
+    /**
+     * Lock the stripes of all the given addresses in stripe order. Addresses that share a
+     * stripe only lock it once.
+     * @param addresses The account addresses.
+     * @return          The locked stripes, to pass to unlock().
+     */
+    public int[] lock(String... addresses) {
+        int[] stripes = new int[addresses.length];
+        for (int i = 0; i < addresses.length; i++) {
+            stripes[i] = stripe(addresses[i]);
+        }
+        Arrays.sort(stripes);
+
+        int count = 0;
+        for (int i = 0; i < stripes.length; i++) {
+            if (i == 0 || stripes[i] != stripes[i - 1]) {
+                stripes[count++] = stripes[i];
+            }
+        }
+        stripes = Arrays.copyOf(stripes, count);
+
+        for (int stripe : stripes) {
+            if (!locks[stripe].tryLock()) {
+                waits.increment();
+                locks[stripe].lock();
+            }
+        }
+        return stripes;
+    }
+
+    /**
+     * Returns how often a stripe had to be waited for, so contention on shared accounts can be
+     * told apart from transactions on different accounts, which never wait on each other.
+     * @return The number of waits since the locks were created.
+     */
+    public long getWaitCount() {
+        return waits.sum();
+    }
+
+    /**
+     * Unlock stripes locked by lock(), in reverse order.
+     * @param stripes The locked stripes.
+     */
+    public void unlock(int[] stripes) {
+        for (int i = stripes.length - 1; i >= 0; i--) {
+            locks[stripes[i]].unlock();
+        }
+    }
+}
@@ -1,12 +1,5 @@
 package cscie97.smartcity.ledger;
 
-import cscie97.smartcity.controller.LoggerUtil;
-
-import java.nio.charset.StandardCharsets;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
-import java.util.logging.Level;
-
 /**
  * Author: Stephen Sheldon
  **/
@@ -37,25 +30,37 @@ public class Transaction {
     private String note;
 
     /**
-     * The account receiving the transaction amount.
+     * The address of the account receiving the transaction amount.
      */
-    private Account receiver;
+    private String receiver;
 
     /**
-     * The account issueing the transaction. The amount of the transaction
+     * The address of the account issueing the transaction. The amount of the transaction
      * and the transaction fee will be deducted from the payer's account balance.
      */
-    private Account payer;
+    private String payer;
 
     /**
-     * The hash of the transaction. The hash is generated by concatenating
-     * the string values of all properties within the transaction and then
+     * ID of the receiving account in the ledger's account table, AccountTable.NO_ACCOUNT until
+     * the transaction is created or processed by the ledger.
+     */
+    private int receiverId = AccountTable.NO_ACCOUNT;
+
+    /**
+     * ID of the paying account in the ledger's account table, AccountTable.NO_ACCOUNT until
+     * the transaction is created or processed by the ledger.
+     */
+    private int payerId = AccountTable.NO_ACCOUNT;
+
+    /**
+     * The hash of the transaction. The hash is generated by encoding the
+     * properties of the transaction with TransactionCodec and then
      * hashing it using SHA-256. This transaction hash is used to maintain
      * the integrity of the transaction. Once a block reaches 10 transactions
      * the hash of each transaction is generated and used in generating
      * the hash values of the merkle tree for the block.
      */
-    private String transactionHash;
+    private byte[] transactionHash;
 
     /**
      * Transaction constructor.
@@ -67,28 +72,54 @@ public class Transaction {
      * @param payer         The paying account of this transaction.
      */
     public Transaction(String transactionId, Integer amount, Integer fee, String note, Account receiver, Account payer) {
+        this(transactionId, amount, fee, note, receiver.getAddress(), payer.getAddress(),
+                AccountTable.NO_ACCOUNT, AccountTable.NO_ACCOUNT);
+    }
+
+    /**
+     * Constructor for a transaction between accounts of the ledger's account table.
+     * @param transactionId The ID for the transaction.
+     * @param amount        The amount to be transferred in this transaction.
+     * @param fee           The fee associated with this transaction.
+     * @param note          The arbitrary note associated with this transaction.
+     * @param receiver      The address of the receiving account.
+     * @param payer         The address of the paying account.
+     * @param receiverId    The ID of the receiving account.
+     * @param payerId       The ID of the paying account.
+     */
+    Transaction(String transactionId, int amount, int fee, String note, String receiver, String payer, int receiverId, int payerId) {
         this.transactionId = transactionId;
         this.amount = amount;
         this.fee = fee;
         this.note = note;
         this.receiver = receiver;
         this.payer = payer;
+        this.receiverId = receiverId;
+        this.payerId = payerId;
 
-        // Compute the hash for this transaction below.
-
-        // First concatenate the string value properties of our transaction to generate our hash string.
-        String hashString = transactionId + amount.toString() + fee.toString() + note + receiver.toString() + payer.toString();
-
-        MessageDigest digest = null;
-        try {
-            digest = MessageDigest.getInstance("SHA-256");
-        } catch (NoSuchAlgorithmException e) {
-            LoggerUtil.log(Level.SEVERE, "SHA-256 algorithm not found.", false);
-        }
-        byte[] hash = digest.digest(hashString.getBytes(StandardCharsets.UTF_8));
+        // Compute the hash for this transaction from its binary encoding. Only the addresses of the
+        // accounts are hashed, their balances depend on when the transaction was created.
+        transactionHash = TransactionCodec.hash(transactionId, amount, fee, note, payer, receiver);
+    }
 
-        // Convert our byte array to a string
-        transactionHash = new String(hash, StandardCharsets.UTF_8);
+    /**
+     * Constructor for a transaction read back from storage, keeping the hash it was committed with.
+     * @param transactionId   The ID for the transaction.
+     * @param amount          The amount transferred in this transaction.
+     * @param fee             The fee associated with this transaction.
+     * @param note            The arbitrary note associated with this transaction.
+     * @param receiver        The address of the receiving account.
+     * @param payer           The address of the paying account.
+     * @param transactionHash The stored hash of this transaction.
+     */
+    Transaction(String transactionId, Integer amount, Integer fee, String note, String receiver, String payer, byte[] transactionHash) {
+        this.transactionId = transactionId;
+        this.amount = amount;
+        this.fee = fee;
+        this.note = note;
+        this.receiver = receiver;
+        this.payer = payer;
+        this.transactionHash = transactionHash;
     }
 
     public String getTransactionId() {
@@ -103,15 +134,63 @@ public class Transaction {
         return fee;
     }
 
+    /**
+     * Returns the receiving account. Only its address is set, the ledger has its balance.
+     * @return A new account with the address of the receiver.
+     */
     public Account getReceiver() {
-        return receiver;
+        return new Account(receiver);
     }
 
+    /**
+     * Returns the paying account. Only its address is set, the ledger has its balance.
+     * @return A new account with the address of the payer.
+     */
     public Account getPayer() {
+        return new Account(payer);
+    }
+
+    public String getReceiverAddress() {
+        return receiver;
+    }
+
+    public String getPayerAddress() {
         return payer;
     }
 
+    int getReceiverId() {
+        return receiverId;
+    }
+
+    int getPayerId() {
+        return payerId;
+    }
+
+    /**
+     * Look up the IDs of the accounts in the ledger's account table if the transaction wasn't
+     * created by the ledger.
+     * @param accounts The account table.
+     * @return         True if both accounts exist.
+     */
+    boolean resolveAccounts(AccountTable accounts) {
+        if (payerId == AccountTable.NO_ACCOUNT) {
+            payerId = accounts.getId(payer);
+        }
+        if (receiverId == AccountTable.NO_ACCOUNT) {
+            receiverId = accounts.getId(receiver);
+        }
+        return payerId != AccountTable.NO_ACCOUNT && receiverId != AccountTable.NO_ACCOUNT;
+    }
+
+    /**
+     * Returns the hash of the transaction as a hex string.
+     * @return The transaction hash.
+     */
     public String getTransactionHash() {
+        return HashUtil.toHex(transactionHash);
+    }
+
+    public byte[] getTransactionHashBytes() {
         return transactionHash;
     }
 
@@ -125,8 +204,8 @@ public class Transaction {
                 ", amount=" + amount +
                 ", fee=" + fee +
                 ", note=" + note +
-                ", receiver=" + receiver.getAddress() +
-                ", payer=" + payer.getAddress() +
-                ", transactionHash=" + transactionHash + "\n";
+                ", receiver=" + receiver +
+                ", payer=" + payer +
+                ", transactionHash=" + getTransactionHash() + "\n";
     }
 }
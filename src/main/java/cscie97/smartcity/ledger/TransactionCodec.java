@@ -0,0 +1,293 @@
+package cscie97.smartcity.ledger;
+
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Author: Stephen Sheldon
+ *
+ * Compact binary encoding of transactions, used to hash them, to store them in the block store
+ * and to write them to the write-ahead log.
+ *
+ * Encoded transaction:
+ *   string  id
+ *   varint  amount
+ *   varint  fee
+ *   string  note
+ *   account payer
+ *   account receiver
+ * Strings are a varint length followed by the UTF-8 bytes. Varints are unsigned LEB128, seven
+ * bits per byte with the high bit set on every byte but the last, so amounts and fees below 128
+ * take a single byte. An account is the varint index of its address in an AddressTable when the
+ * encoding has one, otherwise its address as a string.
+ *
+ * The hash of a transaction is the SHA-256 of its encoding with the addresses written out, so it
+ * only depends on the transaction itself.
+ *
+ * Every block store and write-ahead log segment starts with a file header: an int magic number
+ * naming the kind of file and the int FORMAT_VERSION it was written with.
+ **/
+final class TransactionCodec {
+
+    /**
+     * Buffer each thread encodes transactions into before hashing them, grown if a transaction doesn't fit.
+     */
+    private static final ThreadLocal<ByteBuffer> THREAD_BUFFER = ThreadLocal.withInitial(() -> ByteBuffer.allocate(1024));
+
+    /**
+     * Version of the encodings written to disk, raised whenever one of them changes.
+     */
+    static final int FORMAT_VERSION = 2;
+
+    /**
+     * Size of the magic number and format version at the start of each file.
+     */
+    static final int FILE_HEADER_SIZE = 2 * Integer.BYTES;
+
+    private TransactionCodec() {
+    }
+
+    /**
+     * Compute the hash of a transaction from its fields.
+     * @param transactionId The ID for the transaction.
+     * @param amount        The amount transferred in this transaction.
+     * @param fee           The fee associated with this transaction.
+     * @param note          The note associated with this transaction.
+     * @param payer         The address of the paying account.
+     * @param receiver      The address of the receiving account.
+     * @return The SHA-256 hash of the encoded transaction.
+     */
+    static byte[] hash(String transactionId, int amount, int fee, String note, String payer, String receiver) {
+        ByteBuffer buffer = THREAD_BUFFER.get();
+        while (true) {
+            try {
+                buffer.clear();
+                putFields(buffer, transactionId, amount, fee, note, payer, receiver, null);
+                break;
+            } catch (BufferOverflowException e) {
+                buffer = ByteBuffer.allocate(buffer.capacity() * 2);
+                THREAD_BUFFER.set(buffer);
+            }
+        }
+        buffer.flip();
+
+        MessageDigest digest = HashUtil.threadDigest();
+        digest.update(buffer);
+        return digest.digest();
+    }
+
+    /**
+     * Write a transaction followed by its hash.
+     * @param buffer      The buffer to write to.
+     * @param transaction The transaction.
+     * @param accounts    The table the account indexes refer to, or null to write the addresses.
+     */
+    static void encode(ByteBuffer buffer, Transaction transaction, AddressTable accounts) {
+        putFields(buffer, transaction.getTransactionId(), transaction.getAmount(), transaction.getFee(), transaction.getNote(),
+                transaction.getPayerAddress(), transaction.getReceiverAddress(), accounts);
+        buffer.put(transaction.getTransactionHashBytes());
+    }
+
+    /**
+     * Read a transaction written by encode().
+     * @param buffer   The buffer to read from.
+     * @param accounts The table the account indexes refer to, or null if the addresses were written.
+     * @return         The transaction with its stored hash.
+     */
+    static Transaction decode(ByteBuffer buffer, AddressTable accounts) {
+        String transactionId = getString(buffer);
+        int amount = getVarint(buffer);
+        int fee = getVarint(buffer);
+        String note = getString(buffer);
+        String payer = getAccount(buffer, accounts);
+        String receiver = getAccount(buffer, accounts);
+        byte[] transactionHash = new byte[HashUtil.HASH_LENGTH];
+        buffer.get(transactionHash);
+        return new Transaction(transactionId, amount, fee, note, receiver, payer, transactionHash);
+    }
+
+    /**
+     * Read the ID and accounts of a transaction written by encode() and skip the rest of it.
+     * @param buffer    The buffer to read from.
+     * @param accounts  The table the account indexes refer to, or null if the addresses were written.
+     * @param addresses The list the payer and receiver addresses are added to.
+     * @return          The transaction ID.
+     */
+    static String decodeIndexEntry(ByteBuffer buffer, AddressTable accounts, List<String> addresses) {
+        String transactionId = getString(buffer);
+
+        // Skip the amount, fee and note
+        getVarint(buffer);
+        getVarint(buffer);
+        skipString(buffer);
+
+        addresses.add(getAccount(buffer, accounts));
+        addresses.add(getAccount(buffer, accounts));
+
+        // and the hash
+        buffer.position(buffer.position() + HashUtil.HASH_LENGTH);
+        return transactionId;
+    }
+
+    private static void putFields(ByteBuffer buffer, String transactionId, int amount, int fee, String note,
+                                  String payer, String receiver, AddressTable accounts) {
+        putString(buffer, transactionId);
+        putVarint(buffer, amount);
+        putVarint(buffer, fee);
+        putString(buffer, note);
+        putAccount(buffer, payer, accounts);
+        putAccount(buffer, receiver, accounts);
+    }
+
+    private static void putAccount(ByteBuffer buffer, String address, AddressTable accounts) {
+        if (accounts == null) {
+            putString(buffer, address);
+        } else {
+            putVarint(buffer, accounts.intern(address));
+        }
+    }
+
+    private static String getAccount(ByteBuffer buffer, AddressTable accounts) {
+        return accounts == null ? getString(buffer) : accounts.getAddress(getVarint(buffer));
+    }
+
+    /**
+     * Write an int as an unsigned varint. Negative values take five bytes.
+     * @param buffer The buffer to write to.
+     * @param value  The value.
+     */
+    static void putVarint(ByteBuffer buffer, int value) {
+        while ((value & ~0x7f) != 0) {
+            buffer.put((byte) ((value & 0x7f) | 0x80));
+            value >>>= 7;
+        }
+        buffer.put((byte) value);
+    }
+
+    /**
+     * Read an int written by putVarint().
+     * @param buffer The buffer to read from.
+     * @return       The value.
+     */
+    static int getVarint(ByteBuffer buffer) {
+        int value = 0;
+        for (int shift = 0; ; shift += 7) {
+            byte b = buffer.get();
+            value |= (b & 0x7f) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+    }
+
+    static void putString(ByteBuffer buffer, String value) {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        putVarint(buffer, bytes.length);
+        buffer.put(bytes);
+    }
+
+    static String getString(ByteBuffer buffer) {
+        byte[] bytes = new byte[getVarint(buffer)];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static void skipString(ByteBuffer buffer) {
+        int length = getVarint(buffer);
+        buffer.position(buffer.position() + length);
+    }
+
+    /**
+     * Write the file header at the start of the buffer.
+     * @param buffer The buffer to write to.
+     * @param magic  The magic number of the kind of file.
+     */
+    static void putFileHeader(ByteBuffer buffer, int magic) {
+        buffer.putInt(0, magic);
+        buffer.putInt(Integer.BYTES, FORMAT_VERSION);
+    }
+
+    /**
+     * Check the file header at the start of the buffer, so a file of another kind or format is
+     * refused instead of being read as damaged records.
+     * @param buffer The buffer holding at least FILE_HEADER_SIZE bytes of the file.
+     * @param magic  The magic number of the kind of file expected.
+     * @param kind   The kind of file expected, for the error message.
+     * @param file   The file, for the error message.
+     * @param action The action refused if the header doesn't match.
+     * @throws LedgerException Throw an exception if the magic number or format version doesn't match.
+     */
+    static void checkFileHeader(ByteBuffer buffer, int magic, String kind, Path file, String action) throws LedgerException {
+        if (buffer.getInt(0) != magic) {
+            throw new LedgerException(action, file + " isn't a " + kind + ", its magic number is "
+                    + String.format("0x%08x", buffer.getInt(0)) + " instead of " + String.format("0x%08x", magic) + ".");
+        }
+        int version = buffer.getInt(Integer.BYTES);
+        if (version != FORMAT_VERSION) {
+            throw new LedgerException(action, file + " was written in format version " + version
+                    + " but only version " + FORMAT_VERSION + " can be read.");
+        }
+    }
+
+    /**
+     * Addresses of the accounts referred to in an encoding, each written once and then referred
+     * to by its index.
+     */
+    static final class AddressTable {
+
+        private final Map<String, Integer> indexes = new HashMap<>();
+
+        private final List<String> addresses = new ArrayList<>();
+
+        /**
+         * Returns the index of the address, adding it to the table if it isn't in it yet.
+         * @param address The account address.
+         * @return        The index of the address.
+         */
+        int intern(String address) {
+            Integer index = indexes.get(address);
+            if (index == null) {
+                index = addresses.size();
+                indexes.put(address, index);
+                addresses.add(address);
+            }
+            return index;
+        }
+
+        String getAddress(int index) {
+            return addresses.get(index);
+        }
+
+        /**
+         * Write the number of addresses followed by each address.
+         * @param buffer The buffer to write to.
+         */
+        void encode(ByteBuffer buffer) {
+            putVarint(buffer, addresses.size());
+            for (String address : addresses) {
+                putString(buffer, address);
+            }
+        }
+
+        /**
+         * Read a table written by encode().
+         * @param buffer The buffer to read from.
+         * @return       The table.
+         */
+        static AddressTable decode(ByteBuffer buffer) {
+            AddressTable accounts = new AddressTable();
+            int count = getVarint(buffer);
+            for (int i = 0; i < count; i++) {
+                accounts.intern(getString(buffer));
+            }
+            return accounts;
+        }
+    }
+}
@@ -0,0 +1,192 @@
+package cscie97.smartcity.ledger;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.LongFunction;
+
+/**
+ * Author: Stephen Sheldon
+ *
+ * Open addressing hash index from transaction ID to the position of the transaction in the
+ * blockchain. A position packs the block number in the high 32 bits and the offset of the
+ * transaction within the block's transaction list in the low 32 bits. The index keeps a 64 bit
+ * hash of each ID instead of the ID itself, so each entry costs two longs and the IDs of blocks
+ * in the block store aren't kept on the heap. Different IDs may share a hash, so a match is
+ * confirmed against the transaction read from the block at the position.
+ *
+ * Blocks are indexed by a single thread at a time while other threads look transactions up.
+ * Lookups don't lock: a slot's position is written before its hash, and a grown table is only
+ * published once it is filled.
+ **/
+public class TransactionIndex {
+
+    /**
+     * Initial number of slots, must be a power of two.
+     */
+    private static final int INITIAL_CAPACITY = 1024;
+
+    /**
+     * The table is grown once it is more than this fraction full.
+     */
+    private static final float LOAD_FACTOR = 0.6f;
+
+    /**
+     * Hash of an empty slot, hashes of IDs are never this value.
+     */
+    private static final long EMPTY = 0L;
+
+    /**
+     * The slots, replaced as a whole when the index grows.
+     */
+    private volatile Table table;
+
+    /**
+     * Number of IDs in the index.
+     */
+    private volatile int size;
+
+    /**
+     * Constructor for an empty transaction index.
+     */
+    public TransactionIndex() {
+        table = new Table(INITIAL_CAPACITY);
+    }
+
+    /**
+     * Add a transaction to the index. An ID indexed twice is found at its first position.
+     * @param transactionId The transaction ID.
+     * @param blockNumber   The number of the block containing the transaction.
+     * @param offset        The offset of the transaction in the block's transaction list.
+     */
+    public synchronized void put(String transactionId, int blockNumber, int offset) {
+
+        if (size + 1 > table.positions.length * LOAD_FACTOR) {
+            table = table.grow();
+        }
+        table.put(hash(transactionId), pack(blockNumber, offset));
+        size++;
+    }
+
+    /**
+     * Look up a transaction. Every position whose hash matches the ID is read until one holds
+     * the transaction with the ID.
+     * @param transactionId The transaction ID.
+     * @param transactions  Reads the transaction at a position, or returns null if it can't.
+     * @return              The transaction, or null if the ID isn't in the index.
+     */
+    public Transaction get(String transactionId, LongFunction<Transaction> transactions) {
+
+        Table current = table;
+        long hash = hash(transactionId);
+        int mask = current.positions.length - 1;
+        int slot = (int) hash & mask;
+
+        long slotHash;
+        while ((slotHash = current.hashes.get(slot)) != EMPTY) {
+            if (slotHash == hash) {
+                Transaction transaction = transactions.apply(current.positions[slot]);
+                if (transaction != null && transaction.getTransactionId().equals(transactionId)) {
+                    return transaction;
+                }
+            }
+            slot = (slot + 1) & mask;
+        }
+        return null;
+    }
+
+    /**
+     * Returns true if the transaction ID is in the index.
+     * @param transactionId The transaction ID.
+     * @param transactions  Reads the transaction at a position, or returns null if it can't.
+     * @return              True if a transaction with the ID is indexed.
+     */
+    public boolean contains(String transactionId, LongFunction<Transaction> transactions) {
+        return get(transactionId, transactions) != null;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Pack a block number and offset into a position.
+     */
+    public static long pack(int blockNumber, int offset) {
+        return ((long) blockNumber << 32) | (offset & 0xffffffffL);
+    }
+
+    /**
+     * Returns the block number of a packed position.
+     */
+    public static int blockNumber(long position) {
+        return (int) (position >>> 32);
+    }
+
+    /**
+     * Returns the offset within the block of a packed position.
+     */
+    public static int offset(long position) {
+        return (int) position;
+    }
+
+    /**
+     * Hash of a transaction ID, never EMPTY. The low bits pick the first slot.
+     */
+    private static long hash(String transactionId) {
+        long hash = BloomFilter.hash(transactionId);
+        return hash == EMPTY ? 1L : hash;
+    }
+
+    /**
+     * Hashes and positions of one table size. Only the indexing thread writes to a table.
+     */
+    private static final class Table {
+
+        /**
+         * ID hashes, EMPTY for an empty slot. Written after the position in the same slot.
+         */
+        private final AtomicLongArray hashes;
+
+        /**
+         * Packed block number and offset for the hash in the same slot.
+         */
+        private final long[] positions;
+
+        Table(int capacity) {
+            hashes = new AtomicLongArray(capacity);
+            positions = new long[capacity];
+        }
+
+        void put(long hash, long position) {
+            int mask = positions.length - 1;
+            int slot = (int) hash & mask;
+            while (hashes.get(slot) != EMPTY) {
+                slot = (slot + 1) & mask;
+            }
+            positions[slot] = position;
+            hashes.set(slot, hash);
+        }
+
+        /**
+         * Returns a table with twice the slots holding the same entries. Entries with the same
+         * hash keep their order, so an ID indexed twice is still found at its first position.
+         */
+        Table grow() {
+            Table grown = new Table(positions.length * 2);
+            int mask = positions.length - 1;
+
+            // Start after an empty slot so probe runs that wrap around are copied in order
+            int start = 0;
+            while (hashes.get(start) != EMPTY) {
+                start++;
+            }
+            for (int i = 1; i <= positions.length; i++) {
+                int slot = (start + i) & mask;
+                long hash = hashes.get(slot);
+                if (hash != EMPTY) {
+                    grown.put(hash, positions[slot]);
+                }
+            }
+            return grown;
+        }
+    }
+}
@@ -0,0 +1,62 @@
+package cscie97.smartcity.ledger;
+
+/**
+ * Author: Stephen Sheldon
+ *
+ * Outcome of one transaction of a batch passed to LedgerService.processTransactions().
+ **/
+public class TransactionResult {
+
+    /**
+     * ID of the transaction.
+     */
+    private final String transactionId;
+
+    /**
+     * Number of the block the transaction was added to, 0 if it was rejected.
+     */
+    private final int blockNumber;
+
+    /**
+     * Reason the transaction was rejected, null if it was accepted.
+     */
+    private final String reason;
+
+    /**
+     * Constructor method.
+     * @param transactionId The transaction ID.
+     * @param blockNumber   The block the transaction was added to, 0 if it was rejected.
+     * @param reason        The reason the transaction was rejected, null if it was accepted.
+     */
+    public TransactionResult(String transactionId, int blockNumber, String reason) {
+        this.transactionId = transactionId;
+        this.blockNumber = blockNumber;
+        this.reason = reason;
+    }
+
+    public String getTransactionId() {
+        return transactionId;
+    }
+
+    public int getBlockNumber() {
+        return blockNumber;
+    }
+
+    public String getReason() {
+        return reason;
+    }
+
+    /**
+     * Returns true if the transaction was added to a block.
+     * @return True if accepted, false if rejected.
+     */
+    public boolean isAccepted() {
+        return reason == null;
+    }
+
+    @Override
+    public String toString() {
+        return "transactionId=" + transactionId +
+                (isAccepted() ? " accepted in block " + blockNumber : " rejected: " + reason);
+    }
+}
@@ -0,0 +1,83 @@
+package cscie97.smartcity.ledger;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Author: Stephen Sheldon
+ *
+ * Result of a successful validation of the blockchain, with the time spent in each phase.
+ **/
+public class ValidationResult {
+
+    /**
+     * First block checked by this validation, blocks before it were covered by the checkpoint.
+     */
+    private final int firstBlock;
+
+    /**
+     * Last block checked by this validation.
+     */
+    private final int lastBlock;
+
+    /**
+     * Time in nanoseconds spent in each validation phase, in the order the phases ran.
+     */
+    private final Map<String, Long> phaseNanos;
+
+    /**
+     * Constructor method.
+     * @param firstBlock The first block checked.
+     * @param lastBlock  The last block checked.
+     */
+    public ValidationResult(int firstBlock, int lastBlock) {
+        this.firstBlock = firstBlock;
+        this.lastBlock = lastBlock;
+        this.phaseNanos = new LinkedHashMap<>();
+    }
+
+    /**
+     * Record the time spent in a phase.
+     * @param phase  Name of the phase.
+     * @param nanos  Time spent in nanoseconds.
+     */
+    void addPhase(String phase, long nanos) {
+        phaseNanos.put(phase, nanos);
+    }
+
+    public int getFirstBlock() {
+        return firstBlock;
+    }
+
+    public int getLastBlock() {
+        return lastBlock;
+    }
+
+    /**
+     * Returns the number of blocks checked by this validation.
+     * @return Number of blocks checked.
+     */
+    public int getBlocksChecked() {
+        return Math.max(lastBlock - firstBlock + 1, 0);
+    }
+
+    public Map<String, Long> getPhaseNanos() {
+        return phaseNanos;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder result = new StringBuilder();
+
+        if (getBlocksChecked() == 0) {
+            result.append("No new blocks to validate");
+        } else {
+            result.append("Validated blocks ").append(firstBlock).append(" to ").append(lastBlock);
+        }
+
+        for (Map.Entry<String, Long> entry : phaseNanos.entrySet()) {
+            result.append(String.format("%n %s: %.3f ms", entry.getKey(), entry.getValue() / 1e6));
+        }
+        return result.toString();
+    }
+}
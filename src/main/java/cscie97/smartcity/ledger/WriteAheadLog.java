@@ -0,0 +1,628 @@
+package cscie97.smartcity.ledger;
+
+import cscie97.smartcity.controller.LoggerUtil;
+
+import java.io.IOException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.logging.Level;
+import java.util.zip.CRC32;
+
+/**
+ * Author: Stephen Sheldon
+ *
+ * Write-ahead log of the accepted accounts and transactions that may not be in the block store yet.
+ * Records are buffered in memory and written by a single flusher thread, so every submitter
+ * that is waiting when the flusher runs shares the same fsync (group commit). The flusher
+ * can wait for a durability window after the first pending record to gather more submitters
+ * into each fsync.
+ *
+ * Each record is its length, its CRC32, a type byte and the payload. The log is split into
+ * segment files named after the block their first record belongs to, and each segment starts
+ * with a record holding that block number. Blocks are committed in the background while new
+ * records keep arriving, so the log isn't reset as each block is stored. Instead a new segment
+ * is started at the next block once the current one reaches SEGMENT_SIZE, and a segment is
+ * deleted once every block it covers is in the block store. The log may still hold records of
+ * blocks that are already stored, and replay skips them.
+ *
+ * Each segment file starts with the TransactionCodec file header, and a segment with another
+ * magic number or format version is refused.
+ **/
+public class WriteAheadLog {
+
+    /**
+     * Record holding the block number the log starts at.
+     */
+    static final byte START = 0;
+
+    /**
+     * Record of a created account, the payload is its address.
+     */
+    static final byte ACCOUNT = 1;
+
+    /**
+     * Record of an accepted transaction, the payload is the encoded transaction.
+     */
+    static final byte TRANSACTION = 2;
+
+    /**
+     * Size of the record length and checksum written before each record.
+     */
+    private static final int RECORD_HEADER_SIZE = 2 * Integer.BYTES;
+
+    /**
+     * Magic number at the start of every segment file, "SCWL".
+     */
+    private static final int MAGIC = 0x5343574c;
+
+    /**
+     * Size in bytes after which a new segment is started at the next block.
+     */
+    private static final long SEGMENT_SIZE = 4L * 1024 * 1024;
+
+    /**
+     * Path the segment file names are derived from.
+     */
+    private final Path file;
+
+    /**
+     * Segment files from oldest to newest, the last one is written to.
+     */
+    private final Deque<Segment> segments;
+
+    /**
+     * Time in nanoseconds the flusher waits after the first pending record before syncing.
+     */
+    private final long durabilityWindowNanos;
+
+    /**
+     * Channel of the segment the log is written to, only replaced while holding writeLock.
+     */
+    private FileChannel channel;
+
+    /**
+     * Number of bytes written to the current segment.
+     */
+    private volatile long segmentBytes;
+
+    /**
+     * Lock held by the flusher while it writes and syncs, so the segment isn't switched under it.
+     */
+    private final Object writeLock = new Object();
+
+    /**
+     * Records appended but not yet handed to the flusher.
+     */
+    private ByteBuffer pending;
+
+    /**
+     * Buffer the flusher writes from, swapped with pending.
+     */
+    private ByteBuffer writing;
+
+    /**
+     * Sequence number of the last appended record.
+     */
+    private long appendedSequence;
+
+    /**
+     * Sequence number of the last record known to be on disk.
+     */
+    private long durableSequence;
+
+    /**
+     * Number of times the log has been synced to disk.
+     */
+    private long syncCount;
+
+    /**
+     * Set when a write or sync fails, every later wait fails as well.
+     */
+    private IOException failure;
+
+    /**
+     * Set once close() is called, no more records are appended.
+     */
+    private boolean closed;
+
+    /**
+     * Set once close() has written the last records, nothing more becomes durable after this.
+     */
+    private boolean stopped;
+
+    /**
+     * The records found in the log when it was opened.
+     */
+    private final List<Record> records;
+
+    /**
+     * The block number the log started at when it was opened.
+     */
+    private final int startBlock;
+
+    /**
+     * Open the log, reading the records its segments already hold, and start the flusher thread.
+     * @param file                   The path segment file names are derived from.
+     * @param nextBlock              The block new records belong to if the log has no segments yet.
+     * @param durabilityWindowMillis Time the flusher waits to gather more records before each sync, 0 to sync right away.
+     * @throws LedgerException Throw an exception if the log can't be opened.
+     */
+    public WriteAheadLog(Path file, int nextBlock, long durabilityWindowMillis) throws LedgerException {
+        this.file = file.toAbsolutePath();
+        this.durabilityWindowNanos = durabilityWindowMillis * 1000000L;
+        this.pending = ByteBuffer.allocate(64 * 1024);
+        this.writing = ByteBuffer.allocate(64 * 1024);
+        this.records = new ArrayList<>();
+        this.segments = new ArrayDeque<>();
+
+        try {
+            TreeMap<Integer, Path> existing = listSegments();
+            if (existing.isEmpty()) {
+                startBlock = nextBlock;
+                openSegment(nextBlock);
+            } else {
+                startBlock = existing.firstKey();
+                for (Map.Entry<Integer, Path> entry : existing.entrySet()) {
+                    if (channel != null) {
+                        channel.close();
+                    }
+                    segments.add(new Segment(entry.getKey(), entry.getValue()));
+                    channel = FileChannel.open(entry.getValue(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+                    read(entry.getValue());
+                }
+            }
+        } catch (IOException e) {
+            throw new LedgerException("open-write-ahead-log", "Unable to open write-ahead log " + file + ": " + e.getMessage());
+        }
+
+        Thread flusher = new Thread(this::flushLoop, "ledger-wal-flusher");
+        flusher.setDaemon(true);
+        flusher.start();
+    }
+
+    /**
+     * Returns the segment files of the log by the block they start at.
+     */
+    private TreeMap<Integer, Path> listSegments() throws IOException {
+        TreeMap<Integer, Path> existing = new TreeMap<>();
+        String prefix = file.getFileName() + ".";
+
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(file.getParent(), prefix + "*")) {
+            for (Path path : stream) {
+                try {
+                    existing.put(Integer.parseInt(path.getFileName().toString().substring(prefix.length())), path);
+                } catch (NumberFormatException e) {
+                    // not a segment of this log
+                }
+            }
+        }
+        return existing;
+    }
+
+    /**
+     * Create a segment for the records of the given block onwards and make it the one written to.
+     * The caller holds writeLock or is the constructor.
+     */
+    private void openSegment(int blockNumber) throws IOException {
+        Path path = file.resolveSibling(String.format("%s.%08d", file.getFileName(), blockNumber));
+        FileChannel next = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        if (channel != null) {
+            channel.close();
+        }
+        channel = next;
+        writeFileHeader();
+        segments.add(new Segment(blockNumber, path));
+        appendStart(blockNumber);
+    }
+
+    /**
+     * Write the file header to the start of the current segment, which is empty. It is synced
+     * with the first records of the segment.
+     */
+    private void writeFileHeader() throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(TransactionCodec.FILE_HEADER_SIZE);
+        TransactionCodec.putFileHeader(header, MAGIC);
+        while (header.hasRemaining()) {
+            channel.write(header, header.position());
+        }
+        channel.position(TransactionCodec.FILE_HEADER_SIZE);
+        segmentBytes = TransactionCodec.FILE_HEADER_SIZE;
+    }
+
+    /**
+     * Read the complete records of the current segment, dropping a damaged record at the end and everything after it.
+     * @param path The segment file.
+     * @throws LedgerException Throw an exception if the segment isn't a write-ahead log segment of this format.
+     */
+    private void read(Path path) throws IOException, LedgerException {
+
+        // A segment created just before a crash may not have its whole header yet
+        if (channel.size() < TransactionCodec.FILE_HEADER_SIZE) {
+            channel.truncate(0);
+            writeFileHeader();
+            return;
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate((int) channel.size());
+        while (buffer.hasRemaining() && channel.read(buffer, buffer.position()) >= 0) {
+            // keep reading until the whole file is in the buffer
+        }
+        buffer.flip();
+        TransactionCodec.checkFileHeader(buffer, MAGIC, "write-ahead log segment", path, "open-write-ahead-log");
+
+        CRC32 crc = new CRC32();
+        int end = TransactionCodec.FILE_HEADER_SIZE;
+        buffer.position(end);
+
+        while (buffer.remaining() >= RECORD_HEADER_SIZE) {
+            int length = buffer.getInt(end);
+            if (length < 1 || end + RECORD_HEADER_SIZE + length > buffer.limit()) {
+                break;
+            }
+
+            ByteBuffer payload = buffer.duplicate();
+            payload.position(end + RECORD_HEADER_SIZE).limit(end + RECORD_HEADER_SIZE + length);
+            crc.reset();
+            crc.update(payload.duplicate());
+            if ((int) crc.getValue() != buffer.getInt(end + Integer.BYTES)) {
+                break;
+            }
+
+            byte type = payload.get();
+            if (type != START) {
+                records.add(new Record(type, payload.slice()));
+            }
+
+            end += RECORD_HEADER_SIZE + length;
+            buffer.position(end);
+        }
+
+        if (end < channel.size()) {
+            LoggerUtil.log(Level.WARNING, "Write-ahead log " + path + " has a damaged record at the end that was dropped.", false);
+            channel.truncate(end);
+        }
+        channel.position(end);
+        segmentBytes = end;
+    }
+
+    /**
+     * Append the creation of an account.
+     * @param address The address of the new account.
+     * @return        The sequence number to wait for.
+     * @throws IllegalStateException If the log has been closed.
+     */
+    public synchronized long appendAccount(String address) {
+        checkOpen();
+        while (true) {
+            int mark = pending.position();
+            try {
+                beginRecord(ACCOUNT);
+                TransactionCodec.putString(pending, address);
+                return endRecord(mark);
+            } catch (BufferOverflowException e) {
+                grow(mark);
+            }
+        }
+    }
+
+    /**
+     * Append an accepted transaction.
+     * @param transaction The transaction.
+     * @return            The sequence number to wait for.
+     * @throws IllegalStateException If the log has been closed.
+     */
+    public synchronized long appendTransaction(Transaction transaction) {
+        checkOpen();
+        while (true) {
+            int mark = pending.position();
+            try {
+                beginRecord(TRANSACTION);
+                TransactionCodec.encode(pending, transaction, null);
+                return endRecord(mark);
+            } catch (BufferOverflowException e) {
+                grow(mark);
+            }
+        }
+    }
+
+    private void checkOpen() {
+        if (closed) {
+            throw new IllegalStateException("The write-ahead log " + file + " has been closed.");
+        }
+    }
+
+    private void beginRecord(byte type) {
+        if (pending.remaining() < RECORD_HEADER_SIZE + 1) {
+            throw new BufferOverflowException();
+        }
+        pending.position(pending.position() + RECORD_HEADER_SIZE);
+        pending.put(type);
+    }
+
+    private long endRecord(int mark) {
+        int length = pending.position() - mark - RECORD_HEADER_SIZE;
+
+        ByteBuffer payload = pending.duplicate();
+        payload.position(mark + RECORD_HEADER_SIZE).limit(pending.position());
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+
+        pending.putInt(mark, length);
+        pending.putInt(mark + Integer.BYTES, (int) crc.getValue());
+
+        appendedSequence++;
+        notifyAll();
+        return appendedSequence;
+    }
+
+    /**
+     * Drop a partly written record and double the pending buffer.
+     */
+    private void grow(int mark) {
+        pending.position(mark);
+        pending.flip();
+        pending = ByteBuffer.allocate(pending.capacity() * 2).put(pending);
+    }
+
+    /**
+     * Wait until the record with the given sequence number is on disk.
+     * @param sequence The sequence number returned when the record was appended.
+     * @throws LedgerException Throw an exception if the log couldn't be written or was closed before the record was.
+     */
+    public synchronized void awaitDurable(long sequence) throws LedgerException {
+        boolean interrupted = false;
+
+        while (durableSequence < sequence && failure == null && !stopped) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        if (durableSequence < sequence) {
+            throw new LedgerException("write-ahead-log", failure != null
+                    ? "Unable to write the write-ahead log: " + failure.getMessage()
+                    : "The write-ahead log was closed before the record was written.");
+        }
+    }
+
+    /**
+     * Start a new segment at the given block if the current segment is large enough. Called while
+     * no records are being appended, so every record after this belongs to the given block or later.
+     * The records of the old segment are synced first, which only costs an fsync once per segment.
+     * @param blockNumber The block the following records belong to.
+     */
+    public void rotate(int blockNumber) {
+        if (segmentBytes < SEGMENT_SIZE) {
+            return;
+        }
+        synchronized (writeLock) {
+            flush();
+            try {
+                openSegment(blockNumber);
+            } catch (IOException e) {
+                failed(e);
+            }
+        }
+    }
+
+    /**
+     * Delete the segments whose records all belong to committed blocks. Called once the
+     * blocks up to the given block are durable in the block store. The current segment is never deleted.
+     * @param blockNumber The last block in the block store.
+     */
+    public void release(int blockNumber) {
+        synchronized (writeLock) {
+            while (segments.size() > 1) {
+                Iterator<Segment> iterator = segments.iterator();
+                Segment oldest = iterator.next();
+                if (iterator.next().startBlock > blockNumber + 1) {
+                    break;
+                }
+                try {
+                    Files.deleteIfExists(oldest.path);
+                } catch (IOException e) {
+                    LoggerUtil.log(Level.WARNING, "Unable to delete write-ahead log segment " + oldest.path + ".", false);
+                }
+                segments.removeFirst();
+            }
+        }
+    }
+
+    private synchronized void appendStart(int blockNumber) {
+        int mark = pending.position();
+        beginRecord(START);
+        pending.putInt(blockNumber);
+        endRecord(mark);
+    }
+
+    /**
+     * Sync any pending records and stop the flusher.
+     */
+    public void close() {
+        synchronized (this) {
+            closed = true;
+            notifyAll();
+        }
+        flush();
+        try {
+            channel.close();
+        } catch (IOException e) {
+            LoggerUtil.log(Level.SEVERE, "Unable to close write-ahead log " + file + ".", false);
+        }
+        synchronized (this) {
+            stopped = true;
+            notifyAll();
+        }
+    }
+
+    private void flushLoop() {
+        while (true) {
+            synchronized (this) {
+                while (pending.position() == 0 && !closed) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                if (closed) {
+                    return;
+                }
+            }
+
+            // Give other submitters a chance to join this sync
+            if (durabilityWindowNanos > 0) {
+                long deadline = System.nanoTime() + durabilityWindowNanos;
+                for (long left = durabilityWindowNanos; left > 0; left = deadline - System.nanoTime()) {
+                    try {
+                        Thread.sleep(left / 1000000L, (int) (left % 1000000L));
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+            }
+
+            flush();
+        }
+    }
+
+    /**
+     * Write and sync everything appended so far.
+     */
+    private void flush() {
+        synchronized (writeLock) {
+            long sequence;
+
+            synchronized (this) {
+                if (pending.position() == 0) {
+                    return;
+                }
+                ByteBuffer full = pending;
+                pending = writing;
+                writing = full;
+                sequence = appendedSequence;
+            }
+
+            writing.flip();
+            segmentBytes += writing.remaining();
+            try {
+                while (writing.hasRemaining()) {
+                    channel.write(writing);
+                }
+                channel.force(false);
+            } catch (IOException e) {
+                failed(e);
+            }
+            writing.clear();
+
+            synchronized (this) {
+                syncCount++;
+                if (failure == null) {
+                    durableSequence = Math.max(durableSequence, sequence);
+                }
+                notifyAll();
+            }
+        }
+    }
+
+    private synchronized void failed(IOException e) {
+        LoggerUtil.log(Level.SEVERE, "Unable to write write-ahead log " + file + ": " + e.getMessage(), false);
+        failure = e;
+        notifyAll();
+    }
+
+    /**
+     * Returns the records found in the log when it was opened.
+     * @return The account and transaction records in the order they were appended.
+     */
+    public List<Record> getRecords() {
+        return records;
+    }
+
+    /**
+     * Returns the block the oldest segment started at when the log was opened.
+     * @return The block the records returned by getRecords() start at.
+     */
+    public int getStartBlock() {
+        return startBlock;
+    }
+
+    public synchronized long getSyncCount() {
+        return syncCount;
+    }
+
+    public synchronized long getAppendedCount() {
+        return appendedSequence;
+    }
+
+    /**
+     * A segment file and the block its first record belongs to.
+     */
+    private static class Segment {
+
+        private final int startBlock;
+
+        private final Path path;
+
+        Segment(int startBlock, Path path) {
+            this.startBlock = startBlock;
+            this.path = path;
+        }
+    }
+
+    /**
+     * A record read back from the log.
+     */
+    public static class Record {
+
+        private final byte type;
+
+        private final ByteBuffer payload;
+
+        Record(byte type, ByteBuffer payload) {
+            this.type = type;
+            this.payload = payload;
+        }
+
+        public byte getType() {
+            return type;
+        }
+
+        ByteBuffer getPayload() {
+            return payload.duplicate();
+        }
+
+        /**
+         * Returns the address of an account record.
+         * @return The address of the created account.
+         */
+        public String getAddress() {
+            return TransactionCodec.getString(getPayload());
+        }
+
+        /**
+         * Returns the transaction of a transaction record.
+         * @return The transaction with its stored hash.
+         */
+        public Transaction getTransaction() {
+            return TransactionCodec.decode(getPayload(), null);
+        }
+    }
+}
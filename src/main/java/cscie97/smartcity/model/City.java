@@ -2,6 +2,7 @@ package cscie97.smartcity.model;
 
 import cscie97.smartcity.controller.LoggerUtil;
 
+import java.util.Collections;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
@@ -124,6 +125,22 @@ public class City implements Cloneable {
         devicesCurrentlyInCity.add(iotDevice);
     }
 
+    /**
+     * Returns the persons in the city. The map can't be changed, persons are added with addPerson().
+     * @return A read-only view of the persons by ID.
+     */
+    public Map<String, Person> getPersonMap() {
+        return Collections.unmodifiableMap(personMap);
+    }
+
+    /**
+     * Returns the devices in the city. The list can't be changed, devices are added with addDevicesCurrentlyInCity().
+     * @return A read-only view of the devices.
+     */
+    public List<IotDevice> getDevicesCurrentlyInCity() {
+        return Collections.unmodifiableList(devicesCurrentlyInCity);
+    }
+
     public void setPersonMap(Map<String, Person> personMap) {
         this.personMap = personMap;
     }
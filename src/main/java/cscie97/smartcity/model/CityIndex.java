@@ -0,0 +1,349 @@
+package cscie97.smartcity.model;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * Author: Stephen Sheldon
+ *
+ * Spatial index over the circles of the cities. The globe is split into a grid of cells of
+ * CELL_DEGREES by CELL_DEGREES, and each city is listed in every cell its bounding box overlaps,
+ * so finding the city of a location only measures the distance to the few cities listed in the
+ * location's cell instead of to every city. Cities covering more than MAX_CELLS cells are kept
+ * in a separate list that is checked for every location.
+ *
+ * When a location is in more than one city the city with the lowest ID is returned, the same
+ * city a walk over the city map in ID order finds first.
+ *
+ * Cities are added and removed one at a time under the write lock, while cities are found with
+ * an optimistic read that takes no lock. The circles of a cell are kept in an array that is
+ * replaced rather than changed, so a lookup always walks a complete list. A moved city can go
+ * from the wide list to the cells or back, and a lookup that read one before the move and the
+ * other after it would miss the city, so a lookup that overlapped a change is run again under
+ * the read lock.
+ **/
+class CityIndex {
+
+    /**
+     * Width and height of a cell in degrees.
+     */
+    private static final double CELL_DEGREES = 0.25;
+
+    private static final int ROWS = (int) (180 / CELL_DEGREES);
+
+    private static final int COLUMNS = (int) (360 / CELL_DEGREES);
+
+    /**
+     * Most cells a city is listed in before it is checked for every location instead.
+     */
+    private static final int MAX_CELLS = 4096;
+
+    /**
+     * Radius of the earth in kilometers, the same as CityModelService.distance().
+     */
+    private static final double EARTH_RADIUS = 6371;
+
+    /**
+     * Degrees added to every bounding box so rounding never leaves out a location on the edge of a city.
+     */
+    private static final double MARGIN = 1e-6;
+
+    /**
+     * Circle of each city, by city ID.
+     */
+    private final Map<String, Circle> circles;
+
+    /**
+     * Circles listed in each cell, by cell number.
+     */
+    private final Map<Integer, Circle[]> cells;
+
+    /**
+     * Circles too large to list in cells.
+     */
+    private volatile Circle[] wide;
+
+    /**
+     * Held for writing while cities are added or removed, lookups only take it when they overlapped a change.
+     */
+    private final StampedLock lock;
+
+    /**
+     * Constructor method.
+     */
+    CityIndex() {
+        circles = new ConcurrentHashMap<>();
+        cells = new ConcurrentHashMap<>();
+        wide = new Circle[0];
+        lock = new StampedLock();
+    }
+
+    /**
+     * Add a city, replacing the circle it was added with before.
+     * @param city The city, its location and radius are copied.
+     */
+    void add(City city) {
+        Circle circle = new Circle(city.getUuid(), city.getLocation().getLatitude(),
+                city.getLocation().getLongitude(), city.getRadius());
+
+        long stamp = lock.writeLock();
+        try {
+            list(circle);
+            unlist(circles.put(circle.cityId, circle));
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Remove a city.
+     * @param cityId The city ID.
+     */
+    void remove(String cityId) {
+        long stamp = lock.writeLock();
+        try {
+            unlist(circles.remove(cityId));
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    private void list(Circle circle) {
+        if (circle.isEmpty()) {
+            return;
+        }
+        if (circle.cellCount() > MAX_CELLS) {
+            wide = with(wide, circle);
+            return;
+        }
+        for (int cell : circle.cells()) {
+            cells.put(cell, with(cells.getOrDefault(cell, new Circle[0]), circle));
+        }
+    }
+
+    private void unlist(Circle circle) {
+        if (circle == null || circle.isEmpty()) {
+            return;
+        }
+        if (circle.cellCount() > MAX_CELLS) {
+            wide = without(wide, circle);
+            return;
+        }
+        for (int cell : circle.cells()) {
+            Circle[] listed = without(cells.get(cell), circle);
+            if (listed.length == 0) {
+                cells.remove(cell);
+            } else {
+                cells.put(cell, listed);
+            }
+        }
+    }
+
+    /**
+     * Returns a copy of an array of circles with a circle added at the end.
+     */
+    private static Circle[] with(Circle[] listed, Circle circle) {
+        Circle[] copy = Arrays.copyOf(listed, listed.length + 1);
+        copy[listed.length] = circle;
+        return copy;
+    }
+
+    /**
+     * Returns a copy of an array of circles without a circle.
+     */
+    private static Circle[] without(Circle[] listed, Circle circle) {
+        Circle[] copy = new Circle[listed.length - 1];
+        int i = 0;
+        for (Circle other : listed) {
+            if (other != circle) {
+                copy[i++] = other;
+            }
+        }
+        return copy;
+    }
+
+    /**
+     * Returns the ID of the city a location is in.
+     * @param latitude  The latitude in degrees.
+     * @param longitude The longitude in degrees.
+     * @return          The ID of the city with the lowest ID that holds the location, or null if there is none.
+     */
+    String find(double latitude, double longitude) {
+        long stamp = lock.tryOptimisticRead();
+        String cityId = lookup(latitude, longitude);
+        if (lock.validate(stamp)) {
+            return cityId;
+        }
+
+        // A city was added or removed during the lookup, look again while none can be
+        stamp = lock.readLock();
+        try {
+            return lookup(latitude, longitude);
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    private String lookup(double latitude, double longitude) {
+
+        // A latitude off the grid can only be checked against every city
+        if (!(latitude >= -90 && latitude <= 90)) {
+            return closest(circles.values(), latitude, longitude, null, false);
+        }
+
+        String cityId = closest(Arrays.asList(wide), latitude, longitude, null, true);
+        Circle[] listed = cells.get(cellOf(row(latitude), column(longitude)));
+        if (listed != null) {
+            cityId = closest(Arrays.asList(listed), latitude, longitude, cityId, true);
+        }
+        return cityId;
+    }
+
+    /**
+     * Returns the lowest city ID among the given ID and the IDs of the circles holding a location.
+     * The bounding boxes are only checked when the latitude is on the grid.
+     */
+    private static String closest(Iterable<Circle> candidates, double latitude, double longitude, String cityId, boolean onGrid) {
+        for (Circle circle : candidates) {
+            if ((cityId == null || circle.cityId.compareTo(cityId) < 0)
+                    && (onGrid ? circle.contains(latitude, longitude) : circle.measure(latitude, longitude))) {
+                cityId = circle.cityId;
+            }
+        }
+        return cityId;
+    }
+
+    private static int row(double latitude) {
+        return Math.min(ROWS - 1, Math.max(0, (int) Math.floor((latitude + 90) / CELL_DEGREES)));
+    }
+
+    private static int column(double longitude) {
+        return Math.floorMod((long) Math.floor((longitude + 180) / CELL_DEGREES), COLUMNS);
+    }
+
+    private static int cellOf(int row, int column) {
+        return row * COLUMNS + column;
+    }
+
+    /**
+     * Location and radius of a city when it was added, with the bounding box of the circle.
+     */
+    private static final class Circle {
+
+        private final String cityId;
+
+        private final double latitude;
+
+        private final double longitude;
+
+        private final double radius;
+
+        private final double minLatitude;
+
+        private final double maxLatitude;
+
+        /**
+         * Largest longitude difference from the center of a location in the circle, 180 if the circle covers a pole.
+         */
+        private final double longitudeSpan;
+
+        Circle(String cityId, double latitude, double longitude, Double radius) {
+            this.cityId = cityId;
+            this.latitude = latitude;
+            this.longitude = longitude;
+            this.radius = radius == null ? Double.NaN : radius;
+
+            double angle = this.radius / EARTH_RADIUS;
+            double angleDegrees = Math.toDegrees(angle) + MARGIN;
+
+            if (!(angle >= 0) || !(latitude >= -90 && latitude <= 90)) {
+                // No location is in a circle without a radius, a center off the grid is checked for every location
+                minLatitude = angle >= 0 ? -90 : Double.NaN;
+                maxLatitude = angle >= 0 ? 90 : Double.NaN;
+                longitudeSpan = 180;
+            } else if (Math.abs(latitude) + angleDegrees >= 90) {
+                // The circle covers a pole, so it covers every longitude near the pole
+                minLatitude = Math.max(-90, latitude - angleDegrees);
+                maxLatitude = Math.min(90, latitude + angleDegrees);
+                longitudeSpan = 180;
+            } else {
+                minLatitude = latitude - angleDegrees;
+                maxLatitude = latitude + angleDegrees;
+                longitudeSpan = Math.min(180, Math.toDegrees(Math.asin(Math.sin(angle) / Math.cos(Math.toRadians(latitude)))) + MARGIN);
+            }
+        }
+
+        /**
+         * Returns true if no location can be in the circle.
+         */
+        boolean isEmpty() {
+            return Double.isNaN(minLatitude);
+        }
+
+        /**
+         * Returns true if a location is in the circle, checking the bounding box before measuring the distance.
+         */
+        boolean contains(double latitude, double longitude) {
+            if (latitude < minLatitude || latitude > maxLatitude) {
+                return false;
+            }
+            if (longitudeSpan < 180 && longitudeDifference(longitude) > longitudeSpan) {
+                return false;
+            }
+            return measure(latitude, longitude);
+        }
+
+        /**
+         * Returns true if the distance from the center to a location is at most the radius.
+         */
+        boolean measure(double latitude, double longitude) {
+            return CityModelService.distance(this.latitude, latitude, this.longitude, longitude, 0.0, 0.0) <= radius;
+        }
+
+        /**
+         * Returns the difference between a longitude and the longitude of the center, from 0 to 180 degrees.
+         */
+        private double longitudeDifference(double longitude) {
+            double difference = Math.abs(longitude - this.longitude) % 360;
+            return difference > 180 ? 360 - difference : difference;
+        }
+
+        private int rowCount() {
+            return row(maxLatitude) - row(minLatitude) + 1;
+        }
+
+        private int columnCount() {
+            if (longitudeSpan >= 180) {
+                return COLUMNS;
+            }
+            long first = (long) Math.floor((longitude - longitudeSpan + 180) / CELL_DEGREES);
+            long last = (long) Math.floor((longitude + longitudeSpan + 180) / CELL_DEGREES);
+            return (int) Math.min(COLUMNS, last - first + 1);
+        }
+
+        long cellCount() {
+            return (long) rowCount() * columnCount();
+        }
+
+        /**
+         * Returns the numbers of the cells the bounding box overlaps.
+         */
+        int[] cells() {
+            int firstRow = row(minLatitude);
+            int rows = rowCount();
+            int columns = columnCount();
+            int firstColumn = columns == COLUMNS ? 0 : column(longitude - longitudeSpan);
+
+            int[] numbers = new int[rows * columns];
+            int i = 0;
+            for (int row = firstRow; row < firstRow + rows; row++) {
+                for (int column = 0; column < columns; column++) {
+                    numbers[i++] = cellOf(row, (firstColumn + column) % COLUMNS);
+                }
+            }
+            return numbers;
+        }
+    }
+}
@@ -0,0 +1,71 @@
+package cscie97.smartcity.model;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * Author: Stephen Sheldon
+ *
+ * Secondary index from a city to the persons or IoT devices that belong to it, so the members
+ * of one city are found without walking the members of every city. City IDs are matched
+ * ignoring case, and the members of a city are kept in ID order like the maps of the
+ * CityModelService. Members can be added, removed and walked from many threads at once. A walk
+ * over the members of a city sees every member that stays in the city while it runs.
+ *
+ * @param <T> The Person or IotDevice type of the members.
+ **/
+class CityMembers<T> {
+
+    /**
+     * Members of each city by member ID, by lower case city ID. The members of a city are kept
+     * once the city has none, so a member is never added to a map another thread just dropped.
+     */
+    private final Map<String, Map<String, T>> cities;
+
+    /**
+     * Constructor method.
+     */
+    CityMembers() {
+        cities = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * Add a member to a city.
+     * @param cityId   The city ID, nothing is added if it is null.
+     * @param memberId The ID of the person or device.
+     * @param member   The person or device.
+     */
+    void add(String cityId, String memberId, T member) {
+        if (cityId != null) {
+            cities.computeIfAbsent(cityId.toLowerCase(), id -> new ConcurrentSkipListMap<>()).put(memberId, member);
+        }
+    }
+
+    /**
+     * Remove a member from a city.
+     * @param cityId   The city ID, nothing is removed if it is null.
+     * @param memberId The ID of the person or device.
+     */
+    void remove(String cityId, String memberId) {
+        if (cityId == null) {
+            return;
+        }
+        Map<String, T> members = cities.get(cityId.toLowerCase());
+        if (members != null) {
+            members.remove(memberId);
+        }
+    }
+
+    /**
+     * Returns the members of a city in ID order.
+     * @param cityId The city ID.
+     * @return       The persons or devices of the city, empty if it has none.
+     */
+    Collection<T> get(String cityId) {
+        Map<String, T> members = cities.get(cityId.toLowerCase());
+        return members == null ? Collections.emptyList() : members.values();
+    }
+}
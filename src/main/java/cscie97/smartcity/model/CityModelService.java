@@ -1,12 +1,27 @@
 package cscie97.smartcity.model;
 
+import java.util.ArrayList;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
-import java.util.TreeMap;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Predicate;
 
 /**
  * Author: Stephen Sheldon
+ *
+ * The City Model Service can be called from many threads at once. The maps of cities, persons
+ * and IoT devices are concurrent maps, so finding an entity never takes a lock. Changes to a
+ * city, person or device are made while holding the lock of the stored object, so updates to
+ * the same entity are applied one at a time while updates to different entities run side by
+ * side. Copies of an entity are taken under its lock, and after every change a new read-only
+ * snapshot of the entity is published, so the views are read without taking any lock.
+ *
+ * Locks are taken in the order city, then person or device, then the robot index of a city,
+ * and no lock is held while the observers are notified.
  **/
 public class CityModelService implements Subject {
 
@@ -17,6 +32,12 @@ public class CityModelService implements Subject {
      */
     private Map<String, City> cityMap;
 
+    /**
+     * Spatial index over the location and radius of every city in cityMap, used to find
+     * the city a person or IoT device is in without measuring the distance to every city.
+     */
+    private CityIndex cityIndex;
+
     /**
      * A map of all person objects being manged by the City Model Service.
      * personMap uses the person ID of the Person object for the key and
@@ -31,6 +52,42 @@ public class CityModelService implements Subject {
      */
     private Map<String, IotDevice> iotDeviceMap;
 
+    /**
+     * A spatial index over the locations of the robots of each city. robotIndexMap uses the
+     * lower case city ID that starts the robot's device ID for the key.
+     */
+    private Map<String, RobotIndex> robotIndexMap;
+
+    /**
+     * The IoT devices of each city, by the city ID that starts the device ID.
+     */
+    private CityMembers<IotDevice> devicesByOwnerCity;
+
+    /**
+     * The IoT devices whose location is currently in each city, by the current city ID of the device.
+     */
+    private CityMembers<IotDevice> devicesByCurrentCity;
+
+    /**
+     * The persons whose location is currently in each city, by the current city ID of the person.
+     */
+    private CityMembers<Person> personsByCurrentCity;
+
+    /**
+     * Read-only snapshots of the cities, by city ID. A new snapshot is published whenever the city changes.
+     */
+    private Map<String, CityView> cityViewMap;
+
+    /**
+     * Read-only snapshots of the IoT devices, by device ID. A new snapshot is published whenever the device changes.
+     */
+    private Map<String, DeviceView> deviceViewMap;
+
+    /**
+     * Read-only snapshots of the persons, by person ID. A new snapshot is published whenever the person changes.
+     */
+    private Map<String, PersonView> personViewMap;
+
     /**
      * A list of all observers that are registered to watch the Model Service subject.
      */
@@ -46,17 +103,25 @@ public class CityModelService implements Subject {
      * Constructor for CityModelService
      */
     private CityModelService() {
-        this.cityMap = new TreeMap<>();
-        this.personMap = new TreeMap<>();
-        this.iotDeviceMap = new TreeMap<>();
-        this.observerList = new LinkedList<>();
+        this.cityMap = new ConcurrentSkipListMap<>();
+        this.cityIndex = new CityIndex();
+        this.personMap = new ConcurrentSkipListMap<>();
+        this.iotDeviceMap = new ConcurrentSkipListMap<>();
+        this.robotIndexMap = new ConcurrentHashMap<>();
+        this.devicesByOwnerCity = new CityMembers<>();
+        this.devicesByCurrentCity = new CityMembers<>();
+        this.personsByCurrentCity = new CityMembers<>();
+        this.cityViewMap = new ConcurrentHashMap<>();
+        this.deviceViewMap = new ConcurrentHashMap<>();
+        this.personViewMap = new ConcurrentHashMap<>();
+        this.observerList = new CopyOnWriteArrayList<>();
     }
 
     /**
      * Single Factory Method to instantiate a single instance of CityModelService.
      * @return  The CityModelService object that was created.
      */
-    public static CityModelService getInstance() {
+    public static synchronized CityModelService getInstance() {
         if (cityModelService == null) {
             cityModelService = new CityModelService();
         }
@@ -99,8 +164,14 @@ public class CityModelService implements Subject {
         // Do a deep copy of the city.
         City clonedCity = (City) city.clone();
 
-        // Add the city to the cityMap
-        cityMap.put(clonedCity.getUuid(), clonedCity);
+        // Add the city to the cityMap, the snapshot is published before the city's lock is released
+        synchronized (clonedCity) {
+            if (cityMap.putIfAbsent(clonedCity.getUuid(), clonedCity) != null) {
+                throw new CityModelServiceException("define city", "The identifier value you entered is already in use.");
+            }
+            cityIndex.add(clonedCity);
+            cityViewMap.put(clonedCity.getUuid(), new CityView(clonedCity));
+        }
 
         // Return the original city since we don't want the user to have
         // a reference to the one we plan to persist.
@@ -117,6 +188,7 @@ public class CityModelService implements Subject {
 
         Resident uniqueResident, clonedResident;
         Visitor uniqueVisitor, clonedVisitor;
+        Person storedPerson;
 
         // Check to make sure global identifier is not null
         if (person.getUuid() == null) {
@@ -162,8 +234,7 @@ public class CityModelService implements Subject {
             uniqueResident = (Resident) person;
             clonedResident = (Resident) uniqueResident.clone();
 
-            // Add the cloned resident to our personMap
-            personMap.put(clonedResident.getUuid(), clonedResident);
+            storedPerson = clonedResident;
         }
         // Check if person is a visitor
         else if (person instanceof Visitor) {
@@ -173,14 +244,26 @@ public class CityModelService implements Subject {
             uniqueVisitor = (Visitor) person;
             clonedVisitor = (Visitor) uniqueVisitor.clone();
 
-            // Add the cloned visitor to our personMap
-            personMap.put(clonedVisitor.getUuid(), clonedVisitor);
+            storedPerson = clonedVisitor;
         }
         // If it's neither then we have a problem
         else {
             throw new CityModelServiceException("define Person", "The person is neither a resident or a visitor.");
         }
 
+        // Add the person to our personMap, the snapshot is published before the person's lock is released
+        synchronized (storedPerson) {
+            if (personMap.putIfAbsent(storedPerson.getUuid(), storedPerson) != null) {
+                throw new CityModelServiceException("define person", "The person's global identifier is not unique.");
+            }
+            // Find the current city again now the person is listed, so a city update running at the same time either sees the person or is seen here
+            storedPerson.setCurrentCity(findCurrentCity(storedPerson.getLocation()));
+
+            // Index the person by current city
+            personsByCurrentCity.add(storedPerson.getCurrentCity(), storedPerson.getUuid(), storedPerson);
+            personViewMap.put(storedPerson.getUuid(), new PersonView(storedPerson));
+        }
+
         // Return the person object
         return person;
     }
@@ -205,39 +288,59 @@ public class CityModelService implements Subject {
         // Set current city
         iotDevice.setCurrentCity(findCurrentCity(iotDevice.location));
 
+        IotDevice storedDevice = null;
+
         // Check to see what kind of IoT Device we are creating
         if (iotDevice instanceof StreetLight) {
 
             // Clone the device to the proper subclass
             StreetLight streetLight = (StreetLight) iotDevice.clone();
 
-            // Add the device to the iotDeviceMap
-            iotDeviceMap.put(streetLight.getUuid(), streetLight);
+            storedDevice = streetLight;
         } else if (iotDevice instanceof StreetSign) {
 
             StreetSign streetSign = (StreetSign) iotDevice.clone();
 
-            iotDeviceMap.put(streetSign.getUuid(), streetSign);
+            storedDevice = streetSign;
         } else if (iotDevice instanceof Vehicle) {
 
             Vehicle vehicle = (Vehicle) iotDevice.clone();
 
-            iotDeviceMap.put(vehicle.getUuid(), vehicle);
+            storedDevice = vehicle;
         } else if (iotDevice instanceof InformationKiosk) {
 
             InformationKiosk informationKiosk = (InformationKiosk) iotDevice.clone();
 
-            iotDeviceMap.put(informationKiosk.getUuid(), informationKiosk);
+            storedDevice = informationKiosk;
         } else if (iotDevice instanceof Robot) {
 
             Robot robot = (Robot) iotDevice.clone();
 
-            iotDeviceMap.put(robot.getUuid(), robot);
+            storedDevice = robot;
         } else if (iotDevice instanceof ParkingSpace) {
 
             ParkingSpace parkingSpace = (ParkingSpace) iotDevice.clone();
 
-            iotDeviceMap.put(parkingSpace.getUuid(), parkingSpace);
+            storedDevice = parkingSpace;
+        }
+
+        if (storedDevice != null) {
+            // Add the device to the iotDeviceMap, the snapshot is published before the device's lock is released
+            synchronized (storedDevice) {
+                if (iotDeviceMap.putIfAbsent(storedDevice.getUuid(), storedDevice) != null) {
+                    throw new CityModelServiceException("Define IoTDevice", "The IoT Device ID is already in use.");
+                }
+                // Find the current city again now the device is listed, so a city update running at the same time either sees the device or is seen here
+                storedDevice.setCurrentCity(findCurrentCity(storedDevice.getLocation()));
+
+                // Index the device by owning and current city
+                devicesByOwnerCity.add(ownerCityOf(storedDevice), storedDevice.getUuid(), storedDevice);
+                devicesByCurrentCity.add(storedDevice.getCurrentCity(), storedDevice.getUuid(), storedDevice);
+                if (storedDevice instanceof Robot) {
+                    indexRobot((Robot) storedDevice);
+                }
+                deviceViewMap.put(storedDevice.getUuid(), new DeviceView(storedDevice));
+            }
         }
 
         return iotDevice;
@@ -256,15 +359,18 @@ public class CityModelService implements Subject {
         // Check to see if there is a device associated with this sensor output
         if (clonedSensorOutput.getDeviceId() != null) {
 
-            // Locate device that SensorOutput corresponds to
-            IotDevice outputDevice = getIotDevice(sensorOutput.getCityId(), sensorOutput.getDeviceId());
+            // Locate device that SensorOutput corresponds to, processing the output doesn't change the device
+            IotDevice outputDevice = findIotDevice(sensorOutput.getCityId(), sensorOutput.getDeviceId());
 
             // Send the sensor output to the device to process
             outputDevice.processSensorOutput(sensorOutput);
         } else {
-            List<IotDevice> deviceList = this.getIotDevice(sensorOutput.getCityId());
+            // Make sure the city exist
+            if (!cityMap.containsKey(sensorOutput.getCityId())) {
+                throw new CityModelServiceException("show device", "There is no city with the city ID of " + sensorOutput.getCityId());
+            }
             // Send the output to all IoT devices
-            for (IotDevice device : deviceList) {
+            for (IotDevice device : devicesByOwnerCity.get(sensorOutput.getCityId())) {
                 sensorOutput.setDeviceId(device.getUuid());
                 device.processSensorOutput(sensorOutput);
             }
@@ -286,9 +392,9 @@ public class CityModelService implements Subject {
         // Check if this is a global sensor event or device specific
         if (sensorEvent.getDeviceId() == null) {
             // It's global so apply it to all devices within the cityId
-            for (Map.Entry<String, IotDevice> entry : iotDeviceMap.entrySet()) {
-                if (entry.getValue().getCurrentCity().equalsIgnoreCase(sensorEvent.getCityId())) {
-                    entry.getValue().setLatestEvent(clonedSensorEvent);
+            for (IotDevice iotDevice : devicesByCurrentCity.get(sensorEvent.getCityId())) {
+                synchronized (iotDevice) {
+                    iotDevice.setLatestEvent(clonedSensorEvent);
                 }
             }
         } else {
@@ -300,8 +406,11 @@ public class CityModelService implements Subject {
             buildDeviceId.append(clonedSensorEvent.getDeviceId());
 
             // First make sure the device exists
-           if (iotDeviceMap.containsKey(buildDeviceId.toString())) {
-                iotDeviceMap.get((clonedSensorEvent.getCityId() + ":" + clonedSensorEvent.getDeviceId())).setLatestEvent(clonedSensorEvent);
+            IotDevice iotDevice = iotDeviceMap.get(buildDeviceId.toString());
+            if (iotDevice != null) {
+                synchronized (iotDevice) {
+                    iotDevice.setLatestEvent(clonedSensorEvent);
+                }
             }
             else {
                 throw new CityModelServiceException("create-event", "The device for the event does not exist");
@@ -322,18 +431,43 @@ public class CityModelService implements Subject {
      */
     public Person getPerson(String personId) throws CityModelServiceException {
 
-        if (!personMap.containsKey(personId)) {
+        Person person = personMap.get(personId);
+        if (person == null) {
             throw new CityModelServiceException("show person", "There is no person with the personId specified.");
         }
 
-        // Check if person is a resident, if so return a copy of the resident.
-        if (personMap.get(personId) instanceof Resident) {
-            return (Resident) personMap.get(personId).clone();
+        // Copy the person under their lock so the copy is never taken half way through an update
+        synchronized (person) {
+            // Check if person is a resident, if so return a copy of the resident.
+            if (person instanceof Resident) {
+                return (Resident) person.clone();
+            }
+            // If the person isn't a resident then they're a visitor.
+            else {
+                return (Visitor) person.clone();
+            }
         }
-        // If the person isn't a resident then they're a visitor.
-        else {
-            return (Visitor) personMap.get(personId).clone();
+    }
+
+    /**
+     * Returns a read-only snapshot of a person without copying them.
+     * @param personId The globally unique identifier of the person.
+     * @return         The snapshot of the person.
+     * @throws CityModelServiceException
+     */
+    public PersonView getPersonView(String personId) throws CityModelServiceException {
+        PersonView personView = personViewMap.get(personId);
+        if (personView == null) {
+            Person person = personMap.get(personId);
+            if (person == null) {
+                throw new CityModelServiceException("show person", "There is no person with the personId specified.");
+            }
+            // The person is being created, their snapshot is published before their lock is released
+            synchronized (person) {
+                personView = personViewMap.get(personId);
+            }
         }
+        return personView;
     }
 
     /**
@@ -346,29 +480,26 @@ public class CityModelService implements Subject {
         City clonedCity;
 
         // Make sure the city exist
-        if (!cityMap.containsKey(cityId)) {
+        City city = cityMap.get(cityId);
+        if (city == null) {
             throw new CityModelServiceException("show city", "There is no city with the city ID of " + cityId);
         }
 
-        clonedCity = (City) cityMap.get(cityId).clone();
+        // Hold the city's lock so the copy never shows a city update half applied
+        synchronized (city) {
+            clonedCity = (City) city.clone();
 
-        // Find all Iot Devices currently in city
-        for (Map.Entry<String, IotDevice> entry : iotDeviceMap.entrySet()) {
-            if (entry.getValue().getCurrentCity() != null) {
-                // Check if the device is currently in the city
-                if (entry.getValue().getCurrentCity().equalsIgnoreCase(clonedCity.getUuid())) {
-                    // If the device is currently in the city add to list
-                    clonedCity.addDevicesCurrentlyInCity((IotDevice) entry.getValue().clone());
+            // Add all Iot Devices currently in city
+            for (IotDevice iotDevice : devicesByCurrentCity.get(clonedCity.getUuid())) {
+                synchronized (iotDevice) {
+                    clonedCity.addDevicesCurrentlyInCity((IotDevice) iotDevice.clone());
                 }
             }
-        }
 
-        // Find all Persons currently in city
-        for (Map.Entry<String, Person> entry : personMap.entrySet()) {
-            if (entry.getValue().getCurrentCity() != null) {
-                // Check if the person is currently in the city
-                if (entry.getValue().getCurrentCity().equalsIgnoreCase(clonedCity.getUuid())) {
-                    clonedCity.addPerson((Person) entry.getValue().clone());
+            // Add all Persons currently in city
+            for (Person person : personsByCurrentCity.get(clonedCity.getUuid())) {
+                synchronized (person) {
+                    clonedCity.addPerson((Person) person.clone());
                 }
             }
         }
@@ -376,6 +507,27 @@ public class CityModelService implements Subject {
         return clonedCity;
     }
 
+    /**
+     * Returns a read-only snapshot of a city without copying the city or the persons and devices in it.
+     * @param cityId The globally unique identifier of the city.
+     * @return       The snapshot of the city.
+     * @throws CityModelServiceException
+     */
+    public CityView getCityView(String cityId) throws CityModelServiceException {
+        CityView cityView = cityViewMap.get(cityId);
+        if (cityView == null) {
+            City city = cityMap.get(cityId);
+            if (city == null) {
+                throw new CityModelServiceException("show city", "There is no city with the city ID of " + cityId);
+            }
+            // The city is being created, its snapshot is published before its lock is released
+            synchronized (city) {
+                cityView = cityViewMap.get(cityId);
+            }
+        }
+        return cityView;
+    }
+
     /**
      * Method to get all cities maintained by the CityModelService
      * @return A list of all cities maintained by the CityModelSerivce
@@ -385,15 +537,16 @@ public class CityModelService implements Subject {
         City clonedCity;
 
         for (Map.Entry<String, City> entry : cityMap.entrySet()) {
-            clonedCity = (City) entry.getValue().clone();
-
-            // Check what devices are currently in the city
-            for (Map.Entry<String, IotDevice> device : iotDeviceMap.entrySet()) {
-                // Check if the device is currently in the city
-                if (device.getValue().getCurrentCity() != null) {
-                    if (device.getValue().getCurrentCity().equals(clonedCity.getUuid())) {
-                        // If the device is currently in the city add to list
-                        clonedCity.addDevicesCurrentlyInCity((IotDevice) device.getValue().clone());
+            synchronized (entry.getValue()) {
+                clonedCity = (City) entry.getValue().clone();
+
+                // Check what devices are currently in the city
+                for (IotDevice iotDevice : devicesByCurrentCity.get(clonedCity.getUuid())) {
+                    synchronized (iotDevice) {
+                        // Only devices in the city with exactly this ID, not one differing in case
+                        if (clonedCity.getUuid().equals(iotDevice.getCurrentCity())) {
+                            clonedCity.addDevicesCurrentlyInCity((IotDevice) iotDevice.clone());
+                        }
                     }
                 }
             }
@@ -410,10 +563,6 @@ public class CityModelService implements Subject {
      */
     public List<IotDevice> getIotDevice(String cityId) throws CityModelServiceException {
 
-        IotDevice clonedDevice;
-        City clonedCity;
-        String uuid;
-        String[] splitUuid;
         List<IotDevice> devicesAssociatedWithCity = new LinkedList<>();
 
         // Make sure the city exist
@@ -421,21 +570,135 @@ public class CityModelService implements Subject {
             throw new CityModelServiceException("show device", "There is no city with the city ID of " + cityId);
         }
 
-        clonedCity = (City) cityMap.get(cityId).clone();
+        // Copy the devices associated with this city
+        for (IotDevice iotDevice : devicesByOwnerCity.get(cityId)) {
+            synchronized (iotDevice) {
+                devicesAssociatedWithCity.add((IotDevice) iotDevice.clone());
+            }
+        }
 
-        // Now iterate through all devices and see which ones are associated with this city
-        for (Map.Entry<String, IotDevice> entry : iotDeviceMap.entrySet()) {
-            uuid = entry.getValue().getUuid();
-            splitUuid = uuid.split(":");
+        return devicesAssociatedWithCity;
+    }
+
+    /**
+     * Gets read-only snapshots of all IoT devices within a city without copying the devices.
+     * @param cityId  The city ID of the City to return IoT devices from.
+     * @return        Snapshots of all IoT devices associated with city with cityId
+     * @throws CityModelServiceException
+     */
+    public List<DeviceView> getDeviceViews(String cityId) throws CityModelServiceException {
+
+        // Make sure the city exist
+        if (!cityMap.containsKey(cityId)) {
+            throw new CityModelServiceException("show device", "There is no city with the city ID of " + cityId);
+        }
+
+        List<DeviceView> deviceViews = new ArrayList<>();
+        for (IotDevice iotDevice : devicesByOwnerCity.get(cityId)) {
+            deviceViews.add(viewOf(iotDevice));
+        }
+        return deviceViews;
+    }
+
+    /**
+     * Gets a read-only snapshot of a specific IoT device within a city without copying the device.
+     * @param cityId    The cityId corresponding to the city in which the IoT Device resides.
+     * @param deviceId  The deviceId of the device to return.
+     * @return          The snapshot of the IoT Device with the corresponding deviceId.
+     * @throws CityModelServiceException
+     */
+    public DeviceView getDeviceView(String cityId, String deviceId) throws CityModelServiceException {
+        return viewOf(findIotDevice(cityId, deviceId));
+    }
 
-            if (splitUuid[0].equalsIgnoreCase(clonedCity.getUuid())) {
-                // This device is associated with city so add to list
-                clonedDevice = (IotDevice) entry.getValue().clone();
-                devicesAssociatedWithCity.add(clonedDevice);
+    /**
+     * Returns the latest snapshot of a device in the iotDeviceMap.
+     * @param iotDevice The device.
+     * @return          The snapshot of the device.
+     */
+    private DeviceView viewOf(IotDevice iotDevice) {
+        DeviceView deviceView = deviceViewMap.get(iotDevice.getUuid());
+        if (deviceView == null) {
+            // The device is being created, its snapshot is published before its lock is released
+            synchronized (iotDevice) {
+                deviceView = deviceViewMap.get(iotDevice.getUuid());
             }
         }
+        return deviceView;
+    }
 
-        return devicesAssociatedWithCity;
+    /**
+     * Gets the robots within a city that are nearest to a location, nearest first. Robots at the
+     * same distance are ordered by device ID.
+     * @param cityId   The city ID of the City to return robots from.
+     * @param location The location to measure the distance from.
+     * @param k        The most robots to return.
+     * @param filter   Only robots the filter accepts are returned, null to return any robot.
+     *                 The filter must not change the robots it is given, and may be given a
+     *                 robot while another thread updates it.
+     * @return         Copies of the k nearest robots the filter accepts.
+     * @throws CityModelServiceException
+     */
+    public List<Robot> nearestRobots(String cityId, Location location, int k, Predicate<Robot> filter) throws CityModelServiceException {
+
+        // Make sure the city exist
+        if (!cityMap.containsKey(cityId)) {
+            throw new CityModelServiceException("show device", "There is no city with the city ID of " + cityId);
+        }
+
+        List<Robot> nearestRobots = new ArrayList<>();
+        RobotIndex robotIndex = robotIndexMap.get(cityId.toLowerCase());
+        if (robotIndex != null) {
+            // The robots are copied after the index is released, taking the lock of each robot
+            for (Robot robot : robotIndex.nearest(location.getLatitude(), location.getLongitude(), k, filter)) {
+                synchronized (robot) {
+                    nearestRobots.add((Robot) robot.clone());
+                }
+            }
+        }
+        return nearestRobots;
+    }
+
+    /**
+     * Add a robot to the spatial index of its city, or move it there to its current location.
+     * @param robot The robot in the iotDeviceMap, its lock must be held.
+     */
+    private void indexRobot(Robot robot) {
+        String cityId = ownerCityOf(robot).toLowerCase();
+        robotIndexMap.computeIfAbsent(cityId, id -> new RobotIndex()).add(robot);
+    }
+
+    /**
+     * Returns the city ID that starts the device ID of an IoT device.
+     * @param iotDevice The IoT device.
+     * @return          The part of the device ID before the first colon.
+     */
+    private static String ownerCityOf(IotDevice iotDevice) {
+        String uuid = iotDevice.getUuid();
+        int colon = uuid.indexOf(':');
+        return colon < 0 ? uuid : uuid.substring(0, colon);
+    }
+
+    /**
+     * Set the current city of a person in the personMap, moving the person between the city indexes.
+     * @param person The person to update, their lock must be held.
+     * @param cityId The ID of the city the person is now in, or null if they are in no city.
+     */
+    private void setCurrentCity(Person person, String cityId) {
+        personsByCurrentCity.remove(person.getCurrentCity(), person.getUuid());
+        person.setCurrentCity(cityId);
+        personsByCurrentCity.add(cityId, person.getUuid(), person);
+    }
+
+    /**
+     * Set the current city of an IoT device in the iotDeviceMap, moving the device between the city indexes.
+     * @param iotDevice The IoT device to update, its lock must be held.
+     * @param cityId    The ID of the city the device is now in, or null if it is in no city.
+     */
+    private void setCurrentCity(IotDevice iotDevice, String cityId) {
+        devicesByCurrentCity.remove(iotDevice.getCurrentCity(), iotDevice.getUuid());
+        iotDevice.setCurrentCity(cityId);
+        devicesByCurrentCity.add(cityId, iotDevice.getUuid(), iotDevice);
     }
 
     /**
@@ -446,22 +709,32 @@ public class CityModelService implements Subject {
      * @throws CityModelServiceException
      */
     public IotDevice getIotDevice(String cityId, String deviceId) throws CityModelServiceException {
+        IotDevice iotDevice = findIotDevice(cityId, deviceId);
+        synchronized (iotDevice) {
+            return (IotDevice) iotDevice.clone();
+        }
+    }
 
-        StringBuilder fullDeviceId = new StringBuilder();
-
-        fullDeviceId.append(cityId);
-        fullDeviceId.append(":");
-        fullDeviceId.append(deviceId);
+    /**
+     * Returns a specific IoT device within a city from the iotDeviceMap without copying it.
+     * @param cityId    The cityId corresponding to the city in which the IoT Device resides.
+     * @param deviceId  The deviceId of the device to return.
+     * @return          The IoT Device with the corresponding deviceId.
+     * @throws CityModelServiceException
+     */
+    private IotDevice findIotDevice(String cityId, String deviceId) throws CityModelServiceException {
+        String fullDeviceId = cityId + ":" + deviceId;
 
-       // Make sure the city exist
+        // Make sure the city exist
         if (!cityMap.containsKey(cityId)) {
             throw new CityModelServiceException("show device", "There is no city with the city ID of " + cityId);
         }
         // Make sure the device exist
-        else if (!iotDeviceMap.containsKey(fullDeviceId.toString())) {
+        IotDevice iotDevice = iotDeviceMap.get(fullDeviceId);
+        if (iotDevice == null) {
             throw new CityModelServiceException("show device", "There is no device with device ID of " + fullDeviceId);
         }
-        return (IotDevice) iotDeviceMap.get(fullDeviceId.toString()).clone();
+        return iotDevice;
     }
 
 
@@ -504,30 +777,9 @@ public class CityModelService implements Subject {
      */
     private String findCurrentCity(Location location) {
 
-        double cityLat, cityLong, latitude, longitude, cityRadius, distanceBetween;
-        String currentCity = null;
-
-        latitude = location.getLatitude();
-        longitude = location.getLongitude();
-
-        // Iterate through cities to find which this location falls in.
-        for (Map.Entry<String, City> entry : cityMap.entrySet()) {
-
-            cityLat = entry.getValue().getLocation().getLatitude();
-            cityLong = entry.getValue().getLocation().getLongitude();
-            cityRadius = entry.getValue().getRadius();
-
-            // Calculate distance between the city and location.
-            distanceBetween = distance(cityLat, latitude, cityLong, longitude, 0.0, 0.0);
-
-            // Check if the distance is less than or equal to radius
-            if (distanceBetween <= cityRadius) {
-                // Set the currentCity
-                currentCity = entry.getValue().getUuid();
-                break;
-            }
-        }
-        return currentCity;
+        // Only the cities whose bounding box holds the location are measured. If the location
+        // is in more than one city the one with the lowest city ID is returned.
+        return cityIndex.find(location.getLatitude(), location.getLongitude());
     }
 
     /**
@@ -538,10 +790,28 @@ public class CityModelService implements Subject {
      */
     public Person updatePerson(Person person) throws CityModelServiceException {
         // First check if the person exists
-        if (!personMap.containsKey(person.getUuid())) {
+        Person storedPerson = personMap.get(person.getUuid());
+        if (storedPerson == null) {
             throw new CityModelServiceException("update person", "Person does not exist with ID " + person.getUuid());
         }
 
+        // Updates to the same person are applied one at a time
+        synchronized (storedPerson) {
+            Person updatedPerson = applyUpdate(person);
+
+            // Publish the snapshot of the updated person
+            personViewMap.put(storedPerson.getUuid(), new PersonView(storedPerson));
+            return updatedPerson;
+        }
+    }
+
+    /**
+     * Apply the updated values of a Person to the person in the personMap.
+     * @param person The Person object with updated values.
+     * @return       A copy of the updated Person object.
+     */
+    private Person applyUpdate(Person person) {
+
         // Check if Person is a Resident
         if (person instanceof Resident) {
 
@@ -576,7 +846,7 @@ public class CityModelService implements Subject {
                 // Set updated location
                 updatedResident.setLocation(clonedResident.getLocation());
                 // Update the current city
-                updatedResident.setCurrentCity(findCurrentCity(updatedResident.getLocation()));
+                setCurrentCity(updatedResident, findCurrentCity(updatedResident.getLocation()));
             }
             // Check if account has been updated
             if (clonedResident.getBlockchainAccountAddress() != null) {
@@ -606,7 +876,7 @@ public class CityModelService implements Subject {
                 // Set new location
                 updatedVisitor.setLocation(clonedVisitor.getLocation());
                 // Then find it's new current city
-                updatedVisitor.setCurrentCity(findCurrentCity(updatedVisitor.getLocation()));
+                setCurrentCity(updatedVisitor, findCurrentCity(updatedVisitor.getLocation()));
             }
             return (Visitor) updatedVisitor.clone();
         }
@@ -622,10 +892,28 @@ public class CityModelService implements Subject {
      */
     public IotDevice updateIotDevice(IotDevice iotDevice) throws CityModelServiceException {
         // First check if the Iot Device exists
-        if (!iotDeviceMap.containsKey(iotDevice.getUuid())) {
+        IotDevice storedDevice = iotDeviceMap.get(iotDevice.getUuid());
+        if (storedDevice == null) {
             throw new CityModelServiceException("update IoT Device", "The following IoT Device does not exist " + iotDevice.getUuid());
         }
 
+        // Updates to the same device are applied one at a time
+        synchronized (storedDevice) {
+            IotDevice updatedDevice = applyUpdate(iotDevice);
+
+            // Publish the snapshot of the updated device
+            deviceViewMap.put(storedDevice.getUuid(), new DeviceView(storedDevice));
+            return updatedDevice;
+        }
+    }
+
+    /**
+     * Apply the updated values of an IotDevice to the device in the iotDeviceMap.
+     * @param iotDevice The IotDevice object with updated values.
+     * @return          A copy of the updated IotDevice object.
+     */
+    private IotDevice applyUpdate(IotDevice iotDevice) {
+
         // Check to see what kind of IoT Device we are creating
         if (iotDevice instanceof StreetLight) {
 
@@ -672,7 +960,7 @@ public class CityModelService implements Subject {
             if (clonedVehicle.getLocation() != null) {
                 updatedVehicle.setLocation((Location) clonedVehicle.getLocation().clone());
                 // Update the current city
-                updatedVehicle.setCurrentCity(findCurrentCity(updatedVehicle.getLocation()));
+                setCurrentCity(updatedVehicle, findCurrentCity(updatedVehicle.getLocation()));
             }
             // Check if enabled has changed
             if (clonedVehicle.getEnabled() != null) {
@@ -723,7 +1011,9 @@ public class CityModelService implements Subject {
             if (clonedRobot.getLocation() != null) {
                 updatedRobot.setLocation((Location) clonedRobot.getLocation().clone());
                 // If we update the location of the Robot then we need to find it's current city
-                updatedRobot.setCurrentCity(findCurrentCity(updatedRobot.getLocation()));
+                setCurrentCity(updatedRobot, findCurrentCity(updatedRobot.getLocation()));
+                // Move the robot in the spatial index
+                indexRobot(updatedRobot);
             }
             // Check if enabled has changed
             if (clonedRobot.getEnabled() != null) {
@@ -769,13 +1059,28 @@ public class CityModelService implements Subject {
         // Clone city
         City clonedCity = (City) city.clone();
 
-        // Check if city exists
-        if (!cityMap.containsKey(clonedCity.getUuid())) {
+        // Get the city to update, checking that it exists
+        City updatedCity = cityMap.get(clonedCity.getUuid());
+        if (updatedCity == null) {
             throw new CityModelServiceException("update city", "No city exists with city ID of " + clonedCity.getUuid());
         }
 
-        // Get the city to update
-        City updatedCity = cityMap.get(clonedCity.getUuid());
+        // Updates to the same city are applied one at a time
+        synchronized (updatedCity) {
+            applyUpdate(updatedCity, clonedCity);
+
+            // Return updated city
+            return (City) updatedCity.clone();
+        }
+    }
+
+    /**
+     * Apply the updated values of a City to the city in the cityMap, then find the current
+     * city of every person and IoT device again.
+     * @param updatedCity The city in the cityMap, its lock must be held.
+     * @param clonedCity  The City object with updated values.
+     */
+    private void applyUpdate(City updatedCity, City clonedCity) {
 
         // Update name
         if (clonedCity.getName() != null) {
@@ -794,16 +1099,31 @@ public class CityModelService implements Subject {
             updatedCity.setLocation(clonedCity.getLocation());
         }
 
+        // Index the city again with its new location and radius, and publish its snapshot
+        cityIndex.add(updatedCity);
+        cityViewMap.put(updatedCity.getUuid(), new CityView(updatedCity));
+
         // If either radius or location have changed then we need to find the current cities for all IoT devices and persons
         for (Map.Entry<String, Person> entry : personMap.entrySet()) {
-            entry.getValue().setCurrentCity(findCurrentCity(entry.getValue().getLocation()));
+            Person person = entry.getValue();
+            synchronized (person) {
+                String cityId = findCurrentCity(person.getLocation());
+                if (!Objects.equals(cityId, person.getCurrentCity())) {
+                    setCurrentCity(person, cityId);
+                    personViewMap.put(person.getUuid(), new PersonView(person));
+                }
+            }
         }
         for (Map.Entry<String, IotDevice> entry : iotDeviceMap.entrySet()) {
-            entry.getValue().setCurrentCity(findCurrentCity(entry.getValue().getLocation()));
+            IotDevice iotDevice = entry.getValue();
+            synchronized (iotDevice) {
+                String cityId = findCurrentCity(iotDevice.getLocation());
+                if (!Objects.equals(cityId, iotDevice.getCurrentCity())) {
+                    setCurrentCity(iotDevice, cityId);
+                    deviceViewMap.put(iotDevice.getUuid(), new DeviceView(iotDevice));
+                }
+            }
         }
-
-        // Return updated city
-        return (City) updatedCity.clone();
     }
 
     /**
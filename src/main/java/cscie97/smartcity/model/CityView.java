@@ -0,0 +1,78 @@
+package cscie97.smartcity.model;
+
+/**
+ * Author: Stephen Sheldon
+ *
+ * Read-only snapshot of a city, returned by CityModelService.getCityView() without copying.
+ * A snapshot never changes, updates to the city are made with CityModelService.updateCity()
+ * and show up in the next snapshot.
+ **/
+public final class CityView {
+
+    /**
+     * The globally unique identifier of the City.
+     */
+    private final String uuid;
+
+    /**
+     * The name of the city.
+     */
+    private final String name;
+
+    /**
+     * The blockchain account associated with the city.
+     */
+    private final String blockchainAccount;
+
+    /**
+     * The latitude in degrees of the city.
+     */
+    private final double latitude;
+
+    /**
+     * The longitude in degrees of the city.
+     */
+    private final double longitude;
+
+    /**
+     * The radius in kilometers of the city.
+     */
+    private final Double radius;
+
+    /**
+     * Constructor method, copies the values of a city.
+     * @param city The city to take a snapshot of.
+     */
+    CityView(City city) {
+        this.uuid = city.getUuid();
+        this.name = city.getName();
+        this.blockchainAccount = city.getBlockchainAccount();
+        this.latitude = city.getLocation().getLatitude();
+        this.longitude = city.getLocation().getLongitude();
+        this.radius = city.getRadius();
+    }
+
+    public String getUuid() {
+        return uuid;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getBlockchainAccount() {
+        return blockchainAccount;
+    }
+
+    public double getLatitude() {
+        return latitude;
+    }
+
+    public double getLongitude() {
+        return longitude;
+    }
+
+    public Double getRadius() {
+        return radius;
+    }
+}
@@ -6,12 +6,16 @@ import cscie97.smartcity.ledger.Account;
 import cscie97.smartcity.ledger.LedgerService;
 import cscie97.smartcity.ledger.LedgerException;
 import cscie97.smartcity.ledger.Transaction;
+import cscie97.smartcity.ledger.TransactionResult;
 
 import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.IOException;
 import java.io.LineNumberReader;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.logging.Level;
@@ -675,7 +679,40 @@ public class CommandProcessor {
                     ledgerService.processTransaction(transaction);
                     break;
                 case "get-account-balance":
-                    LoggerUtil.log(Level.INFO, ledgerService.getAccountBalance(command[1]).toString(), false);
+                    // Optionally the balance as of an earlier block, or with the uncommitted transactions
+                    int blockIndex = findIndex(command, "block");
+                    if (blockIndex > 0 && blockIndex + 1 < command.length) {
+                        LoggerUtil.log(Level.INFO, ledgerService.getAccountBalance(command[1], Integer.valueOf(command[blockIndex + 1])).toString(), false);
+                    } else if (findIndex(command, "pending") > 0) {
+                        LoggerUtil.log(Level.INFO, ledgerService.getPendingAccountBalance(command[1]).toString(), false);
+                    } else {
+                        LoggerUtil.log(Level.INFO, ledgerService.getAccountBalance(command[1]).toString(), false);
+                    }
+                    break;
+                case "get-account-transactions":
+                    // get-account-transactions <address> [from <block>] [limit <count>]
+                    LoggerUtil.log(Level.INFO, ledgerService.getAccountTransactions(command[1],
+                            findInt(command, "from", 1), findInt(command, "limit", 100)).toString(), false);
+                    break;
+                case "stream-transactions":
+                    // stream-transactions [from <block>] [to <block>], printed one block at a time
+                    ledgerService.streamTransactions(findInt(command, "from", 1), findInt(command, "to", Integer.MAX_VALUE))
+                            .forEachOrdered(streamed -> LoggerUtil.log(Level.INFO, streamed.toString(), false));
+                    break;
+                case "get-transaction-totals":
+                    // get-transaction-totals [from <block>] [to <block>], summed over every core
+                    long[] totals = ledgerService.streamTransactions(findInt(command, "from", 1), findInt(command, "to", Integer.MAX_VALUE))
+                            .parallel()
+                            .collect(() -> new long[3], (sum, streamed) -> {
+                                sum[0]++;
+                                sum[1] += streamed.getAmount();
+                                sum[2] += streamed.getFee();
+                            }, (left, right) -> {
+                                for (int i = 0; i < left.length; i++) {
+                                    left[i] += right[i];
+                                }
+                            });
+                    LoggerUtil.log(Level.INFO, "transactions=" + totals[0] + ", amount=" + totals[1] + ", fees=" + totals[2], false);
                     break;
                 case "get-account-balances":
                     for (Map.Entry<String, Account> entry : ledgerService.getAccountBalances().entrySet()) {
@@ -694,9 +731,15 @@ public class CommandProcessor {
                 case "in-order":
                     ledgerService.getBlock(1).getMerkleTree().inOrder();
                     break;
+                case "get-mempool-metrics":
+                    LoggerUtil.log(Level.INFO, ledgerService.getMempoolMetrics().toString(), false);
+                    break;
             }
         } catch (LedgerException e) {
             throw new CommandProcessorException(e.getAction(), e.getReason(), lineNumber);
+        } catch (NumberFormatException e) {
+            // Reported like a ledger error so the rest of the script still runs
+            throw new CommandProcessorException("The command has a number that isn't valid: " + e.getMessage(), command[0], lineNumber);
         }
     }
 
@@ -723,6 +766,19 @@ public class CommandProcessor {
         return -1;
     }
 
+    /**
+     * Helper method to read the optional number following a word in command.
+     * @param  command      The command to search.
+     * @param  word         The word the number follows.
+     * @param  defaultValue The value to use if the word isn't in the command.
+     * @return the number following word, or defaultValue
+     * @throws NumberFormatException If the word is followed by something other than a number.
+     */
+    private static int findInt(String[] command, String word, int defaultValue) {
+        int index = findIndex(command, word);
+        return index > 0 && index + 1 < command.length ? Integer.parseInt(command[index + 1]) : defaultValue;
+    }
+
     /**
      * Process a set of commands provided within the given command files.
      * @param ledgerFile The ledger file script to be processed.
@@ -734,7 +790,7 @@ public class CommandProcessor {
         try {
             ledgerService = LedgerService.getInstance();
         } catch (LedgerException le) {
-            LoggerUtil.log(Level.SEVERE, "Received a Ledger Exception during ledger initialization.", false);
+            LoggerUtil.log(Level.SEVERE, "Received a Ledger Exception during ledger initialization: " + le.getAction(), false);
         }
 
         // Initialize Model Service
@@ -752,6 +808,15 @@ public class CommandProcessor {
         processLedgerFile(ledgerFile);
         // Process Model script
         processModelFile(modelFile);
+
+        // Commit the closed blocks before the process exits
+        if (ledgerService != null) {
+            try {
+                ledgerService.close();
+            } catch (LedgerException le) {
+                LoggerUtil.log(Level.SEVERE, "Received a Ledger Exception while closing the ledger: " + le.getAction(), false);
+            }
+        }
     }
 
     /**
@@ -803,6 +868,10 @@ public class CommandProcessor {
         LineNumberReader lineNumberReader;
         String[] words;
 
+        // Consecutive process-transaction commands are submitted to the ledger as one batch
+        List<String[]> batch = new ArrayList<>();
+        List<Integer> batchLineNumbers = new ArrayList<>();
+
         try {
             lineNumberReader = new LineNumberReader(new FileReader(ledgerFile));
 
@@ -819,17 +888,83 @@ public class CommandProcessor {
 
                 // Check if this is a comment in the script file
                 try {
-                    if (!words[0].equals("#")) {
+                    if (words[0].equalsIgnoreCase("process-transaction")) {
+                        batch.add(words);
+                        batchLineNumbers.add(lineNumberReader.getLineNumber());
+                    } else if (!words[0].equals("#")) {
+                        processTransactionBatch(batch, batchLineNumbers);
                         processLedgerCommands(words, lineNumberReader.getLineNumber());
                     }
                 } catch (CommandProcessorException c) {
                     LoggerUtil.log(Level.SEVERE, c.getCommand() + " " + c.getReason() + " Line number: " + c.getLineNumber(), false);
                 }
             }
+            processTransactionBatch(batch, batchLineNumbers);
         } catch (FileNotFoundException f) {
             LoggerUtil.log(Level.SEVERE, "File not found exception.", false);
         } catch (IOException i) {
             LoggerUtil.log(Level.SEVERE, "IO exception", false);
         }
     }
+
+    /**
+     * Process a batch of process-transaction commands with a single call to the ledger. Errors are
+     * reported in the order of the commands, the same as if they were processed one at a time, and
+     * a command that can't be parsed or is rejected doesn't stop the rest of the batch.
+     * @param commands    The process-transaction commands, cleared once processed.
+     * @param lineNumbers The line number of each command.
+     */
+    private static void processTransactionBatch(List<String[]> commands, List<Integer> lineNumbers) {
+
+        if (commands.isEmpty()) {
+            return;
+        }
+
+        List<Transaction> transactions = new ArrayList<>(commands.size());
+        LedgerException[] errors = new LedgerException[commands.size()];
+
+        // Create the transactions, keeping the error of any command that isn't a valid transaction
+        for (int i = 0; i < commands.size(); i++) {
+            String[] command = commands.get(i);
+            try {
+                if (ledgerService == null) {
+                    throw new LedgerException("process-transaction", "No ledgerService has been created.");
+                }
+                transactions.add(ledgerService.createTransaction(command[1], Integer.valueOf(command[3]), Integer.valueOf(command[5]), command[7], command[9], command[11]));
+            } catch (LedgerException e) {
+                errors[i] = e;
+            } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+                errors[i] = new LedgerException("process-transaction", "The command isn't a valid transaction: " + e.getMessage());
+            }
+        }
+
+        try {
+            Iterator<TransactionResult> results = Collections.emptyIterator();
+            LedgerException batchError = null;
+
+            if (!transactions.isEmpty()) {
+                try {
+                    results = ledgerService.processTransactions(transactions).iterator();
+                } catch (LedgerException e) {
+                    // Nothing in the batch was processed, so every transaction gets the error
+                    batchError = e;
+                }
+            }
+
+            for (int i = 0; i < commands.size(); i++) {
+                LedgerException error = errors[i] != null ? errors[i] : batchError;
+                if (error != null) {
+                    LoggerUtil.log(Level.SEVERE, error.getAction() + " " + error.getReason() + " Line number: " + lineNumbers.get(i), false);
+                    continue;
+                }
+                TransactionResult result = results.next();
+                if (!result.isAccepted()) {
+                    LoggerUtil.log(Level.SEVERE, result.getReason() + " process-transaction Line number: " + lineNumbers.get(i), false);
+                }
+            }
+        } finally {
+            commands.clear();
+            lineNumbers.clear();
+        }
+    }
 }
@@ -0,0 +1,88 @@
+package cscie97.smartcity.model;
+
+/**
+ * Author: Stephen Sheldon
+ *
+ * Read-only snapshot of an IoT device, returned by CityModelService.getDeviceView() and
+ * getDeviceViews() without copying. A snapshot never changes, updates to the device are made
+ * with CityModelService.updateIotDevice() and show up in the next snapshot.
+ **/
+public final class DeviceView {
+
+    /**
+     * The globally unique identifier of the IoT Device.
+     */
+    private final String uuid;
+
+    /**
+     * The current city that the device is in, null if it is in no city.
+     */
+    private final String currentCity;
+
+    /**
+     * The current latitude in degrees of the device.
+     */
+    private final double latitude;
+
+    /**
+     * The current longitude in degrees of the device.
+     */
+    private final double longitude;
+
+    /**
+     * The current status of the device.
+     */
+    private final Status currentStatus;
+
+    /**
+     * Whether the device is currently enabled or disabled.
+     */
+    private final Enabled enabled;
+
+    /**
+     * The kind of device, the simple class name such as Robot or Vehicle.
+     */
+    private final String deviceType;
+
+    /**
+     * Constructor method, copies the values of a device.
+     * @param iotDevice The device to take a snapshot of.
+     */
+    DeviceView(IotDevice iotDevice) {
+        this.uuid = iotDevice.getUuid();
+        this.currentCity = iotDevice.getCurrentCity();
+        this.latitude = iotDevice.getLocation() == null ? Double.NaN : iotDevice.getLocation().getLatitude();
+        this.longitude = iotDevice.getLocation() == null ? Double.NaN : iotDevice.getLocation().getLongitude();
+        this.currentStatus = iotDevice.getCurrentStatus();
+        this.enabled = iotDevice.getEnabled();
+        this.deviceType = iotDevice.getClass().getSimpleName();
+    }
+
+    public String getUuid() {
+        return uuid;
+    }
+
+    public String getCurrentCity() {
+        return currentCity;
+    }
+
+    public double getLatitude() {
+        return latitude;
+    }
+
+    public double getLongitude() {
+        return longitude;
+    }
+
+    public Status getCurrentStatus() {
+        return currentStatus;
+    }
+
+    public Enabled getEnabled() {
+        return enabled;
+    }
+
+    public String getDeviceType() {
+        return deviceType;
+    }
+}
@@ -0,0 +1,88 @@
+package cscie97.smartcity.model;
+
+/**
+ * Author: Stephen Sheldon
+ *
+ * Read-only snapshot of a resident or visitor, returned by CityModelService.getPersonView()
+ * without copying. A snapshot never changes, updates to the person are made with
+ * CityModelService.updatePerson() and show up in the next snapshot.
+ **/
+public final class PersonView {
+
+    /**
+     * The globally unique identifier of the person.
+     */
+    private final String uuid;
+
+    /**
+     * The biometric ID of the person.
+     */
+    private final String biometricId;
+
+    /**
+     * The current city that the person is in, null if they are in no city.
+     */
+    private final String currentCity;
+
+    /**
+     * The current latitude in degrees of the person.
+     */
+    private final double latitude;
+
+    /**
+     * The current longitude in degrees of the person.
+     */
+    private final double longitude;
+
+    /**
+     * True if the person is a resident, false if they are a visitor.
+     */
+    private final boolean resident;
+
+    /**
+     * The blockchain account address of a resident, null for a visitor.
+     */
+    private final String blockchainAccountAddress;
+
+    /**
+     * Constructor method, copies the values of a person.
+     * @param person The resident or visitor to take a snapshot of.
+     */
+    PersonView(Person person) {
+        this.uuid = person.getUuid();
+        this.biometricId = person.getBiometricId();
+        this.currentCity = person.getCurrentCity();
+        this.latitude = person.getLocation() == null ? Double.NaN : person.getLocation().getLatitude();
+        this.longitude = person.getLocation() == null ? Double.NaN : person.getLocation().getLongitude();
+        this.resident = person instanceof Resident;
+        this.blockchainAccountAddress = resident ? ((Resident) person).getBlockchainAccountAddress() : null;
+    }
+
+    public String getUuid() {
+        return uuid;
+    }
+
+    public String getBiometricId() {
+        return biometricId;
+    }
+
+    public String getCurrentCity() {
+        return currentCity;
+    }
+
+    public double getLatitude() {
+        return latitude;
+    }
+
+    public double getLongitude() {
+        return longitude;
+    }
+
+    public boolean isResident() {
+        return resident;
+    }
+
+    public String getBlockchainAccountAddress() {
+        return blockchainAccountAddress;
+    }
+}
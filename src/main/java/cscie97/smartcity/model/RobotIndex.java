@@ -0,0 +1,327 @@
+package cscie97.smartcity.model;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.function.Predicate;
+
+/**
+ * Author: Stephen Sheldon
+ *
+ * Spatial index over the locations of the robots of one city. The globe is split into a grid of
+ * cells of CELL_DEGREES by CELL_DEGREES and each robot is listed in the cell of its location,
+ * moving to another cell when its location is updated. The nearest robots to a location are
+ * found by visiting the cells in rings around the location's cell, keeping the k nearest robots
+ * seen so far, until no robot in the next ring can be nearer than the k-th one.
+ *
+ * The index of a city is locked while a robot is moved or the nearest robots are found, so
+ * robots of different cities are moved and searched side by side.
+ **/
+class RobotIndex {
+
+    /**
+     * Width and height of a cell in degrees, about 5.5 kilometers north to south.
+     */
+    private static final double CELL_DEGREES = 0.05;
+
+    private static final int ROWS = (int) (180 / CELL_DEGREES);
+
+    private static final int COLUMNS = (int) (360 / CELL_DEGREES);
+
+    /**
+     * Radius of the earth in kilometers, the same as CityModelService.distance().
+     */
+    private static final double EARTH_RADIUS = 6371;
+
+    /**
+     * Number of robots up to which measuring the distance to each robot is faster than visiting cells.
+     */
+    private static final int SCAN_SIZE = 32;
+
+    /**
+     * Position of each robot, by device ID.
+     */
+    private final Map<String, Position> positions;
+
+    /**
+     * Robots listed in each cell, by cell number.
+     */
+    private final Map<Integer, List<Position>> cells;
+
+    /**
+     * Robots without a location on the grid, measured for every query.
+     */
+    private final List<Position> offGrid;
+
+    /**
+     * Constructor method.
+     */
+    RobotIndex() {
+        positions = new HashMap<>();
+        cells = new HashMap<>();
+        offGrid = new ArrayList<>();
+    }
+
+    /**
+     * Add a robot, or move it to its current location if it was added before.
+     * @param robot The robot, its location is copied.
+     */
+    synchronized void add(Robot robot) {
+        Position position = positions.get(robot.getUuid());
+        if (position != null) {
+            unlist(position);
+        }
+        position = new Position(robot);
+        positions.put(robot.getUuid(), position);
+
+        if (position.cell < 0) {
+            offGrid.add(position);
+        } else {
+            cells.computeIfAbsent(position.cell, number -> new ArrayList<>()).add(position);
+        }
+    }
+
+    private void unlist(Position position) {
+        if (position.cell < 0) {
+            offGrid.remove(position);
+            return;
+        }
+        List<Position> listed = cells.get(position.cell);
+        listed.remove(position);
+        if (listed.isEmpty()) {
+            cells.remove(position.cell);
+        }
+    }
+
+    /**
+     * Returns the robots nearest to a location, nearest first. Robots at the same distance are
+     * ordered by device ID.
+     * @param latitude  The latitude in degrees.
+     * @param longitude The longitude in degrees.
+     * @param k         The most robots to return.
+     * @param filter    Only robots the filter accepts are returned, null to accept every robot.
+     *                  The filter is given the indexed robots and must not change them.
+     * @return          The nearest robots.
+     */
+    synchronized List<Robot> nearest(double latitude, double longitude, int k, Predicate<Robot> filter) {
+        Nearest nearest = new Nearest(latitude, longitude, k, filter);
+        if (k <= 0) {
+            return nearest.toList();
+        }
+
+        int row = row(latitude);
+        int column = column(longitude);
+
+        // Few robots or a location off the grid, measure every robot
+        if (positions.size() <= SCAN_SIZE || row < 0 || column < 0) {
+            for (Position position : positions.values()) {
+                nearest.offer(position);
+            }
+            return nearest.toList();
+        }
+
+        for (Position position : offGrid) {
+            nearest.offer(position);
+        }
+
+        int remaining = positions.size() - offGrid.size();
+        for (int ring = 0; remaining > 0; ring++) {
+
+            // Stop once the nearest a robot in this ring or beyond can be is past the k-th robot
+            if (nearest.isFull() && lowerBound(latitude, ring) > nearest.farthest()) {
+                break;
+            }
+
+            // Once a ring has more cells than there are robot cells, measure the rest of the robots
+            if (ring > ROWS || 2 * ring + 1 > COLUMNS || 8L * ring > cells.size()) {
+                for (Map.Entry<Integer, List<Position>> entry : cells.entrySet()) {
+                    if (ringOf(entry.getKey(), row, column) >= ring) {
+                        for (Position position : entry.getValue()) {
+                            nearest.offer(position);
+                        }
+                    }
+                }
+                break;
+            }
+
+            for (int r = row - ring; r <= row + ring; r++) {
+                if (r < 0 || r >= ROWS) {
+                    continue;
+                }
+                int step = r == row - ring || r == row + ring ? 1 : Math.max(1, 2 * ring);
+                for (int c = column - ring; c <= column + ring; c += step) {
+                    List<Position> listed = cells.get(cellOf(r, Math.floorMod(c, COLUMNS)));
+                    if (listed != null) {
+                        for (Position position : listed) {
+                            nearest.offer(position);
+                        }
+                        remaining -= listed.size();
+                    }
+                }
+            }
+        }
+        return nearest.toList();
+    }
+
+    /**
+     * Returns a distance in kilometers that no location in a cell the given number of rings from
+     * the cell of a location at the given latitude is nearer than. Such a cell is ring - 1 cells
+     * of latitude or of longitude away, and a longitude difference of y degrees is at least
+     * asin(cos(latitude) * sin(y)) of arc away.
+     */
+    private static double lowerBound(double latitude, int ring) {
+        if (ring < 2) {
+            return 0;
+        }
+        double degrees = (ring - 1) * CELL_DEGREES;
+        double byLatitude = Math.toRadians(degrees);
+        double byLongitude = Math.asin(Math.cos(Math.toRadians(latitude)) * Math.sin(Math.toRadians(Math.min(degrees, 90))));
+
+        // Leave room for rounding in the distance calculation
+        return EARTH_RADIUS * Math.min(byLatitude, byLongitude) * (1 - 1e-9);
+    }
+
+    /**
+     * Returns the row of a latitude, or -1 if the latitude is off the grid.
+     */
+    private static int row(double latitude) {
+        if (!(latitude >= -90 && latitude <= 90)) {
+            return -1;
+        }
+        return Math.min(ROWS - 1, (int) Math.floor((latitude + 90) / CELL_DEGREES));
+    }
+
+    /**
+     * Returns the column of a longitude, or -1 if the longitude isn't a number.
+     */
+    private static int column(double longitude) {
+        if (Double.isNaN(longitude) || Double.isInfinite(longitude)) {
+            return -1;
+        }
+        return Math.floorMod((long) Math.floor((longitude + 180) / CELL_DEGREES), COLUMNS);
+    }
+
+    private static int cellOf(int row, int column) {
+        return row * COLUMNS + column;
+    }
+
+    /**
+     * Returns the number of rings between a cell and the cell at a row and column.
+     */
+    private static int ringOf(int cell, int row, int column) {
+        int columns = Math.abs(cell % COLUMNS - column);
+        return Math.max(Math.abs(cell / COLUMNS - row), Math.min(columns, COLUMNS - columns));
+    }
+
+    /**
+     * Location of a robot when it was added, with the cell it is listed in.
+     */
+    private static final class Position {
+
+        private final Robot robot;
+
+        private final double latitude;
+
+        private final double longitude;
+
+        /**
+         * Cell number, -1 if the location is off the grid.
+         */
+        private final int cell;
+
+        Position(Robot robot) {
+            this.robot = robot;
+            Location location = robot.getLocation();
+            latitude = location == null ? Double.NaN : location.getLatitude();
+            longitude = location == null ? Double.NaN : location.getLongitude();
+
+            int row = row(latitude);
+            int column = column(longitude);
+            cell = row < 0 || column < 0 ? -1 : cellOf(row, column);
+        }
+    }
+
+    /**
+     * The k nearest robots offered so far, in a heap with the farthest on top.
+     */
+    private static final class Nearest {
+
+        private final double latitude;
+
+        private final double longitude;
+
+        private final int k;
+
+        private final Predicate<Robot> filter;
+
+        private final PriorityQueue<Candidate> heap;
+
+        Nearest(double latitude, double longitude, int k, Predicate<Robot> filter) {
+            this.latitude = latitude;
+            this.longitude = longitude;
+            this.k = k;
+            this.filter = filter;
+            this.heap = new PriorityQueue<>((a, b) -> b.compareTo(a));
+        }
+
+        void offer(Position position) {
+            if (filter != null && !filter.test(position.robot)) {
+                return;
+            }
+            Candidate candidate = new Candidate(position.robot,
+                    CityModelService.distance(latitude, position.latitude, longitude, position.longitude, 0, 0));
+            if (heap.size() < k) {
+                heap.add(candidate);
+            } else if (candidate.compareTo(heap.peek()) < 0) {
+                heap.poll();
+                heap.add(candidate);
+            }
+        }
+
+        boolean isFull() {
+            return heap.size() >= k;
+        }
+
+        double farthest() {
+            return heap.peek().distance;
+        }
+
+        /**
+         * Returns the robots, nearest first.
+         */
+        List<Robot> toList() {
+            Robot[] robots = new Robot[heap.size()];
+            for (int i = robots.length - 1; i >= 0; i--) {
+                robots[i] = heap.poll().robot;
+            }
+            List<Robot> list = new ArrayList<>(robots.length);
+            for (Robot robot : robots) {
+                list.add(robot);
+            }
+            return list;
+        }
+    }
+
+    /**
+     * A robot and its distance, ordered by distance and then by device ID.
+     */
+    private static final class Candidate implements Comparable<Candidate> {
+
+        private final Robot robot;
+
+        private final double distance;
+
+        Candidate(Robot robot, double distance) {
+            this.robot = robot;
+            this.distance = distance;
+        }
+
+        @Override
+        public int compareTo(Candidate other) {
+            int order = Double.compare(distance, other.distance);
+            return order != 0 ? order : robot.getUuid().compareTo(other.robot.getUuid());
+        }
+    }
+}
@@ -0,0 +1,484 @@
+package cscie97.smartcity.test;
+
+import cscie97.smartcity.ledger.Account;
+import cscie97.smartcity.ledger.LedgerException;
+import cscie97.smartcity.ledger.LedgerService;
+import cscie97.smartcity.ledger.MerkleTree;
+import cscie97.smartcity.ledger.StripedLocks;
+import cscie97.smartcity.ledger.Transaction;
+import cscie97.smartcity.ledger.TransactionResult;
+import cscie97.smartcity.ledger.ValidationResult;
+import cscie97.smartcity.ledger.WriteAheadLog;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Author: Stephen Sheldon
+ *
+ * Simple benchmark driver for the Ledger Service. Run with the name of the benchmark
+ * to run as the first argument.
+ **/
+public class LedgerBenchmark {
+
+    /**
+     * Number of accounts created for the benchmarks.
+     */
+    private static final int ACCOUNTS = 100;
+
+    public static void main(String[] args) throws LedgerException {
+
+        String benchmark = args.length > 0 ? args[0] : "seal";
+
+        switch (benchmark) {
+            case "seal":
+                sealBlocks(args.length > 1 ? Integer.parseInt(args[1]) : 100000);
+                break;
+            case "validate":
+                validateBlocks(args.length > 1 ? Integer.parseInt(args[1]) : 100000);
+                break;
+            case "wal":
+                writeAheadLog(args.length > 1 ? Integer.parseInt(args[1]) : 8, args.length > 2 ? Long.parseLong(args[2]) : 0);
+                break;
+            case "contention":
+                contention(args.length > 1 ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors());
+                break;
+            case "stripes":
+                stripes();
+                break;
+            case "merkle":
+                merkleTrees(args.length > 1 ? Integer.parseInt(args[1]) : 1 << 20);
+                break;
+            case "batch":
+                batches(args.length > 1 ? Integer.parseInt(args[1]) : 100000, args.length > 2 ? Integer.parseInt(args[2]) : 1000);
+                break;
+            default:
+                System.out.println("Unknown benchmark " + benchmark);
+        }
+    }
+
+    /**
+     * Show that account locks on different stripes don't block each other while locks on the
+     * same stripe do. One thread holds the stripes of a payer and receiver, a second thread locks
+     * a pair of accounts on other stripes and a third locks the held payer with another account.
+     * Unlike the contention benchmark the result doesn't depend on the number of cores.
+     */
+    private static void stripes() {
+        StripedLocks locks = new StripedLocks(256);
+        String[] held = {"payer-0", "receiver-0"};
+        String[] other = null;
+        for (int i = 1; other == null; i++) {
+            String payer = "payer-" + i;
+            String receiver = "receiver-" + i;
+            if (!sharesStripe(locks, held, payer) && !sharesStripe(locks, held, receiver)) {
+                other = new String[] {payer, receiver};
+            }
+        }
+
+        CountDownLatch locked = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        Thread holder = new Thread(() -> {
+            int[] stripes = locks.lock(held);
+            locked.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                locks.unlock(stripes);
+            }
+        });
+        holder.start();
+
+        try {
+            locked.await();
+
+            long[] lockedAt = new long[2];
+            String[] differentPair = other;
+            Thread different = new Thread(() -> {
+                locks.unlock(locks.lock(differentPair));
+                lockedAt[0] = System.nanoTime();
+            });
+            long start = System.nanoTime();
+            different.start();
+            different.join(TimeUnit.SECONDS.toMillis(5));
+            if (different.isAlive()) {
+                System.out.printf("different stripes: %s and %s still waiting after 5 s%n",
+                        differentPair[0], differentPair[1]);
+            } else {
+                System.out.printf("different stripes: %s and %s locked in %.3f ms while %s and %s were held%n",
+                        differentPair[0], differentPair[1], (lockedAt[0] - start) / 1e6, held[0], held[1]);
+            }
+
+            String[] samePair = {held[0], other[1]};
+            Thread same = new Thread(() -> {
+                locks.unlock(locks.lock(samePair));
+                lockedAt[1] = System.nanoTime();
+            });
+            same.start();
+            same.join(200);
+            boolean waited = same.isAlive();
+            long released = System.nanoTime();
+            release.countDown();
+            same.join();
+            different.join();
+            holder.join();
+            System.out.printf("same stripe: %s and %s %s, locked %.3f ms after %s was released%n",
+                    samePair[0], samePair[1], waited ? "still waiting after 200 ms" : "did not wait",
+                    Math.max(0, lockedAt[1] - released) / 1e6, held[0]);
+            System.out.printf("lock waits: %d%n", locks.getWaitCount());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Returns whether an address is on the same stripe as any of the given addresses.
+     * @param locks     The striped locks.
+     * @param addresses The addresses to compare against.
+     * @param address   The address to check.
+     * @return          True if the address shares a stripe with one of the addresses.
+     */
+    private static boolean sharesStripe(StripedLocks locks, String[] addresses, String address) {
+        for (String other : addresses) {
+            if (locks.stripe(other) == locks.stripe(address)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Seal the given number of blocks and print how long every 10% of the blocks took to seal.
+     * Sealing time per block should stay flat no matter how long the chain gets.
+     * @param blocks The number of blocks to seal.
+     * @throws LedgerException
+     */
+    private static void sealBlocks(int blocks) throws LedgerException {
+
+        LedgerService ledgerService = LedgerService.getInstance();
+
+        for (int i = 0; i < ACCOUNTS; i++) {
+            ledgerService.createAccount("account-" + i);
+        }
+
+        int window = Math.max(blocks / 10, 1);
+        long transactionId = 0;
+        long start = System.nanoTime();
+
+        for (int block = 1; block <= blocks; block++) {
+            for (int i = 0; i < 10; i++) {
+                Transaction transaction = ledgerService.createTransaction(Long.toString(transactionId++), 1, 10, "benchmark",
+                        "master", "account-" + (transactionId % ACCOUNTS));
+                ledgerService.processTransaction(transaction);
+            }
+
+            if (block % window == 0) {
+                long elapsed = System.nanoTime() - start;
+                System.out.printf("blocks %d-%d: %.2f us/block%n", block - window + 1, block, elapsed / 1000.0 / window);
+                start = System.nanoTime();
+            }
+        }
+    }
+
+    /**
+     * Seal the given number of blocks, then validate the chain twice. The second validation
+     * continues from the checkpoint left by the first one.
+     * @param blocks The number of blocks to seal.
+     * @throws LedgerException
+     */
+    private static void validateBlocks(int blocks) throws LedgerException {
+
+        sealBlocks(blocks);
+
+        LedgerService ledgerService = LedgerService.getInstance();
+
+        for (int run = 1; run <= 2; run++) {
+            long start = System.nanoTime();
+            ValidationResult result = ledgerService.validate();
+            System.out.printf("validation %d: %.2f ms%n%s%n", run, (System.nanoTime() - start) / 1e6, result);
+        }
+    }
+
+    /**
+     * Append transactions to a write-ahead log from several threads, each waiting for its
+     * transaction to be synced, and print how many transactions shared each sync.
+     * @param threads      The number of submitting threads.
+     * @param windowMillis The durability window of the log.
+     * @throws LedgerException
+     */
+    private static void writeAheadLog(int threads, long windowMillis) throws LedgerException {
+
+        Path directory;
+        try {
+            directory = Files.createTempDirectory("benchmark-wal");
+        } catch (IOException e) {
+            throw new LedgerException("benchmark", "Unable to create a directory for the write-ahead log: " + e.getMessage());
+        }
+        WriteAheadLog log = new WriteAheadLog(directory.resolve("benchmark.wal"), 1, windowMillis);
+        Account payer = new Account("payer");
+        Account receiver = new Account("receiver");
+        int perThread = 2000;
+
+        Thread[] submitters = new Thread[threads];
+        long start = System.nanoTime();
+
+        for (int t = 0; t < threads; t++) {
+            int thread = t;
+            submitters[t] = new Thread(() -> {
+                try {
+                    for (int i = 0; i < perThread; i++) {
+                        Transaction transaction = new Transaction(thread + "-" + i, 1, 10, "benchmark", receiver, payer);
+                        log.awaitDurable(log.appendTransaction(transaction));
+                    }
+                } catch (LedgerException e) {
+                    System.out.println(e.getAction());
+                }
+            });
+            submitters[t].start();
+        }
+        for (Thread submitter : submitters) {
+            try {
+                submitter.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        long elapsed = System.nanoTime() - start;
+        log.close();
+
+        System.out.printf("%d threads, %d ms window: %.0f transactions/s, %d syncs, %.1f transactions per sync%n",
+                threads, windowMillis, threads * perThread / (elapsed / 1e9), log.getSyncCount(),
+                (double) threads * perThread / log.getSyncCount());
+
+        try {
+            try (DirectoryStream<Path> segments = Files.newDirectoryStream(directory)) {
+                for (Path segment : segments) {
+                    Files.delete(segment);
+                }
+            }
+            Files.delete(directory);
+        } catch (IOException e) {
+            System.out.println("Unable to delete " + directory);
+        }
+    }
+
+    /**
+     * Process payments from an increasing number of threads and print the throughput and how
+     * often a transaction waited for an account lock. Each thread first pays between its own two
+     * accounts, then every thread pays between the same two accounts.
+     * @param maxThreads The largest number of threads to run.
+     * @throws LedgerException
+     */
+    private static void contention(int maxThreads) throws LedgerException {
+
+        LedgerService ledgerService = LedgerService.getInstance();
+        int perThread = 20000;
+
+        // Give every thread its own pair of funded accounts
+        for (int t = 0; t < maxThreads; t++) {
+            for (String account : new String[] {"payer-" + t, "receiver-" + t}) {
+                ledgerService.createAccount(account);
+                ledgerService.processTransaction(ledgerService.createTransaction("fund-" + account, 100000000, 10,
+                        "benchmark", "master", account));
+            }
+        }
+
+        for (boolean shared : new boolean[] {false, true}) {
+            for (int threads = 1; threads <= maxThreads; threads *= 2) {
+                Thread[] submitters = new Thread[threads];
+                String round = (shared ? "shared-" : "own-") + threads + "-";
+                long waits = ledgerService.getAccountLockWaits();
+                long start = System.nanoTime();
+
+                for (int t = 0; t < threads; t++) {
+                    int account = shared ? 0 : t;
+                    String prefix = round + t + "-";
+                    submitters[t] = new Thread(() -> {
+                        try {
+                            for (int i = 0; i < perThread; i++) {
+                                String payer = (i % 2 == 0 ? "payer-" : "receiver-") + account;
+                                String receiver = (i % 2 == 0 ? "receiver-" : "payer-") + account;
+                                ledgerService.processTransaction(ledgerService.createTransaction(prefix + i, 1, 10,
+                                        "benchmark", payer, receiver));
+                            }
+                        } catch (LedgerException e) {
+                            System.out.println(e.getAction());
+                        }
+                    });
+                    submitters[t].start();
+                }
+                for (Thread submitter : submitters) {
+                    try {
+                        submitter.join();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+                long elapsed = System.nanoTime() - start;
+
+                System.out.printf("%s accounts, %d threads: %.0f transactions/s, %d lock waits%n", shared ? "shared" : "own",
+                        threads, threads * perThread / (elapsed / 1e9), ledgerService.getAccountLockWaits() - waits);
+            }
+        }
+
+        // Every payment moved money between accounts, the total must still be the same
+        ledgerService.validate();
+    }
+
+    /**
+     * Process the same number of payments one at a time and in batches and print the throughput
+     * of each. With a write-ahead log each batch only waits for one sync.
+     * @param transactions The number of payments processed each way.
+     * @param batchSize    The number of payments in each batch.
+     * @throws LedgerException
+     */
+    private static void batches(int transactions, int batchSize) throws LedgerException {
+
+        LedgerService ledgerService = LedgerService.getInstance();
+
+        for (int i = 0; i < ACCOUNTS; i++) {
+            ledgerService.createAccount("account-" + i);
+        }
+
+        long start = System.nanoTime();
+        for (int i = 0; i < transactions; i++) {
+            ledgerService.processTransaction(ledgerService.createTransaction("single-" + i, 1, 10, "benchmark",
+                    "master", "account-" + (i % ACCOUNTS)));
+        }
+        long elapsed = System.nanoTime() - start;
+        System.out.printf("one at a time: %.0f transactions/s%n", transactions / (elapsed / 1e9));
+
+        List<Transaction> batch = new ArrayList<>(batchSize);
+        int rejected = 0;
+
+        start = System.nanoTime();
+        for (int i = 0; i < transactions; i++) {
+            batch.add(ledgerService.createTransaction("batch-" + i, 1, 10, "benchmark",
+                    "master", "account-" + (i % ACCOUNTS)));
+
+            if (batch.size() == batchSize || i == transactions - 1) {
+                for (TransactionResult result : ledgerService.processTransactions(batch)) {
+                    if (!result.isAccepted()) {
+                        rejected++;
+                    }
+                }
+                batch.clear();
+            }
+        }
+        elapsed = System.nanoTime() - start;
+        System.out.printf("batches of %d: %.0f transactions/s, %d rejected%n", batchSize, transactions / (elapsed / 1e9), rejected);
+
+        ledgerService.validate();
+    }
+
+    /**
+     * Build Merkle trees of different sizes with the original node based tree and with MerkleTree,
+     * and print how many leaves per second each of them hashes.
+     * @param leaves The number of leaves hashed for each tree size.
+     */
+    private static void merkleTrees(int leaves) {
+
+        Random random = new Random(97);
+        List<byte[]> hashList = new ArrayList<>(leaves);
+        List<String> stringHashList = new ArrayList<>(leaves);
+
+        for (int i = 0; i < leaves; i++) {
+            byte[] hash = new byte[32];
+            random.nextBytes(hash);
+            hashList.add(hash);
+            stringHashList.add(new String(hash, StandardCharsets.UTF_8));
+        }
+
+        for (int treeSize : new int[] {10, 1000, leaves}) {
+            double original = 0;
+            double flat = 0;
+
+            // Warm up before timing
+            for (int round = 0; round < 2; round++) {
+                long start = System.nanoTime();
+                for (int i = 0; i + treeSize <= leaves; i += treeSize) {
+                    NodeMerkleTree.rootOf(stringHashList.subList(i, i + treeSize));
+                }
+                original = (leaves - leaves % treeSize) / ((System.nanoTime() - start) / 1e9) / 1e6;
+
+                start = System.nanoTime();
+                for (int i = 0; i + treeSize <= leaves; i += treeSize) {
+                    new MerkleTree(hashList.subList(i, i + treeSize));
+                }
+                flat = (leaves - leaves % treeSize) / ((System.nanoTime() - start) / 1e9) / 1e6;
+            }
+
+            System.out.printf("%d leaves per tree: %.2f -> %.2f million leaves/s%n", treeSize, original, flat);
+        }
+    }
+
+    /**
+     * The Merkle tree the ledger used before MerkleTree, kept as the baseline of the merkle benchmark.
+     * It builds a node for every hash level by level with recursion, looks up a new SHA-256 digest for
+     * every pair and keeps the hashes as strings.
+     */
+    private static final class NodeMerkleTree {
+
+        private final String hash;
+
+        private final NodeMerkleTree left;
+
+        private final NodeMerkleTree right;
+
+        private NodeMerkleTree(String hash, NodeMerkleTree left, NodeMerkleTree right) {
+            this.hash = hash;
+            this.left = left;
+            this.right = right;
+        }
+
+        /**
+         * Returns the root of the tree over at least two leaf hashes.
+         */
+        static NodeMerkleTree rootOf(List<String> leafHashes) {
+            List<NodeMerkleTree> level = new ArrayList<>(leafHashes.size());
+            for (String leafHash : leafHashes) {
+                level.add(new NodeMerkleTree(leafHash, null, null));
+            }
+            return build(level);
+        }
+
+        private static NodeMerkleTree build(List<NodeMerkleTree> level) {
+            if (level.size() == 2) {
+                return pair(level.get(0), level.get(1));
+            }
+
+            List<NodeMerkleTree> next = new ArrayList<>();
+            for (int i = 0; i + 1 < level.size(); i += 2) {
+                next.add(pair(level.get(i), level.get(i + 1)));
+            }
+
+            // The last node of an odd level moves up unchanged
+            if (level.size() % 2 == 1) {
+                next.add(level.get(level.size() - 1));
+            }
+            return build(next);
+        }
+
+        private static NodeMerkleTree pair(NodeMerkleTree left, NodeMerkleTree right) {
+            MessageDigest digest;
+            try {
+                digest = MessageDigest.getInstance("SHA-256");
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);
+            }
+            byte[] hash = digest.digest((left.hash + right.hash).getBytes(StandardCharsets.UTF_8));
+            return new NodeMerkleTree(new String(hash, StandardCharsets.UTF_8), left, right);
+        }
+    }
+}
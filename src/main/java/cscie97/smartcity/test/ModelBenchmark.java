@@ -0,0 +1,497 @@
+package cscie97.smartcity.test;
+
+import cscie97.smartcity.controller.ControllerService;
+import cscie97.smartcity.model.City;
+import cscie97.smartcity.model.CityModelService;
+import cscie97.smartcity.model.CityModelServiceException;
+import cscie97.smartcity.model.DeviceView;
+import cscie97.smartcity.model.Enabled;
+import cscie97.smartcity.model.InformationKiosk;
+import cscie97.smartcity.model.IotDevice;
+import cscie97.smartcity.model.Location;
+import cscie97.smartcity.model.Person;
+import cscie97.smartcity.model.PersonView;
+import cscie97.smartcity.model.Robot;
+import cscie97.smartcity.model.SensorEvent;
+import cscie97.smartcity.model.SensorType;
+import cscie97.smartcity.model.StreetLight;
+import cscie97.smartcity.model.Vehicle;
+import cscie97.smartcity.model.VehicleType;
+import cscie97.smartcity.model.Visitor;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.Random;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Author: Stephen Sheldon
+ *
+ * Simple benchmark driver for the City Model Service and the Controller Service. Run with the
+ * name of the benchmark to run as the first argument.
+ **/
+public class ModelBenchmark {
+
+    /**
+     * Number of cities created for the benchmarks.
+     */
+    private static final int CITIES = 10;
+
+    /**
+     * Logger of LoggerUtil, held here so it stays switched off while the benchmarks run.
+     */
+    private static final Logger LOGGER = Logger.getLogger("cscie97.smartcity.controller.LoggerUtil");
+
+    public static void main(String[] args) throws CityModelServiceException {
+
+        String benchmark = args.length > 0 ? args[0] : "events";
+
+        switch (benchmark) {
+            case "events":
+                events(args.length > 1 ? Integer.parseInt(args[1]) : 1000, args.length > 2 ? Integer.parseInt(args[2]) : 100000);
+                break;
+            case "reads":
+                reads(args.length > 1 ? Integer.parseInt(args[1]) : 1000, args.length > 2 ? Integer.parseInt(args[2]) : 100000);
+                break;
+            case "stress":
+                stress(args.length > 1 ? Integer.parseInt(args[1]) : 100, args.length > 2 ? Integer.parseInt(args[2]) : 2000,
+                        args.length > 3 ? Integer.parseInt(args[3]) : 2);
+                break;
+            default:
+                System.out.println("Unknown benchmark " + benchmark);
+        }
+    }
+
+    /**
+     * Create the cities, each with the given number of devices and a tenth as many visitors.
+     * @param modelService The model service to fill.
+     * @param devices      The number of devices in each city.
+     * @throws CityModelServiceException
+     */
+    private static void createCities(CityModelService modelService, int devices) throws CityModelServiceException {
+        Random random = new Random(11);
+
+        for (int c = 0; c < CITIES; c++) {
+            String cityId = "city_" + c;
+            double latitude = 40 + c;
+            double longitude = -80 + c;
+            modelService.createCity(new City(cityId, cityId, cityId + "-account", latitude, longitude, 30));
+
+            modelService.createIotDevice(new Vehicle(cityId + ":bus", latitude, longitude, Enabled.ON, VehicleType.BUS,
+                    "Driving", 20, 5));
+            modelService.createIotDevice(new InformationKiosk(cityId + ":kiosk", latitude, longitude, Enabled.ON, "none"));
+
+            for (int i = 0; i < devices; i++) {
+                double deviceLatitude = latitude + (random.nextDouble() - 0.5) * 0.3;
+                double deviceLongitude = longitude + (random.nextDouble() - 0.5) * 0.3;
+                if (i % 10 == 0) {
+                    modelService.createIotDevice(new Robot(cityId + ":robot_" + i, deviceLatitude, deviceLongitude, Enabled.ON, "idle"));
+                } else {
+                    modelService.createIotDevice(new StreetLight(cityId + ":light_" + i, deviceLatitude, deviceLongitude, Enabled.ON, 50));
+                }
+            }
+            for (int i = 0; i < Math.max(devices / 10, 1); i++) {
+                modelService.createPerson(new Visitor(cityId + "-visitor_" + i, "biometric",
+                        latitude + (random.nextDouble() - 0.5) * 0.3, longitude + (random.nextDouble() - 0.5) * 0.3));
+            }
+        }
+    }
+
+    /**
+     * Send a mix of sensor events through the City Model Service to the Controller Service and
+     * print the bytes allocated and the time taken per handled event. Logging is switched off
+     * while the events run so only the model and controller work is measured.
+     * @param devices The number of devices in each city.
+     * @param events  The number of events to send.
+     * @throws CityModelServiceException
+     */
+    private static void events(int devices, int events) throws CityModelServiceException {
+
+        CityModelService modelService = CityModelService.getInstance();
+        ControllerService controllerService = ControllerService.getInstance();
+        controllerService.setCityModelService(modelService);
+
+        createCities(modelService, devices);
+
+        LOGGER.setLevel(Level.OFF);
+        PrintStream console = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        Random random = new Random(13);
+        long allocated = 0;
+        long elapsed = 0;
+
+        // Warm up before measuring
+        for (int round = 0; round < 2; round++) {
+            long startBytes = threads.getCurrentThreadAllocatedBytes();
+            long start = System.nanoTime();
+
+            for (int i = 0; i < events; i++) {
+                modelService.createSensorEvent(nextEvent(random, devices));
+            }
+
+            elapsed = System.nanoTime() - start;
+            allocated = threads.getCurrentThreadAllocatedBytes() - startBytes;
+        }
+
+        System.setOut(console);
+        System.out.printf("%d cities of %d devices: %.0f bytes and %.1f us per event%n", CITIES, devices,
+                (double) allocated / events, elapsed / 1e3 / events);
+    }
+
+    /**
+     * Read devices, persons and cities through the getters that copy them and through the
+     * read-only views, and print the bytes allocated and the time taken per read.
+     * @param devices The number of devices in each city.
+     * @param reads   The number of reads of each kind.
+     * @throws CityModelServiceException
+     */
+    private static void reads(int devices, int reads) throws CityModelServiceException {
+
+        CityModelService modelService = CityModelService.getInstance();
+        createCities(modelService, devices);
+
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        String[] kinds = {"getIotDevice", "getDeviceView", "getPerson", "getPersonView", "getCity", "getCityView"};
+
+        // Build the IDs up front so only the reads allocate
+        String[] cityIds = new String[CITIES];
+        String[] personIds = new String[CITIES];
+        for (int c = 0; c < CITIES; c++) {
+            cityIds[c] = "city_" + c;
+            personIds[c] = cityIds[c] + "-visitor_0";
+        }
+
+        for (String kind : kinds) {
+            // getCity copies every device and person in the city, so it gets fewer reads
+            int count = kind.equals("getCity") ? Math.max(reads / devices, 10) : reads;
+            long allocated = 0;
+            long elapsed = 0;
+
+            // Warm up before measuring
+            for (int round = 0; round < 2; round++) {
+                long startBytes = threads.getCurrentThreadAllocatedBytes();
+                long start = System.nanoTime();
+
+                for (int i = 0; i < count; i++) {
+                    String cityId = cityIds[i % CITIES];
+                    switch (kind) {
+                        case "getIotDevice" -> modelService.getIotDevice(cityId, "kiosk");
+                        case "getDeviceView" -> modelService.getDeviceView(cityId, "kiosk");
+                        case "getPerson" -> modelService.getPerson(personIds[i % CITIES]);
+                        case "getPersonView" -> modelService.getPersonView(personIds[i % CITIES]);
+                        case "getCity" -> modelService.getCity(cityId);
+                        case "getCityView" -> modelService.getCityView(cityId);
+                    }
+                }
+
+                elapsed = System.nanoTime() - start;
+                allocated = threads.getCurrentThreadAllocatedBytes() - startBytes;
+            }
+
+            System.out.printf("%-14s %8.0f bytes and %8.2f us per read%n", kind, (double) allocated / count, elapsed / 1e3 / count);
+        }
+    }
+
+    /**
+     * Update the same robots, buses and visitors from many threads at once while other threads
+     * read them and send events through the Controller Service, then check that no update was
+     * lost. Each field of an entity is written by one thread, so once the threads are done every
+     * field must hold the value of the last round, the snapshots must match the entities, and the
+     * persons and devices must be listed in the city they are in. Prints the problems found.
+     * @param devices The number of devices in each city.
+     * @param rounds  The number of times each thread updates each of its entities.
+     * @param workers The number of threads that write each kind of field.
+     * @throws CityModelServiceException
+     */
+    private static void stress(int devices, int rounds, int workers) throws CityModelServiceException {
+
+        CityModelService modelService = CityModelService.getInstance();
+        ControllerService controllerService = ControllerService.getInstance();
+        controllerService.setCityModelService(modelService);
+
+        createCities(modelService, devices);
+
+        LOGGER.setLevel(Level.OFF);
+        PrintStream console = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+
+        List<String> robotIds = new ArrayList<>();
+        List<String> busIds = new ArrayList<>();
+        List<String> visitorIds = new ArrayList<>();
+        for (int c = 0; c < CITIES; c++) {
+            busIds.add("city_" + c + ":bus");
+            for (int i = 0; i < devices; i += 10) {
+                robotIds.add("city_" + c + ":robot_" + i);
+            }
+            for (int i = 0; i < Math.max(devices / 10, 1); i++) {
+                visitorIds.add("city_" + c + "-visitor_" + i);
+            }
+        }
+
+        Queue<String> problems = new ConcurrentLinkedQueue<>();
+        List<Thread> writers = new ArrayList<>();
+        CountDownLatch start = new CountDownLatch(1);
+
+        for (int w = 0; w < workers; w++) {
+            int worker = w;
+            writers.add(stressThread(start, problems, () -> {
+                for (int round = 0; round < rounds; round++) {
+                    for (int i = worker; i < robotIds.size(); i += workers) {
+                        Location location = place(i, round);
+                        modelService.updateIotDevice(new Robot(robotIds.get(i), location.getLatitude(), location.getLongitude()));
+                    }
+                    for (int i = worker; i < busIds.size(); i += workers) {
+                        Location location = place(i, round);
+                        modelService.updateIotDevice(new Vehicle(busIds.get(i), location.getLatitude(), location.getLongitude()));
+                    }
+                    for (int i = worker; i < visitorIds.size(); i += workers) {
+                        Location location = place(i, round);
+                        modelService.updatePerson(new Visitor(visitorIds.get(i), location.getLatitude(), location.getLongitude()));
+                    }
+                }
+            }));
+            writers.add(stressThread(start, problems, () -> {
+                for (int round = 0; round < rounds; round++) {
+                    for (int i = worker; i < robotIds.size(); i += workers) {
+                        modelService.updateIotDevice(new Robot(robotIds.get(i), "activity_" + round));
+                    }
+                    for (int i = worker; i < busIds.size(); i += workers) {
+                        modelService.updateIotDevice(new Vehicle(busIds.get(i), "activity_" + round));
+                        modelService.updateIotDevice(new Vehicle(busIds.get(i), round));
+                    }
+                    for (int i = worker; i < visitorIds.size(); i += workers) {
+                        modelService.updatePerson(new Visitor(visitorIds.get(i), "biometric_" + round));
+                    }
+                }
+            }));
+        }
+
+        // Cities are renamed, which finds the current city of every person and device again
+        writers.add(stressThread(start, problems, () -> {
+            for (int round = 0; round < Math.max(rounds / 20, 1); round++) {
+                int c = round % CITIES;
+                modelService.updateCity(new City("city_" + c, "city_" + c + "_" + round, "city_" + c + "-account", 40 + c, -80 + c, 30));
+            }
+        }));
+
+        // Events are handled by the Controller Service on the thread that sends them
+        writers.add(stressThread(start, problems, () -> {
+            Random random = new Random(17);
+            for (int round = 0; round < rounds; round++) {
+                String cityId = "city_" + random.nextInt(CITIES);
+                String visitor = visitorIds.get(random.nextInt(visitorIds.size()));
+                modelService.createSensorEvent(random.nextBoolean()
+                        ? new SensorEvent(cityId, "bus", SensorType.MICROPHONE, "does this bus go to central square?", visitor)
+                        : new SensorEvent(cityId, "kiosk", SensorType.MICROPHONE, "what movies are showing tonight?", visitor));
+            }
+        }));
+
+        // Readers check that every copy and snapshot they get shows a whole update
+        Thread reader = stressThread(start, problems, () -> {
+            Random random = new Random(19);
+            do {
+                String cityId = "city_" + random.nextInt(CITIES);
+                for (DeviceView deviceView : modelService.getDeviceViews(cityId)) {
+                    checkCity(problems, deviceView.getUuid(), deviceView.getCurrentCity(), deviceView.getLatitude(), deviceView.getLongitude());
+                }
+                for (Robot robot : modelService.nearestRobots(cityId, new Location(40, -80), 3, null)) {
+                    checkCity(problems, robot.getUuid(), robot.getCurrentCity(), robot.getLocation().getLatitude(), robot.getLocation().getLongitude());
+                }
+                IotDevice bus = modelService.getIotDevice(cityId, "bus");
+                checkCity(problems, bus.getUuid(), bus.getCurrentCity(), bus.getLocation().getLatitude(), bus.getLocation().getLongitude());
+                PersonView personView = modelService.getPersonView(visitorIds.get(random.nextInt(visitorIds.size())));
+                checkCity(problems, personView.getUuid(), personView.getCurrentCity(), personView.getLatitude(), personView.getLongitude());
+                modelService.getCity(cityId);
+            } while (writers.stream().anyMatch(Thread::isAlive));
+        });
+
+        long begin = System.nanoTime();
+        start.countDown();
+        try {
+            for (Thread writer : writers) {
+                writer.join();
+            }
+            reader.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            problems.add("Interrupted while waiting for the threads");
+        }
+        long elapsed = System.nanoTime() - begin;
+
+        checkStress(modelService, problems, robotIds, busIds, visitorIds, rounds - 1);
+
+        System.setOut(console);
+        System.out.printf("%d threads, %d rounds over %d robots, %d buses and %d visitors in %.0f ms: %d problems%n",
+                writers.size() + 1, rounds, robotIds.size(), busIds.size(), visitorIds.size(), elapsed / 1e6, problems.size());
+        problems.stream().limit(20).forEach(System.out::println);
+    }
+
+    /**
+     * Check the entities once every stress thread is done, each field must hold the value
+     * written in the last round.
+     */
+    private static void checkStress(CityModelService modelService, Queue<String> problems, List<String> robotIds,
+                                    List<String> busIds, List<String> visitorIds, int lastRound) throws CityModelServiceException {
+
+        for (int i = 0; i < robotIds.size(); i++) {
+            String[] id = robotIds.get(i).split(":");
+            Robot robot = (Robot) modelService.getIotDevice(id[0], id[1]);
+            checkDevice(modelService, problems, robot, place(i, lastRound));
+            checkValue(problems, robot.getUuid(), "activity", robot.getActivity(), "activity_" + lastRound);
+        }
+        for (int i = 0; i < busIds.size(); i++) {
+            String[] id = busIds.get(i).split(":");
+            Vehicle bus = (Vehicle) modelService.getIotDevice(id[0], id[1]);
+            checkDevice(modelService, problems, bus, place(i, lastRound));
+            checkValue(problems, bus.getUuid(), "activity", bus.getActivity(), "activity_" + lastRound);
+            checkValue(problems, bus.getUuid(), "fee", bus.getFee(), lastRound);
+        }
+        for (int i = 0; i < visitorIds.size(); i++) {
+            Person visitor = modelService.getPerson(visitorIds.get(i));
+            Location location = place(i, lastRound);
+            checkValue(problems, visitor.getUuid(), "location", visitor.getLocation().getLatitude() + "," + visitor.getLocation().getLongitude(),
+                    location.getLatitude() + "," + location.getLongitude());
+            checkValue(problems, visitor.getUuid(), "biometric ID", visitor.getBiometricId(), "biometric_" + lastRound);
+            checkCity(problems, visitor.getUuid(), visitor.getCurrentCity(), location.getLatitude(), location.getLongitude());
+
+            PersonView personView = modelService.getPersonView(visitor.getUuid());
+            checkValue(problems, visitor.getUuid(), "snapshot", personView.getCurrentCity() + "@" + personView.getLatitude(),
+                    visitor.getCurrentCity() + "@" + location.getLatitude());
+        }
+
+        // Every person and device must be listed in the city it is in, and only there
+        for (int c = 0; c < CITIES; c++) {
+            String cityId = "city_" + c;
+            TreeSet<String> expected = new TreeSet<>();
+            TreeSet<String> listed = new TreeSet<>();
+            for (int o = 0; o < CITIES; o++) {
+                for (IotDevice iotDevice : modelService.getIotDevice("city_" + o)) {
+                    if (cityId.equals(iotDevice.getCurrentCity())) {
+                        expected.add(iotDevice.getUuid());
+                    }
+                }
+            }
+            for (String visitorId : visitorIds) {
+                if (cityId.equals(modelService.getPersonView(visitorId).getCurrentCity())) {
+                    expected.add(visitorId);
+                }
+            }
+            City city = modelService.getCity(cityId);
+            for (IotDevice iotDevice : city.getDevicesCurrentlyInCity()) {
+                listed.add(iotDevice.getUuid());
+            }
+            listed.addAll(city.getPersonMap().keySet());
+            checkValue(problems, cityId, "members", listed, expected);
+
+            // The robot index of a city holds every robot of the city at its latest location
+            int robots = 0;
+            for (Robot robot : modelService.nearestRobots(cityId, new Location(40 + c, -80 + c), Integer.MAX_VALUE, null)) {
+                String[] id = robot.getUuid().split(":");
+                Location location = modelService.getIotDevice(id[0], id[1]).getLocation();
+                checkValue(problems, robot.getUuid(), "indexed location", robot.getLocation().getLatitude(), location.getLatitude());
+                robots++;
+            }
+            checkValue(problems, cityId, "indexed robots", robots, (devices(robotIds, cityId)));
+        }
+    }
+
+    /**
+     * Check the location, current city and snapshot of a device.
+     */
+    private static void checkDevice(CityModelService modelService, Queue<String> problems, IotDevice iotDevice,
+                                    Location location) throws CityModelServiceException {
+        checkValue(problems, iotDevice.getUuid(), "location", iotDevice.getLocation().getLatitude() + "," + iotDevice.getLocation().getLongitude(),
+                location.getLatitude() + "," + location.getLongitude());
+        checkCity(problems, iotDevice.getUuid(), iotDevice.getCurrentCity(), location.getLatitude(), location.getLongitude());
+
+        String[] id = iotDevice.getUuid().split(":");
+        DeviceView deviceView = modelService.getDeviceView(id[0], id[1]);
+        checkValue(problems, iotDevice.getUuid(), "snapshot", deviceView.getCurrentCity() + "@" + deviceView.getLatitude(),
+                iotDevice.getCurrentCity() + "@" + location.getLatitude());
+    }
+
+    /**
+     * Check that the current city of an entity is the city its location is in.
+     */
+    private static void checkCity(Queue<String> problems, String uuid, String currentCity, double latitude, double longitude) {
+        checkValue(problems, uuid, "current city", currentCity, "city_" + Math.round(latitude - 40));
+    }
+
+    private static void checkValue(Queue<String> problems, String uuid, String field, Object actual, Object expected) {
+        if (!expected.equals(actual)) {
+            problems.add(uuid + " " + field + " is " + actual + ", expected " + expected);
+        }
+    }
+
+    private static int devices(List<String> deviceIds, String cityId) {
+        return (int) deviceIds.stream().filter(id -> id.startsWith(cityId + ":")).count();
+    }
+
+    /**
+     * Returns the location an entity is moved to in a round, near the center of a different city every round.
+     */
+    private static Location place(int entity, int round) {
+        int c = (entity + round) % CITIES;
+        return new Location(40 + c + (entity % 5 - 2) * 0.01, -80 + c + (entity % 3 - 1) * 0.01);
+    }
+
+    /**
+     * A stress step that may throw, run on its own thread.
+     */
+    private interface StressTask {
+        void run() throws Exception;
+    }
+
+    /**
+     * Starts a thread that runs a task once the latch opens, adding anything it throws to the problems.
+     */
+    private static Thread stressThread(CountDownLatch start, Queue<String> problems, StressTask task) {
+        Thread thread = new Thread(() -> {
+            try {
+                start.await();
+                task.run();
+            } catch (Exception | Error e) {
+                problems.add(Thread.currentThread().getName() + " threw " + e);
+            }
+        });
+        thread.start();
+        return thread;
+    }
+
+    /**
+     * Returns a random event from a mix of robot dispatches, announcements and persons being seen.
+     */
+    private static SensorEvent nextEvent(Random random, int devices) {
+        String cityId = "city_" + random.nextInt(CITIES);
+
+        // Devices with an odd number are street lights, every tenth device is a robot
+        int device = random.nextInt(devices) | 1;
+        String light = device < devices ? "light_" + device : "kiosk";
+        String visitor = cityId + "-visitor_" + random.nextInt(Math.max(devices / 10, 1));
+
+        switch (random.nextInt(6)) {
+            case 0:
+                return new SensorEvent(cityId, light, SensorType.MICROPHONE, "broken_glass_sound", null);
+            case 1:
+                return new SensorEvent(cityId, light, SensorType.CAMERA, "traffic_accident", null);
+            case 2:
+                return new SensorEvent(cityId, light, SensorType.CAMERA, "person_seen", visitor);
+            case 3:
+                return new SensorEvent(cityId, "bus", SensorType.MICROPHONE, "does this bus go to central square?", visitor);
+            case 4:
+                return new SensorEvent(cityId, "kiosk", SensorType.MICROPHONE, "what movies are showing tonight?", visitor);
+            default:
+                return new SensorEvent(cityId, light, SensorType.CAMERA, "littering", visitor);
+        }
+    }
+}